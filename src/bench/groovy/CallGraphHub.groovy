@@ -0,0 +1,62 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Measures the time of normalizing the call graph report of a method which is called by more and more
+ * distinct methods. Sorting the elements by time reindexes the parents of the method in an effectively
+ * random order, so the time should grow with the number of the callers no more than sorting them.
+ *
+ *   ant bench -Dbench=CallGraphHub
+ */
+import groovyx.gprof.*
+import groovyx.gprof.callgraph.CallGraphReportNormalizer
+
+def CALLERS = [1000, 10000, 50000, 100000]
+def REPEATS = 5
+
+def hub = MethodRegistry.getId("Bench", "hub")
+def callers = (0..<CALLERS.max()).collect { MethodRegistry.getId("Bench", "caller$it") }
+
+def median = { List<Long> times -> times.sort()[times.size().intdiv(2)] / 1000000d }
+
+// each caller calls the hub once and takes its own time, so the order by time is not the order of the calls
+def makeTree = { int n ->
+    def random = new Random(n)
+    def tree = new CallTree(Thread.currentThread())
+    for (int i = 0; i < n; i++) {
+        def caller = new CallTree.Node(new MethodCallInfo(callers[i]))
+        def callee = new CallTree.Node(new MethodCallInfo(hub))
+        caller.addChild(callee)
+        tree.root.addChild(caller)
+        callee.data.time = 1000
+        caller.data.childrenTime = 1000
+        caller.data.time = 1000 + random.nextInt(1000000)
+        tree.root.data.time += caller.data.time
+    }
+    tree
+}
+
+printf("%8s  %12s%n", "callers", "normalize ms")
+for (n in CALLERS) {
+    def tree = makeTree(n)
+    def times = []
+    REPEATS.times {
+        def t0 = System.nanoTime()
+        new CallGraphReportNormalizer().normalize(tree)
+        times << System.nanoTime() - t0
+    }
+    printf("%8d  %12.2f%n", n, median(times))
+}
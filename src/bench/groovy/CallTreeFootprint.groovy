@@ -0,0 +1,75 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Measures the heap which a call tree of the events capture retains per call,
+ * for the tree of the nodes and the compact tree.
+ *
+ *   ant bench -Dbench=CallTreeFootprint
+ */
+import groovyx.gprof.*
+
+def CALLS = 1000000
+def FANOUT = 8
+
+def methodIds = (0..<FANOUT).collect { MethodRegistry.getId("Bench", "m$it") }
+
+def usedHeap = {
+    5.times { System.gc(); Thread.sleep(50) }
+    def runtime = Runtime.runtime
+    runtime.totalMemory() - runtime.freeMemory()
+}
+
+// adds the calls in the depth-first order. the inner calls have FANOUT children.
+def build = { root, Closure addCall ->
+    int count = 0
+    def add
+    add = { parent, int depth ->
+        for (int j = 0; j < FANOUT && count < CALLS; j++) {
+            def node = addCall(parent, methodIds[j])
+            count++
+            if (depth < 7) {
+                add(node, depth + 1)
+            }
+        }
+    }
+    add(root, 0)
+}
+
+def nodeTree = {
+    def tree = new CallTree(Thread.currentThread())
+    build(tree.root) { CallTree.Node parent, int methodId ->
+        def node = new CallTree.Node(new MethodCallInfo(methodId))
+        parent.addChild(node)
+        node
+    }
+    tree
+}
+
+def compactTree = {
+    def tree = new CompactCallTree(new ThreadRunInfo(Thread.currentThread()))
+    build(0) { int parent, int methodId -> tree.addCall(parent, methodId) }
+    tree
+}
+
+printf("%-10s  %10s  %10s%n", "tree", "calls", "bytes/call")
+for (entry in [node: nodeTree, compact: compactTree]) {
+    def before = usedHeap()
+    def tree = entry.value()
+    def after = usedHeap()
+    printf("%-10s  %10d  %10.1f%n", entry.key, CALLS, (after - before) / CALLS)
+    tree = null
+}
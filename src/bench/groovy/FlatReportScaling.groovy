@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * Measures the time of normalizing the flat report of the recursive call trees which have the same number
+ * of the calls but get deeper. The time should not grow with the depth.
+ *
+ *   ant bench -Dbench=FlatReportScaling
+ */
+import groovyx.gprof.*
+import groovyx.gprof.flat.FlatReportNormalizer
+
+def CALLS = 200000
+def DEPTHS = [10, 100, 1000, 10000]
+def REPEATS = 5
+
+def a = MethodRegistry.getId("Bench", "a")
+def b = MethodRegistry.getId("Bench", "b")
+
+def median = { List<Long> times -> times.sort()[times.size().intdiv(2)] / 1000000d }
+
+// chains of the calls of a and b which call each other, so each call of a is under the other calls of a
+def makeTree = { int depth ->
+    def tree = new CallTree(Thread.currentThread())
+    for (int i = 0; i < CALLS.intdiv(depth); i++) {
+        def parent = tree.root
+        def calls = []
+        for (int d = 0; d < depth; d++) {
+            def node = new CallTree.Node(new MethodCallInfo(d % 2 == 0 ? a : b))
+            parent.addChild(node)
+            calls << node.data
+            parent = node
+        }
+        long time = 0
+        for (call in calls.reverse()) {
+            call.childrenTime = time
+            time += 1000
+            call.time = time
+        }
+        tree.root.data.time += time
+    }
+    tree
+}
+
+printf("%8s  %10s  %12s%n", "depth", "calls", "normalize ms")
+for (depth in DEPTHS) {
+    def tree = makeTree(depth)
+    def times = []
+    REPEATS.times {
+        def t0 = System.nanoTime()
+        new FlatReportNormalizer().normalize(tree)
+        times << System.nanoTime() - t0
+    }
+    printf("%8d  %10d  %12.2f%n", depth, CALLS, median(times))
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * Measures the overhead of the sampling mode with the default interval on a CPU bound workload
+ * while the number of the idle threads, whose stacks are taken at each sample as well, grows.
+ *
+ *   ant bench -Dbench=SamplingOverhead
+ */
+import groovyx.gprof.Profiler
+
+def THREADS = [0, 50, 200]
+def ROUNDS = 5
+
+int fib(int n) {
+    n < 2 ? n : fib(n - 1) + fib(n - 2)
+}
+
+def work = {
+    def t0 = System.nanoTime()
+    20.times { fib(33) }
+    System.nanoTime() - t0
+}
+
+def median = { List<Long> times -> times.sort()[times.size().intdiv(2)] / 1000000d }
+
+// warms up
+work()
+
+printf("%8s  %12s  %12s  %9s%n", "threads", "off ms", "sampling ms", "overhead")
+def idlers = []
+for (threads in THREADS) {
+    while (idlers.size() < threads) {
+        def idler = new Thread({ new Object().with { synchronized (it) { it.wait() } } } as Runnable)
+        idler.daemon = true
+        idler.start()
+        idlers << idler
+    }
+    def offs = [], ons = []
+    // alternates the runs so that the drift of the machine affects both of them
+    ROUNDS.times {
+        offs << work()
+        def profiler = new Profiler()
+        profiler.start(mode: "sampling")
+        ons << work()
+        profiler.stop()
+    }
+    def off = median(offs), on = median(ons)
+    printf("%8d  %12.2f  %12.2f  %8.1f%%%n", threads, off, on, (on - off) / off * 100)
+}
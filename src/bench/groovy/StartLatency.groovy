@@ -0,0 +1,60 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Measures the latency of Profiler.start() and stop() while the number of the loaded classes
+ * which have meta classes grows. The start and the stop should not get slower with more classes,
+ * since the meta classes are proxied when they are looked up first. The latency of the first call
+ * of a loaded class while profiling, which proxies its meta class, is measured as well.
+ *
+ *   ant bench -Dbench=StartLatency
+ */
+import groovyx.gprof.Profiler
+
+def REPEATS = 10
+
+def STEPS = [REPEATS, 1000, 2000, 4000, 8000, 16000]
+
+def loader = new GroovyClassLoader()
+def loaded = 0
+
+def median = { List<Long> times -> times.sort()[times.size().intdiv(2)] / 1000000d }
+
+printf("%8s  %10s  %10s  %14s%n", "classes", "start ms", "stop ms", "first call ms")
+for (step in STEPS) {
+    for (; loaded < step; loaded++) {
+        def theClass = loader.parseClass("class Loaded$loaded { def call() { $loaded } }")
+        // creates the meta class like a dispatch does
+        theClass.newInstance().call()
+    }
+    def starts = [], stops = [], firstCalls = []
+    def classes = (0..<REPEATS).collect { loader.loadClass("Loaded$it") }
+    REPEATS.times { i ->
+        def profiler = new Profiler()
+        def t0 = System.nanoTime()
+        profiler.start()
+        def t1 = System.nanoTime()
+        // the meta class is looked up by the constructor
+        classes[i].newInstance().call()
+        def t2 = System.nanoTime()
+        profiler.stop()
+        def t3 = System.nanoTime()
+        starts << t1 - t0
+        firstCalls << t2 - t1
+        stops << t3 - t2
+    }
+    printf("%8d  %10.2f  %10.2f  %14.2f%n", step, median(starts), median(stops), median(firstCalls))
+}
@@ -16,15 +16,28 @@
 package groovyx.gprof;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
 
+/**
+ * A filter of texts by the patterns to include and exclude.
+ * All the patterns are compiled into one automaton by {@link #compile()}, or on the first use
+ * if it has not been compiled, so the cost of matching depends on the length of the text,
+ * not on the number of the patterns.
+ */
 public class CallFilter {
 
     private List<CallMatcher> includes = new ArrayList();
     private List<CallMatcher> excludes = new ArrayList();
+    private volatile Automaton automaton;
 
     public void addInclude(String pattern) {
         this.includes.add(new CallMatcher(pattern));
+        this.automaton = null;
     }
 
     public void addIncludes(List<String> patterns) {
@@ -35,6 +48,7 @@ public class CallFilter {
 
     public void addExclude(String pattern) {
         this.excludes.add(new CallMatcher(pattern));
+        this.automaton = null;
     }
 
     public void addExcludes(List<String> patterns) {
@@ -43,7 +57,45 @@ public class CallFilter {
         }
     }
 
+    /**
+     * Compiles the patterns into the automaton now, so that the first use does not pay it.
+     * The patterns which are added after this are compiled again on the next use.
+     */
+    public void compile() {
+        getAutomaton();
+    }
+
     public boolean accept(String text) {
+        Automaton automaton = getAutomaton();
+        if (automaton != Automaton.TOO_LARGE) {
+            return automaton.accept(automaton.run(automaton.getStart(), text));
+        }
+        return acceptEach(text);
+    }
+
+    /**
+     * Tests the text joined with the separator without joining them.
+     */
+    protected boolean accept(String first, char separator, String second) {
+        Automaton automaton = getAutomaton();
+        if (automaton != Automaton.TOO_LARGE) {
+            int state = automaton.run(automaton.getStart(), first);
+            state = automaton.step(state, separator);
+            return automaton.accept(automaton.run(state, second));
+        }
+        return acceptEach(first + separator + second);
+    }
+
+    private Automaton getAutomaton() {
+        Automaton automaton = this.automaton;
+        if (automaton == null) {
+            automaton = Automaton.compile(includes, excludes);
+            this.automaton = automaton;
+        }
+        return automaton;
+    }
+
+    private boolean acceptEach(String text) {
         if (!includes.isEmpty()) {
             boolean included = false;
             for (CallMatcher include : includes) {
@@ -70,4 +122,181 @@ public class CallFilter {
         }
         return true;
     }
+
+    /**
+     * A deterministic automaton which runs all the patterns at once.
+     * It is built by the subset construction over the classes of the characters:
+     * each character which appears in the patterns has its own class and
+     * the other characters share the class 0.
+     */
+    static class Automaton {
+
+        /** The automaton which has too many states. The patterns are tested one by one instead. */
+        static final Automaton TOO_LARGE = new Automaton();
+
+        static final int MAX_STATES = 4096;
+
+        static final int DEAD = 0;
+        static final byte INCLUDED = 1;
+        static final byte EXCLUDED = 2;
+
+        private char[] literals;
+        private int[] asciiClasses;
+        private int classCount;
+        private int[] transitions;
+        private byte[] flags;
+        private int start;
+        private boolean includeAll;
+
+        private Automaton() {
+        }
+
+        static Automaton compile(List<CallMatcher> includes, List<CallMatcher> excludes) {
+            List<String> patterns = new ArrayList<String>();
+            for (CallMatcher include : includes) {
+                patterns.add(CallMatcher.normalize(include.getPattern()));
+            }
+            for (CallMatcher exclude : excludes) {
+                patterns.add(CallMatcher.normalize(exclude.getPattern()));
+            }
+
+            // numbers the positions of all the patterns. the position after the last character accepts.
+            int positionCount = 0;
+            for (String pattern : patterns) {
+                positionCount += pattern.length() + 1;
+            }
+            char[] positionChars = new char[positionCount];
+            boolean[] positionEnds = new boolean[positionCount];
+            byte[] positionFlags = new byte[positionCount];
+            BitSet initial = new BitSet(positionCount);
+            TreeSet<Character> literalSet = new TreeSet<Character>();
+            int position = 0;
+            for (int i = 0; i < patterns.size(); i++) {
+                String pattern = patterns.get(i);
+                initial.set(position);
+                for (int j = 0; j < pattern.length(); j++) {
+                    char c = pattern.charAt(j);
+                    positionChars[position++] = c;
+                    if (c != '*' && c != '?') {
+                        literalSet.add(c);
+                    }
+                }
+                positionEnds[position] = true;
+                positionFlags[position++] = i < includes.size() ? INCLUDED : EXCLUDED;
+            }
+
+            Automaton automaton = new Automaton();
+            automaton.includeAll = includes.isEmpty();
+            automaton.literals = new char[literalSet.size()];
+            automaton.asciiClasses = new int[128];
+            int literalIndex = 0;
+            for (char c : literalSet) {
+                automaton.literals[literalIndex++] = c;
+                if (c < 128) {
+                    automaton.asciiClasses[c] = literalIndex;
+                }
+            }
+            automaton.classCount = automaton.literals.length + 1;
+
+            List<BitSet> states = new ArrayList<BitSet>();
+            Map<BitSet, Integer> stateIds = new HashMap<BitSet, Integer>();
+            List<int[]> rows = new ArrayList<int[]>();
+            BitSet dead = new BitSet();
+            states.add(dead);
+            stateIds.put(dead, DEAD);
+            closure(initial, positionChars, positionEnds);
+            if (!stateIds.containsKey(initial)) {
+                stateIds.put(initial, states.size());
+                states.add(initial);
+            }
+            automaton.start = stateIds.get(initial);
+
+            for (int stateId = 0; stateId < states.size(); stateId++) {
+                BitSet state = states.get(stateId);
+                int[] row = new int[automaton.classCount];
+                for (int cls = 0; cls < automaton.classCount; cls++) {
+                    BitSet next = new BitSet(positionCount);
+                    for (int p = state.nextSetBit(0); p >= 0; p = state.nextSetBit(p + 1)) {
+                        if (positionEnds[p]) {
+                            continue;
+                        }
+                        char c = positionChars[p];
+                        if (c == '*') {
+                            next.set(p);
+                        } else if (c == '?' || (cls > 0 && c == automaton.literals[cls - 1])) {
+                            next.set(p + 1);
+                        }
+                    }
+                    closure(next, positionChars, positionEnds);
+                    Integer nextId = stateIds.get(next);
+                    if (nextId == null) {
+                        if (states.size() == MAX_STATES) {
+                            return TOO_LARGE;
+                        }
+                        nextId = states.size();
+                        stateIds.put(next, nextId);
+                        states.add(next);
+                    }
+                    row[cls] = nextId;
+                }
+                rows.add(row);
+            }
+
+            automaton.transitions = new int[states.size() * automaton.classCount];
+            automaton.flags = new byte[states.size()];
+            for (int stateId = 0; stateId < states.size(); stateId++) {
+                System.arraycopy(rows.get(stateId), 0, automaton.transitions,
+                        stateId * automaton.classCount, automaton.classCount);
+                BitSet state = states.get(stateId);
+                for (int p = state.nextSetBit(0); p >= 0; p = state.nextSetBit(p + 1)) {
+                    automaton.flags[stateId] |= positionFlags[p];
+                }
+            }
+            return automaton;
+        }
+
+        /**
+         * Adds the positions which are reachable by letting '*'s match nothing.
+         */
+        private static void closure(BitSet state, char[] positionChars, boolean[] positionEnds) {
+            for (int p = state.nextSetBit(0); p >= 0; p = state.nextSetBit(p + 1)) {
+                int q = p;
+                while (!positionEnds[q] && positionChars[q] == '*') {
+                    state.set(++q);
+                }
+            }
+        }
+
+        int getStart() {
+            return start;
+        }
+
+        int getStateCount() {
+            return flags.length;
+        }
+
+        int run(int state, String text) {
+            for (int i = 0, n = text.length(); i < n && state != DEAD; i++) {
+                state = step(state, text.charAt(i));
+            }
+            return state;
+        }
+
+        int step(int state, char c) {
+            return transitions[state * classCount + classOf(c)];
+        }
+
+        private int classOf(char c) {
+            if (c < 128) {
+                return asciiClasses[c];
+            }
+            int index = Arrays.binarySearch(literals, c);
+            return index >= 0 ? index + 1 : 0;
+        }
+
+        boolean accept(int state) {
+            byte flag = flags[state];
+            return (includeAll || (flag & INCLUDED) != 0) && (flag & EXCLUDED) == 0;
+        }
+    }
 }
@@ -19,6 +19,8 @@ public abstract class CallInfo {
     private long overheadTime;
     private long time;
     private long childrenTime;
+    // created when any metric is measured
+    private MetricValues metrics;
 
     public long getOverheadTime() {
         return overheadTime;
@@ -48,6 +50,23 @@ public abstract class CallInfo {
         this.childrenTime = childrenTime;
     }
 
+    /**
+     * Returns whether any metric of the call is measured.
+     */
+    public boolean hasMetrics() {
+        return metrics != null && !metrics.isEmpty();
+    }
+
+    /**
+     * Returns the values of the metrics of the call, which are created when they are requested first.
+     */
+    public MetricValues getMetrics() {
+        if (metrics == null) {
+            metrics = new MetricValues();
+        }
+        return metrics;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -57,6 +76,9 @@ public abstract class CallInfo {
 
         if (childrenTime != callInfo.childrenTime) return false;
         if (time != callInfo.time) return false;
+        if (hasMetrics() || callInfo.hasMetrics()) {
+            if (!getMetrics().equals(callInfo.getMetrics())) return false;
+        }
 
         return true;
     }
@@ -73,6 +95,7 @@ public abstract class CallInfo {
         return "CallInfo{" +
                 "time=" + time +
                 ", childrenTime=" + childrenTime +
+                (hasMetrics() ? ", metrics=" + metrics : "") +
                 '}';
     }
 }
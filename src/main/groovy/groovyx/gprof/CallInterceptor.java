@@ -15,53 +15,424 @@
  */
 package groovyx.gprof;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
 import java.util.Stack;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class CallInterceptor {
 
-    private ConcurrentMap<Thread, LocalInterceptor> interceptors;
+    /**
+     * How the calls are captured while profiling.
+     */
+    public enum Capture {
+        /**
+         * Every call is kept as a node of the call tree.
+         */
+        TREE,
+        /**
+         * The calls along the same call path are merged into one node of the call tree
+         * (calling context tree), so that the memory scales with the number of the distinct paths.
+         */
+        AGGREGATE,
+        /**
+         * Every call is recorded as a pair of the events packed into primitive buffers,
+         * and the call tree is built from them when it is requested.
+         */
+        EVENTS,
+        /**
+         * Only the counters of the calls of each method are updated, which are enough for the flat report.
+         */
+        FLAT,
+    }
+
+    private static final byte UNDECIDED = 0, ACCEPTED = 1, REJECTED = 2;
+
+    // the local interceptors are looked up through the thread local and registered to the queue for making the tree.
+    // they do not keep the threads, so the terminated threads can be collected.
+    private ThreadLocal<LocalInterceptor> localInterceptor;
+    private Queue<LocalInterceptor> interceptors;
+    // the results of the local interceptors of the terminated threads, which are removed from the queue
+    // so they do not keep the buffers and the stacks of the threads
+    private final List<CallTree> retiredTrees = new ArrayList<CallTree>();
+    private final List<MethodCounters> retiredCounters = new ArrayList<MethodCounters>();
+    // the number of the local interceptors which have been created since the last retirement
+    private final AtomicInteger createdSinceRetirement = new AtomicInteger();
+    private volatile int retirementThreshold = 16;
+    private volatile boolean continuous;
     private MethodCallFilter methodFilter;
     private ThreadRunFilter threadFilter;
+    private CallFilter classFilter = new CallFilter();
+    private Capture capture;
+    private Metric[] metrics;
+    // the results of the method filter which are indexed by the id of the method
+    private volatile byte[] methodDecisions;
+    // the state of the windows of the continuous profiling, which is shared with the local interceptors
+    private final Windows windows = new Windows();
+    private volatile boolean interceptProperties;
+    private volatile boolean interceptMissing;
+    private volatile boolean conditional;
 
     public CallInterceptor(MethodCallFilter methodFilter, ThreadRunFilter threadFilter) {
-        interceptors = new ConcurrentHashMap<Thread, LocalInterceptor>();
+        this(methodFilter, threadFilter, Capture.TREE);
+    }
+
+    public CallInterceptor(MethodCallFilter methodFilter, ThreadRunFilter threadFilter, Capture capture) {
+        this(methodFilter, threadFilter, capture, Collections.<Metric>emptySet());
+    }
+
+    /**
+     * @param methodFilter
+     *      the filter of the methods whose calls are intercepted
+     * @param threadFilter
+     *      the filter of the threads whose calls are intercepted
+     * @param capture
+     *      how the calls are captured
+     * @param metrics
+     *      the metrics which are measured for each call in addition to the time
+     */
+    public CallInterceptor(MethodCallFilter methodFilter, ThreadRunFilter threadFilter, Capture capture,
+                           Set<Metric> metrics) {
+        localInterceptor = new ThreadLocal<LocalInterceptor>() {
+            @Override
+            protected LocalInterceptor initialValue() {
+                return createLocalInterceptor();
+            }
+        };
+        interceptors = new ConcurrentLinkedQueue<LocalInterceptor>();
         this.methodFilter = methodFilter;
         this.threadFilter = threadFilter;
+        this.capture = capture;
+        this.metrics = metrics.toArray(new Metric[metrics.size()]);
+        this.methodDecisions = new byte[MethodRegistry.size() + 1];
     }
     
-    private LocalInterceptor getLocalInterceptor() {
-        Thread thread = Thread.currentThread();
-        LocalInterceptor theInterceptor = interceptors.get(thread);
-        if (theInterceptor == null) {
-            if (threadFilter.accept(thread)) {
-                theInterceptor = new LocalInterceptor(methodFilter);
-            } else {
-                theInterceptor = LocalInterceptor.DO_NOT_INTERCEPT;
+    /**
+     * Returns whether the calls of the method are intercepted or not.
+     * The result of the method filter is cached for each method.
+     * @param methodId
+     *      the id of the method
+     * @return true if the calls of the method are intercepted
+     */
+    public boolean acceptMethod(int methodId) {
+        byte[] decisions = methodDecisions;
+        if (methodId < decisions.length) {
+            byte decision = decisions[methodId];
+            if (decision != UNDECIDED) {
+                return decision == ACCEPTED;
             }
-            interceptors.put(Thread.currentThread(), theInterceptor);
         }
+        return decideMethod(methodId);
+    }
+
+    private synchronized boolean decideMethod(int methodId) {
+        MethodInfo method = MethodRegistry.getMethod(methodId);
+        boolean accepted = acceptEntry(method.getMethodName())
+                && classFilter.accept(method.getClassName()) && methodFilter.accept(method);
+        byte[] decisions = methodDecisions;
+        if (methodId >= decisions.length) {
+            decisions = Arrays.copyOf(decisions, Math.max(methodId + 1, decisions.length * 2));
+        }
+        decisions[methodId] = accepted ? ACCEPTED : REJECTED;
+        methodDecisions = decisions;
+        return accepted;
+    }
+    
+    /**
+     * Returns whether the calls of the method are intercepted without registering the method,
+     * so the methods which are not profiled do not take the ids of {@link MethodRegistry}.
+     * @param className
+     *      the name of the class
+     * @param methodName
+     *      the name of the method
+     * @return true if the calls are intercepted
+     */
+    public boolean acceptMethod(String className, String methodName) {
+        return acceptEntry(methodName) && classFilter.accept(className)
+                && methodFilter.accept(new MethodInfo(className, methodName));
+    }
+
+    /**
+     * Returns whether the kind of the entry is intercepted. The interception layer which is shared by the sessions
+     * makes the entries of the properties and the missing methods if any session intercepts them.
+     */
+    private boolean acceptEntry(String methodName) {
+        if (methodName.startsWith("@")) {
+            return interceptProperties;
+        }
+        if (methodName.startsWith("methodMissing(") || methodName.startsWith("propertyMissing(")) {
+            return interceptMissing;
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the calls in the thread are intercepted or not.
+     * @param thread
+     *      the thread
+     * @return true if the calls in the thread are intercepted
+     */
+    public boolean acceptThread(Thread thread) {
+        return threadFilter.accept(thread);
+    }
+
+    /**
+     * Adds the local interceptor of a thread which is fed by other than the thread itself.
+     */
+    void addLocalInterceptor(LocalInterceptor interceptor) {
+        interceptors.add(interceptor);
+    }
+
+    /**
+     * Returns the local interceptor of the current thread.
+     */
+    LocalInterceptor getLocalInterceptor() {
+        return localInterceptor.get();
+    }
+
+    private LocalInterceptor createLocalInterceptor() {
+        if (!threadFilter.accept(Thread.currentThread())) {
+            return LocalInterceptor.DO_NOT_INTERCEPT;
+        }
+        // the threads which churn retire the interceptors of the terminated ones. the threshold grows with
+        // the number of the interceptors, so checking all of them costs a constant time for each thread.
+        if (createdSinceRetirement.incrementAndGet() >= retirementThreshold) {
+            retireTerminated();
+        }
+        LocalInterceptor theInterceptor;
+        switch (capture) {
+            case AGGREGATE:
+                theInterceptor = new AggregatingLocalInterceptor(metrics);
+                break;
+            case EVENTS:
+                theInterceptor = new EventLocalInterceptor(metrics, windows);
+                break;
+            case FLAT:
+                theInterceptor = new FlatLocalInterceptor(metrics);
+                break;
+            default:
+                theInterceptor = new LocalInterceptor(metrics);
+                break;
+        }
+        theInterceptor.owner = new WeakReference<Thread>(Thread.currentThread());
+        interceptors.add(theInterceptor);
         return theInterceptor;
     }
+
+    /**
+     * Takes the results of the local interceptors of the terminated threads and removes them from the queue.
+     * In the continuous profiling, the last events of the threads are handed over to the aggregator.
+     */
+    synchronized void retireTerminated() {
+        int live = 0;
+        for (Iterator<LocalInterceptor> it = interceptors.iterator(); it.hasNext(); ) {
+            LocalInterceptor interceptor = it.next();
+            if (!interceptor.isTerminated()) {
+                live++;
+                continue;
+            }
+            if (interceptor instanceof EventLocalInterceptor && continuous) {
+                ((EventLocalInterceptor) interceptor).handOver();
+            } else if (interceptor instanceof FlatLocalInterceptor) {
+                retiredCounters.add(((FlatLocalInterceptor) interceptor).getCounters());
+            } else {
+                CallTree tree = interceptor.getTree();
+                if (tree instanceof CompactCallTree) {
+                    ((CompactCallTree) tree).trimToSize();
+                }
+                retiredTrees.add(tree);
+            }
+            it.remove();
+        }
+        createdSinceRetirement.set(0);
+        retirementThreshold = Math.max(16, live);
+    }
     
     public void beforeInvoke(MethodCallInfo methodCall) {
-        getLocalInterceptor().beforeInvoke(methodCall);
+        // the calls of the excluded methods are not captured at all,
+        // so the calls in them are attached to the nearest included caller.
+        if (acceptMethod(methodCall.getMethodId())) {
+            getLocalInterceptor().beforeInvoke(methodCall);
+        }
     }
 
     public void afterInvoke(MethodCallInfo methodCall) {
-        getLocalInterceptor().afterInvoke(methodCall);
+        if (acceptMethod(methodCall.getMethodId())) {
+            getLocalInterceptor().afterInvoke(methodCall);
+        }
+    }
+
+    /**
+     * Intercepts the start of the call of the method, which must be accepted.
+     * The time which is spent from the specified time to the return of this method
+     * is regarded as the overhead of profiling.
+     * @param methodId
+     *      the id of the method
+     * @param interceptStartTime
+     *      the time when the interception started
+     */
+    public void enter(int methodId, long interceptStartTime) {
+        getLocalInterceptor().enter(methodId, interceptStartTime);
+    }
+
+    /**
+     * Intercepts the end of the call of the method, which must be accepted.
+     * @param methodId
+     *      the id of the method
+     */
+    public void exit(int methodId) {
+        getLocalInterceptor().exit(methodId);
+    }
+
+    /**
+     * Makes the events of the terminated threads handed over to the aggregator of the continuous profiling
+     * instead of kept for the tree.
+     */
+    void setContinuous(boolean continuous) {
+        this.continuous = continuous;
+    }
+
+    /**
+     * Starts a new window of the continuous profiling. Each thread hands over the events which it has recorded
+     * in the previous windows at its first event in the new window, and they can be taken by
+     * {@link #pollFinishedEvents()}. This is supported only by the events capture.
+     */
+    public void nextWindow() {
+        // this is called only by the thread which aggregates the windows
+        windows.startTime = System.nanoTime();
+        windows.window++;
+    }
+
+    /**
+     * Closes the last window of the continuous profiling. The events which the threads have not handed over
+     * are taken as they are, and they are regarded as finished at the time of this call.
+     */
+    void closeWindows() {
+        windows.closed = true;
+        long time = System.nanoTime();
+        for (LocalInterceptor interceptor : interceptors) {
+            if (interceptor instanceof EventLocalInterceptor) {
+                ((EventLocalInterceptor) interceptor).handOverLast(time);
+            }
+        }
+    }
+
+    /**
+     * Returns the events which a thread has handed over, or null if there is none.
+     */
+    FinishedEvents pollFinishedEvents() {
+        return windows.finishedEvents.poll();
+    }
+
+    public MethodCallFilter getMethodFilter() {
+        return methodFilter;
+    }
+
+    public CallFilter getClassFilter() {
+        return classFilter;
+    }
+
+    /**
+     * Sets the filter of the names of the classes whose calls are intercepted.
+     */
+    public synchronized void setClassFilter(CallFilter classFilter) {
+        this.classFilter = classFilter;
+        methodDecisions = new byte[methodDecisions.length];
+    }
+
+    public Capture getCapture() {
+        return capture;
+    }
+
+    /**
+     * Returns whether the access to the properties is intercepted as well as the calls of the methods.
+     */
+    public boolean isInterceptProperties() {
+        return interceptProperties;
+    }
+
+    public synchronized void setInterceptProperties(boolean interceptProperties) {
+        this.interceptProperties = interceptProperties;
+        methodDecisions = new byte[methodDecisions.length];
+    }
+
+    /**
+     * Returns whether the dispatch to methodMissing and propertyMissing is intercepted apart from
+     * the other calls of the methods and the access to the properties.
+     */
+    public boolean isInterceptMissing() {
+        return interceptMissing;
+    }
+
+    public synchronized void setInterceptMissing(boolean interceptMissing) {
+        this.interceptMissing = interceptMissing;
+        methodDecisions = new byte[methodDecisions.length];
+    }
+
+    /**
+     * Returns whether the calls are intercepted only in the threads which the session is activated in
+     * by {@link Profiler#profileIf(boolean, groovy.lang.Closure)}.
+     */
+    public boolean isConditional() {
+        return conditional;
+    }
+
+    public void setConditional(boolean conditional) {
+        this.conditional = conditional;
+    }
+
+    public Set<Metric> getMetrics() {
+        Set<Metric> theMetrics = EnumSet.noneOf(Metric.class);
+        theMetrics.addAll(Arrays.asList(metrics));
+        return theMetrics;
     }
 
     public CallTree getTree() {
         return makeTree();
     }
 
-    private CallTree makeTree() {
-        CallTree tree = new CallTree(Thread.currentThread());
-        ThreadRunInfo mainThreadRun = (ThreadRunInfo) tree.getRoot().getData();
-        for (LocalInterceptor interceptor : interceptors.values()) {
-            CallTree theTree = interceptor.getTree();
+    /**
+     * Returns the counters of the threads of the flat capture.
+     * @return the counters
+     */
+    public synchronized List<MethodCounters> getCounters() {
+        retireTerminated();
+        List<MethodCounters> counters = new ArrayList<MethodCounters>(retiredCounters);
+        for (LocalInterceptor interceptor : interceptors) {
+            if (interceptor instanceof FlatLocalInterceptor) {
+                counters.add(((FlatLocalInterceptor) interceptor).getCounters());
+            }
+        }
+        return counters;
+    }
+
+    private synchronized CallTree makeTree() {
+        retireTerminated();
+        List<CallTree> threadTrees = new ArrayList<CallTree>(retiredTrees);
+        for (LocalInterceptor interceptor : interceptors) {
+            threadTrees.add(interceptor.getTree());
+        }
+        return makeTree(new ThreadRunInfo(Thread.currentThread()), threadTrees);
+    }
+
+    /**
+     * Makes a tree of the trees of the threads. The calls in the main thread are put under the root directly.
+     */
+    static CallTree makeTree(ThreadRunInfo mainThreadRun, List<CallTree> threadTrees) {
+        if (!threadTrees.isEmpty() && threadTrees.get(0) instanceof CompactCallTree) {
+            // the local interceptors of a capture make the trees of the same kind
+            return CompactCallTree.merge(mainThreadRun, (List) threadTrees);
+        }
+        CallTree tree = new CallTree(new CallTree.Node(mainThreadRun));
+        for (CallTree theTree : threadTrees) {
             ThreadRunInfo threadRun = (ThreadRunInfo) theTree.getRoot().getData();
             if (threadRun.equals(mainThreadRun)) {
                 for (CallTree.Node child : theTree.getRoot().getChildren()) {
@@ -76,21 +447,116 @@ public class CallInterceptor {
 
     static class LocalInterceptor {
 
+        static final Metric[] NO_METRICS = new Metric[0];
+
         private CallTree tree;
         private CallTree tmpTree;
         private Stack<CallTree.Node> nodeStack;
-        private MethodCallFilter methodFilter;
+        // the times when the calls in the node stack started
+        private long[] enterTimes;
+        // the time which has been spent by the profiler in this thread.
+        // it is subtracted from the clock, so the time of a call does not include the overhead of the calls in it.
+        private long overheadTime;
+        // the metrics which are measured at the start and the end of each call
+        protected Metric[] metrics;
+        private long threadId;
+        // the values of the metrics at the start of the calls in the node stack
+        private long[] enterValues;
+        // the values of the metrics which have been read last
+        protected long[] metricValues;
+        // the index of the allocated bytes in the metrics, or -1 if they are not measured
+        private int allocationIndex;
+        // the bytes which have been allocated by the profiler in this thread.
+        // they are subtracted from the allocated bytes as the overhead time is from the clock.
+        private long overheadBytes;
+        // the allocated bytes which have been read last, including the overhead
+        private long readBytes;
+        // the thread which feeds this interceptor by itself, or null if it is fed by another thread
+        private WeakReference<Thread> owner;
         
-        private static LocalInterceptor DO_NOT_INTERCEPT = new LocalInterceptor(null) {
+        private static LocalInterceptor DO_NOT_INTERCEPT = new LocalInterceptor() {
             public void beforeInvoke(MethodCallInfo methodCall) { }
             public void afterInvoke(MethodCallInfo methodCall) { }
+            public void enter(int methodId, long interceptStartTime) { }
+            public void exit(int methodId) { }
         };
 
-        public LocalInterceptor(MethodCallFilter methodFilter) {
-            tmpTree = new CallTree(Thread.currentThread());
+        public LocalInterceptor() {
+            this(NO_METRICS);
+        }
+
+        public LocalInterceptor(Metric[] metrics) {
+            this(new CallTree(Thread.currentThread()), metrics);
+        }
+
+        protected LocalInterceptor(CallTree tmpTree) {
+            this(tmpTree, NO_METRICS);
+        }
+
+        protected LocalInterceptor(CallTree tmpTree, Metric[] metrics) {
+            this.tmpTree = tmpTree;
             nodeStack = new Stack();
             nodeStack.push(tmpTree.getRoot());
-            this.methodFilter = methodFilter;
+            enterTimes = new long[16];
+            this.metrics = metrics;
+            threadId = getThreadRun().getThread().getThreadId();
+            enterValues = new long[enterTimes.length * metrics.length];
+            metricValues = new long[metrics.length];
+            allocationIndex = Arrays.asList(metrics).indexOf(Metric.ALLOCATED_BYTES);
+        }
+
+        /**
+         * Returns the time of the clock which excludes the overhead of profiling.
+         */
+        protected long time(long time) {
+            return time - overheadTime;
+        }
+
+        protected void addOverheadTime(long from) {
+            overheadTime += System.nanoTime() - from;
+        }
+
+        /**
+         * Reads the values of the metrics of the thread. The allocated bytes exclude the bytes which
+         * the profiler has allocated, so each interception should read them before it allocates anything
+         * and then call {@link #addOverheadBytes()}.
+         */
+        protected void readMetrics(long[] values, int offset) {
+            if (metrics.length > 0) {
+                Metric.read(metrics, threadId, values, offset);
+                if (allocationIndex >= 0) {
+                    readBytes = values[offset + allocationIndex];
+                    values[offset + allocationIndex] -= overheadBytes;
+                }
+            }
+        }
+
+        /**
+         * Adds the bytes which have been allocated since the metrics were read last to the overhead.
+         */
+        protected void addOverheadBytes() {
+            if (allocationIndex >= 0) {
+                overheadBytes += Metric.ALLOCATED_BYTES.read(threadId) - readBytes;
+            }
+        }
+
+        /**
+         * Returns whether the thread which has fed this interceptor by itself has terminated.
+         */
+        boolean isTerminated() {
+            if (owner == null) {
+                return false;
+            }
+            Thread thread = owner.get();
+            return thread == null || !thread.isAlive();
+        }
+
+        protected CallTree getTmpTree() {
+            return tmpTree;
+        }
+
+        ThreadRunInfo getThreadRun() {
+            return (ThreadRunInfo) tmpTree.getRoot().getData();
         }
 
         public void beforeInvoke(MethodCallInfo methodCall) {
@@ -105,42 +571,50 @@ public class CallInterceptor {
             nodeStack.pop();
         }
 
+        public void enter(int methodId, long interceptStartTime) {
+            readMetrics(metricValues, 0);
+            beforeInvoke(new MethodCallInfo(methodId));
+            int depth = nodeStack.size();
+            if (depth >= enterTimes.length) {
+                enterTimes = Arrays.copyOf(enterTimes, Math.max(depth + 1, enterTimes.length * 2));
+                enterValues = Arrays.copyOf(enterValues, enterTimes.length * metrics.length);
+            }
+            System.arraycopy(metricValues, 0, enterValues, depth * metrics.length, metrics.length);
+            addOverheadBytes();
+            addOverheadTime(interceptStartTime);
+            enterTimes[depth] = time(System.nanoTime());
+        }
+
+        public void exit(int methodId) {
+            long executeEndTime = System.nanoTime();
+            CallInfo methodCall = nodeStack.peek().getData();
+            int depth = nodeStack.size();
+            methodCall.setTime(time(executeEndTime) - enterTimes[depth]);
+            if (metrics.length > 0) {
+                readMetrics(metricValues, 0);
+                MetricValues values = methodCall.getMetrics();
+                for (int i = 0; i < metrics.length; i++) {
+                    values.set(metrics[i], metricValues[i] - enterValues[depth * metrics.length + i]);
+                }
+            }
+            nodeStack.pop();
+            addOverheadBytes();
+            addOverheadTime(executeEndTime);
+        }
+
         public CallTree getTree() {
             if (tree == null) {
-                tree = makeTree();
+                tree = makeTree(tmpTree);
             }
             return tree;
         }
         
-        private CallTree makeTree() {
-            CallTree tree = tmpTree;
+        protected CallTree makeTree(CallTree tree) {
             sumUpOverheadTime(tree);
             subtractOverheadTime(tree);
             setChildrenTime(tree);
-            filterMethods(tree);
             return tree;
         }
-
-        private void filterMethods(CallTree tree) {
-            tree.visit(new CallTree.NodeVisitor() {
-                @Override
-                public void visit(CallTree.Node node) { }
-                @Override
-                public void exit(CallTree.Node node) {
-                    CallInfo call = node.getData();
-                    if (call instanceof MethodCallInfo) {
-                        MethodCallInfo methodCall = (MethodCallInfo) call;
-                        if (!methodFilter.accept(methodCall.getMethod())) {
-                            CallTree.Node parentNode = node.getParent();
-                            parentNode.removeChild(node);
-                            for (CallTree.Node child : node.getChildren()) {
-                                parentNode.addChild(child);
-                            }
-                        }
-                    }
-                }
-            });
-        }
         
         private void sumUpOverheadTime(CallTree tree) {
             tree.visit(new CallTree.NodeVisitor() {
@@ -182,6 +656,12 @@ public class CallInterceptor {
                             parentCall.setTime(parentCall.getTime() + call.getTime());
                         }
                         parentCall.setChildrenTime(parentCall.getChildrenTime() + call.getTime());
+                        if (call.hasMetrics()) {
+                            if (parentCall instanceof ThreadRunInfo) {
+                                parentCall.getMetrics().addTotals(call.getMetrics());
+                            }
+                            parentCall.getMetrics().addChildren(call.getMetrics());
+                        }
                     }
                 }
             });
@@ -189,4 +669,631 @@ public class CallInterceptor {
 
     }
 
-}
\ No newline at end of file
+    /**
+     * A local interceptor which merges the calls of the same method under the same parent into one node.
+     * The merged node has the number of the calls, the sum of their time and the extremes of them.
+     */
+    static class AggregatingLocalInterceptor extends LocalInterceptor {
+
+        private Frame[] frames;
+        private int depth;
+        // the overhead time of the last call is set after afterInvoke() returns,
+        // so it is handed to the parent at the next event.
+        private MethodCallInfo pendingCall;
+        private Frame pendingParentFrame;
+
+        public AggregatingLocalInterceptor() {
+            this(NO_METRICS);
+        }
+
+        public AggregatingLocalInterceptor(Metric[] metrics) {
+            this(new ThreadRunInfo(Thread.currentThread()), metrics);
+        }
+
+        public AggregatingLocalInterceptor(Thread thread) {
+            this(new ThreadRunInfo(thread));
+        }
+
+        public AggregatingLocalInterceptor(ThreadRunInfo threadRun) {
+            this(threadRun, NO_METRICS);
+        }
+
+        public AggregatingLocalInterceptor(ThreadRunInfo threadRun, Metric[] metrics) {
+            super(new CallTree(new AggregatedNode(threadRun)), metrics);
+            frames = new Frame[16];
+            for (int i = 0; i < frames.length; i++) {
+                frames[i] = new Frame(metrics.length);
+            }
+            frames[0].node = (AggregatedNode) getTmpTree().getRoot();
+        }
+
+        @Override
+        public void beforeInvoke(MethodCallInfo methodCall) {
+            flushPendingOverheadTime();
+            AggregatedNode parentNode = frames[depth].node;
+            AggregatedNode node = parentNode.findChild(methodCall.getMethodId());
+            if (node == null) {
+                MethodCallInfo aggregatedCall = new MethodCallInfo(methodCall.getMethod());
+                aggregatedCall.setCalls(0);
+                node = new AggregatedNode(aggregatedCall);
+                parentNode.addChild(node);
+            }
+            pushFrame(node);
+        }
+
+        @Override
+        public void enter(int methodId, long interceptStartTime) {
+            readMetrics(metricValues, 0);
+            AggregatedNode parentNode = frames[depth].node;
+            AggregatedNode node = parentNode.findChild(methodId);
+            if (node == null) {
+                MethodCallInfo aggregatedCall = new MethodCallInfo(methodId);
+                aggregatedCall.setCalls(0);
+                node = new AggregatedNode(aggregatedCall);
+                parentNode.addChild(node);
+            }
+            Frame frame = pushFrame(node);
+            System.arraycopy(metricValues, 0, frame.enterValues, 0, metrics.length);
+            addOverheadBytes();
+            addOverheadTime(interceptStartTime);
+            frame.enterTime = time(System.nanoTime());
+        }
+
+        @Override
+        public void afterInvoke(MethodCallInfo methodCall) {
+            flushPendingOverheadTime();
+            Frame frame = frames[depth];
+            // the time of the call without the overhead of the descendant calls
+            MethodCallInfo aggregatedCall = popFrame(methodCall.getTime() - frame.childrenOverheadTime);
+            if (methodCall.hasMetrics()) {
+                aggregatedCall.getMetrics().addTotals(methodCall.getMetrics());
+            }
+            pendingCall = methodCall;
+            pendingParentFrame = frames[depth];
+        }
+
+        @Override
+        public void exit(int methodId) {
+            long executeEndTime = System.nanoTime();
+            Frame frame = frames[depth];
+            readMetrics(metricValues, 0);
+            MethodCallInfo aggregatedCall = popFrame(time(executeEndTime) - frame.enterTime);
+            if (metrics.length > 0) {
+                MetricValues values = aggregatedCall.getMetrics();
+                for (int i = 0; i < metrics.length; i++) {
+                    values.set(metrics[i], values.get(metrics[i]) + metricValues[i] - frame.enterValues[i]);
+                }
+            }
+            addOverheadBytes();
+            addOverheadTime(executeEndTime);
+        }
+
+        private Frame pushFrame(AggregatedNode node) {
+            if (++depth == frames.length) {
+                Frame[] newFrames = new Frame[frames.length * 2];
+                System.arraycopy(frames, 0, newFrames, 0, frames.length);
+                for (int i = frames.length; i < newFrames.length; i++) {
+                    newFrames[i] = new Frame(metrics.length);
+                }
+                frames = newFrames;
+            }
+            Frame frame = frames[depth];
+            frame.node = node;
+            frame.childrenTime = 0;
+            frame.childrenOverheadTime = 0;
+            return frame;
+        }
+
+        private MethodCallInfo popFrame(long time) {
+            Frame frame = frames[depth--];
+            Frame parentFrame = frames[depth];
+            long selfTime = time - frame.childrenTime;
+            MethodCallInfo aggregatedCall = (MethodCallInfo) frame.node.getData();
+            if (aggregatedCall.getCalls() == 0) {
+                aggregatedCall.setMinTime(time);
+                aggregatedCall.setMinSelfTime(selfTime);
+            } else {
+                aggregatedCall.setMinTime(Math.min(aggregatedCall.getMinTime(), time));
+                aggregatedCall.setMinSelfTime(Math.min(aggregatedCall.getMinSelfTime(), selfTime));
+            }
+            aggregatedCall.setMaxTime(Math.max(aggregatedCall.getMaxTime(), time));
+            aggregatedCall.setMaxSelfTime(Math.max(aggregatedCall.getMaxSelfTime(), selfTime));
+            aggregatedCall.setCalls(aggregatedCall.getCalls() + 1);
+            aggregatedCall.setTime(aggregatedCall.getTime() + time);
+            parentFrame.childrenTime += time;
+            parentFrame.childrenOverheadTime += frame.childrenOverheadTime;
+            frame.node = null;
+            return aggregatedCall;
+        }
+
+        private void flushPendingOverheadTime() {
+            if (pendingCall != null) {
+                pendingParentFrame.childrenOverheadTime += pendingCall.getOverheadTime();
+                pendingCall = null;
+                pendingParentFrame = null;
+            }
+        }
+
+        @Override
+        public CallTree getTree() {
+            flushPendingOverheadTime();
+            return super.getTree();
+        }
+
+        private static class Frame {
+            AggregatedNode node;
+            long enterTime;
+            long childrenTime;
+            long childrenOverheadTime;
+            long[] enterValues;
+
+            Frame(int metricCount) {
+                enterValues = new long[metricCount];
+            }
+        }
+
+    }
+
+    /**
+     * A local interceptor which records the calls as the events in a primitive buffer
+     * and builds the call tree from the events when it is requested, so that profiling
+     * does not allocate any object per call. The tree is a {@link CompactCallTree},
+     * so it does not allocate any object per call either.
+     */
+    static class EventLocalInterceptor extends LocalInterceptor {
+
+        // the windows of the call interceptor. the interceptor itself is not referred to, so this local interceptor,
+        // which is the value of its thread local, does not keep the thread local from being collected.
+        private Windows windows;
+        private EventBuffer events;
+        private int window;
+        // the buffer which has been aggregated and can be reused for the next window
+        private volatile EventBuffer spare;
+        private SuppliedClock suppliedClock = new SuppliedClock();
+
+        public EventLocalInterceptor(Metric[] metrics, Windows windows) {
+            super(metrics);
+            this.windows = windows;
+            this.window = windows.window;
+            events = new EventBuffer(metrics.length);
+        }
+
+        private void checkWindow() {
+            int currentWindow = windows.window;
+            if (currentWindow != window && !windows.closed) {
+                window = currentWindow;
+                if (!events.isEmpty()) {
+                    // the calls which have not finished are split at the start of the window
+                    windows.finishedEvents.add(new FinishedEvents(this, events, time(windows.startTime), true));
+                    EventBuffer next = spare;
+                    spare = null;
+                    events = next != null ? next : new EventBuffer(metrics.length);
+                }
+            }
+        }
+
+        /**
+         * Hands over the events which have not been handed over yet, after the thread has terminated.
+         */
+        void handOver() {
+            handOverLast(System.nanoTime());
+            events = null;
+            spare = null;
+        }
+
+        /**
+         * Hands over the events which have not been handed over yet as the last ones of the thread,
+         * without taking the buffer from the thread.
+         */
+        void handOverLast(long nanoTime) {
+            if (events != null && !events.isEmpty()) {
+                windows.finishedEvents.add(new FinishedEvents(this, events, time(nanoTime), false));
+            }
+        }
+
+        /**
+         * Gives back the buffer which has been handed over to reuse it.
+         */
+        void recycle(EventBuffer buffer) {
+            buffer.clear();
+            // the buffer can be lost if it races with the swap, which is harmless.
+            spare = buffer;
+        }
+
+        @Override
+        public void beforeInvoke(MethodCallInfo methodCall) {
+            readMetrics(metricValues, 0);
+            checkWindow();
+            long enterTime = suppliedClock.enter(time(System.nanoTime()));
+            events.add(EventBuffer.ENTER, methodCall.getMethodId(), enterTime, metricValues);
+        }
+
+        @Override
+        public void afterInvoke(MethodCallInfo methodCall) {
+            readMetrics(metricValues, 0);
+            checkWindow();
+            events.add(EventBuffer.EXIT, methodCall.getMethodId(), suppliedClock.exit(methodCall), metricValues);
+        }
+
+        @Override
+        public void enter(int methodId, long interceptStartTime) {
+            readMetrics(metricValues, 0);
+            checkWindow();
+            addOverheadTime(interceptStartTime);
+            events.add(EventBuffer.ENTER, methodId, time(System.nanoTime()), metricValues);
+            addOverheadBytes();
+        }
+
+        @Override
+        public void exit(int methodId) {
+            long executeEndTime = System.nanoTime();
+            readMetrics(metricValues, 0);
+            checkWindow();
+            events.add(EventBuffer.EXIT, methodId, time(executeEndTime), metricValues);
+            addOverheadBytes();
+            addOverheadTime(executeEndTime);
+        }
+
+        /**
+         * Returns the tree of the events which have been recorded so far. This can be called while
+         * the thread is recording the events, and the calls which have not finished yet are regarded
+         * as finished at the time of this call. Their metrics are the ones at the last event.
+         */
+        @Override
+        public CallTree getTree() {
+            // the overhead time is read without synchronization, so the time of the unfinished calls can be
+            // a little longer than the actual one but never shorter than the time until the last event.
+            long snapshotTime = time(System.nanoTime());
+            CompactCallTree tree = new CompactCallTree(new ThreadRunInfo(getThreadRun().getThread()), metrics);
+            replay(tree, snapshotTime);
+            // the time of the thread is the sum of the calls in it
+            tree.setTime(0, tree.getChildrenTime(0));
+            for (int i = 0; i < metrics.length; i++) {
+                tree.setMetric(0, i, tree.getChildrenMetric(0, i));
+            }
+            return tree;
+        }
+
+        private void replay(CompactCallTree tree, long snapshotTime) {
+            // the stack of the nodes of the calls. the bottom of it is the root.
+            int[] nodes = new int[16];
+            long[] enterTimes = new long[16];
+            int metricCount = metrics.length;
+            long[] enterValues = new long[enterTimes.length * metricCount];
+            long[] lastValues = new long[metricCount];
+            int depth = 0;
+            long lastTime = 0;
+            EventBuffer.Reader reader = events.reader();
+            while (reader.next()) {
+                lastTime = reader.getTime();
+                for (int i = 0; i < metricCount; i++) {
+                    lastValues[i] = reader.getValue(i);
+                }
+                if (!reader.isExit()) {
+                    int node = tree.addCall(nodes[depth], reader.getMethodId());
+                    if (++depth == nodes.length) {
+                        nodes = Arrays.copyOf(nodes, depth * 2);
+                        enterTimes = Arrays.copyOf(enterTimes, depth * 2);
+                        enterValues = Arrays.copyOf(enterValues, depth * 2 * metricCount);
+                    }
+                    nodes[depth] = node;
+                    enterTimes[depth] = lastTime;
+                    System.arraycopy(lastValues, 0, enterValues, depth * metricCount, metricCount);
+                } else if (depth > 0) {
+                    exitNode(tree, nodes, depth, lastTime - enterTimes[depth], enterValues, lastValues);
+                    depth--;
+                }
+            }
+            long endTime = Math.max(lastTime, snapshotTime);
+            for (; depth > 0; depth--) {
+                exitNode(tree, nodes, depth, endTime - enterTimes[depth], enterValues, lastValues);
+            }
+        }
+
+        private void exitNode(CompactCallTree tree, int[] nodes, int depth, long time,
+                              long[] enterValues, long[] exitValues) {
+            int node = nodes[depth];
+            int parent = nodes[depth - 1];
+            tree.setTime(node, time);
+            tree.setChildrenTime(parent, tree.getChildrenTime(parent) + time);
+            for (int i = 0, offset = depth * metrics.length; i < metrics.length; i++) {
+                long value = exitValues[i] - enterValues[offset + i];
+                tree.setMetric(node, i, value);
+                tree.setChildrenMetric(parent, i, tree.getChildrenMetric(parent, i) + value);
+            }
+        }
+
+    }
+
+    /**
+     * A local interceptor which updates the counters of the methods instead of building the call tree.
+     * A call of the method which calls itself directly is merged into the caller as the flat report does.
+     */
+    static class FlatLocalInterceptor extends LocalInterceptor {
+
+        private MethodCounters counters;
+        // the stack of the calls. the bottom of it is the thread.
+        private int[] methodIds;
+        private long[] enterTimes;
+        private long[] childrenTimes;
+        // the self time of the recursive calls which are merged into the call
+        private long[] recursiveSelfTimes;
+        // the same as the times for each metric
+        private long[] enterValues;
+        private long[] childrenValues;
+        private long[] recursiveSelfValues;
+        private int depth;
+        private SuppliedClock suppliedClock = new SuppliedClock();
+
+        public FlatLocalInterceptor() {
+            this(NO_METRICS);
+        }
+
+        public FlatLocalInterceptor(Metric[] metrics) {
+            super(metrics);
+            counters = new MethodCounters(getThreadRun().getThread(), metrics);
+            methodIds = new int[16];
+            enterTimes = new long[16];
+            childrenTimes = new long[16];
+            recursiveSelfTimes = new long[16];
+            enterValues = new long[16 * metrics.length];
+            childrenValues = new long[16 * metrics.length];
+            recursiveSelfValues = new long[16 * metrics.length];
+        }
+
+        MethodCounters getCounters() {
+            return counters;
+        }
+
+        @Override
+        public void beforeInvoke(MethodCallInfo methodCall) {
+            readMetrics(metricValues, 0);
+            push(methodCall.getMethodId());
+            enterTimes[depth] = suppliedClock.enter(time(System.nanoTime()));
+        }
+
+        @Override
+        public void afterInvoke(MethodCallInfo methodCall) {
+            long exitTime = suppliedClock.exit(methodCall);
+            if (depth > 0) {
+                readMetrics(metricValues, 0);
+                pop(exitTime);
+            }
+        }
+
+        @Override
+        public void enter(int methodId, long interceptStartTime) {
+            readMetrics(metricValues, 0);
+            push(methodId);
+            addOverheadBytes();
+            addOverheadTime(interceptStartTime);
+            enterTimes[depth] = time(System.nanoTime());
+        }
+
+        @Override
+        public void exit(int methodId) {
+            long executeEndTime = System.nanoTime();
+            if (depth > 0) {
+                readMetrics(metricValues, 0);
+                pop(time(executeEndTime));
+                addOverheadBytes();
+            }
+            addOverheadTime(executeEndTime);
+        }
+
+        // pushes the call whose metrics have been read. its enter time is set by the caller.
+        private void push(int methodId) {
+            if (++depth == methodIds.length) {
+                int length = depth * 2;
+                methodIds = Arrays.copyOf(methodIds, length);
+                enterTimes = Arrays.copyOf(enterTimes, length);
+                childrenTimes = Arrays.copyOf(childrenTimes, length);
+                recursiveSelfTimes = Arrays.copyOf(recursiveSelfTimes, length);
+                enterValues = Arrays.copyOf(enterValues, length * metrics.length);
+                childrenValues = Arrays.copyOf(childrenValues, length * metrics.length);
+                recursiveSelfValues = Arrays.copyOf(recursiveSelfValues, length * metrics.length);
+            }
+            methodIds[depth] = methodId;
+            childrenTimes[depth] = 0;
+            recursiveSelfTimes[depth] = 0;
+            if (metrics.length > 0) {
+                int offset = depth * metrics.length;
+                Arrays.fill(childrenValues, offset, offset + metrics.length, 0L);
+                Arrays.fill(recursiveSelfValues, offset, offset + metrics.length, 0L);
+                System.arraycopy(metricValues, 0, enterValues, offset, metrics.length);
+            }
+        }
+
+        // pops the call whose metrics have been read, which ends at the time
+        private void pop(long exitTime) {
+            long time = exitTime - enterTimes[depth];
+            long selfTime = time - childrenTimes[depth] + recursiveSelfTimes[depth];
+            int theMethodId = methodIds[depth--];
+            boolean recursive = depth > 0 && methodIds[depth] == theMethodId;
+            if (recursive) {
+                recursiveSelfTimes[depth] += selfTime;
+            } else {
+                counters.add(theMethodId, time, selfTime);
+            }
+            childrenTimes[depth] += time;
+            for (int i = 0, offset = depth * metrics.length; i < metrics.length; i++) {
+                int callOffset = offset + metrics.length;
+                long value = metricValues[i] - enterValues[callOffset + i];
+                long selfValue = value - childrenValues[callOffset + i] + recursiveSelfValues[callOffset + i];
+                if (recursive) {
+                    recursiveSelfValues[offset + i] += selfValue;
+                } else {
+                    counters.addMetric(theMethodId, i, value, selfValue);
+                }
+                childrenValues[offset + i] += value;
+            }
+        }
+
+    }
+
+    /**
+     * The clock of the calls which are fed by beforeInvoke() and afterInvoke() with their own times
+     * for the local interceptors which record the times when the calls start and end. The outermost call
+     * starts at the current time, and each call ends when its time without the overhead time of the calls
+     * in it has passed from its start, so the times are the same as the ones which the call tree takes.
+     * The overhead time of a call can be set after afterInvoke() returns, so it is handed to the parent
+     * at the next call.
+     */
+    static class SuppliedClock {
+
+        private long now;
+        // the stack of the calls. the bottom of it is the thread.
+        private long[] enterTimes = new long[16];
+        private long[] childrenOverheadTimes = new long[16];
+        private int depth;
+        private MethodCallInfo pendingCall;
+
+        /**
+         * Starts a call.
+         * @param currentTime
+         *      the current time, which is the start of the call if it is the outermost one
+         * @return the time when the call starts
+         */
+        long enter(long currentTime) {
+            flushPendingOverheadTime();
+            if (depth == 0) {
+                now = currentTime;
+            }
+            if (++depth == enterTimes.length) {
+                enterTimes = Arrays.copyOf(enterTimes, depth * 2);
+                childrenOverheadTimes = Arrays.copyOf(childrenOverheadTimes, depth * 2);
+            }
+            enterTimes[depth] = now;
+            childrenOverheadTimes[depth] = 0;
+            return now;
+        }
+
+        /**
+         * Ends the call which has started last.
+         * @param methodCall
+         *      the call which has its time
+         * @return the time when the call ends
+         */
+        long exit(MethodCallInfo methodCall) {
+            flushPendingOverheadTime();
+            if (depth > 0) {
+                now = enterTimes[depth] + methodCall.getTime() - childrenOverheadTimes[depth];
+                childrenOverheadTimes[depth - 1] += childrenOverheadTimes[depth];
+                depth--;
+                pendingCall = methodCall;
+            }
+            return now;
+        }
+
+        private void flushPendingOverheadTime() {
+            if (pendingCall != null) {
+                childrenOverheadTimes[depth] += pendingCall.getOverheadTime();
+                pendingCall = null;
+            }
+        }
+
+    }
+
+    /**
+     * The windows of the continuous profiling, which are started by the aggregator and checked by the threads.
+     */
+    static class Windows {
+
+        // the number of the windows which have been started
+        volatile int window;
+        // the time when the last window started
+        volatile long startTime;
+        // true when the last window has been closed, after which the threads do not hand over their events
+        volatile boolean closed;
+        final Queue<FinishedEvents> finishedEvents = new ConcurrentLinkedQueue<FinishedEvents>();
+
+    }
+
+    /**
+     * The events which a thread has handed over at the boundary of the windows.
+     */
+    static class FinishedEvents {
+
+        private EventLocalInterceptor owner;
+        private EventBuffer events;
+        private long endTime;
+        private boolean recyclable;
+
+        /**
+         * @param owner
+         *      the local interceptor which has recorded the events
+         * @param events
+         *      the events
+         * @param endTime
+         *      the time when the window of the events ended in the clock of the events
+         * @param recyclable
+         *      true if the buffer has been taken from the thread and can be reused
+         */
+        FinishedEvents(EventLocalInterceptor owner, EventBuffer events, long endTime, boolean recyclable) {
+            this.owner = owner;
+            this.events = events;
+            this.endTime = endTime;
+            this.recyclable = recyclable;
+        }
+
+        /**
+         * Returns the time at which the calls which have not finished are split.
+         */
+        long getEndTime() {
+            return endTime;
+        }
+
+        /**
+         * Returns whether these are the last events of the thread, after which the thread is not reported.
+         */
+        boolean isLast() {
+            return !recyclable;
+        }
+
+        ThreadRunInfo getThreadRun() {
+            return owner.getThreadRun();
+        }
+
+        EventBuffer getEvents() {
+            return events;
+        }
+
+        void recycle() {
+            if (recyclable) {
+                owner.recycle(events);
+            }
+            events = null;
+        }
+
+    }
+
+    /**
+     * A node which can find its child by the method without allocation.
+     */
+    static class AggregatedNode extends CallTree.Node {
+
+        private AggregatedNode firstChild;
+        private AggregatedNode nextSibling;
+
+        public AggregatedNode(CallInfo data) {
+            super(data);
+        }
+
+        public AggregatedNode findChild(int methodId) {
+            for (AggregatedNode child = firstChild; child != null; child = child.nextSibling) {
+                if (((MethodCallInfo) child.getData()).getMethodId() == methodId) {
+                    return child;
+                }
+            }
+            return null;
+        }
+
+        public void addChild(AggregatedNode child) {
+            super.addChild(child);
+            child.nextSibling = firstChild;
+            firstChild = child;
+        }
+
+    }
+
+}
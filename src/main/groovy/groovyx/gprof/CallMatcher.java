@@ -15,73 +15,157 @@
  */
 package groovyx.gprof;
 
+/**
+ * A matcher of a pattern which supports the following wildcards:
+ * <ul>
+ * <li>* zero or more characters</li>
+ * <li>? exactly one character</li>
+ * </ul>
+ * The pattern is compiled up front into the simplest matcher for its shape,
+ * and matching does not allocate.
+ */
 public class CallMatcher {
 
-    private char[] pattern;
+    enum Kind {
+        /** "abc" */
+        EXACT,
+        /** "abc*" */
+        PREFIX,
+        /** "*abc" */
+        SUFFIX,
+        /** "*abc*" */
+        CONTAINS,
+        /** "*" */
+        ANY,
+        /** anything else */
+        GENERAL,
+    }
+
+    private String pattern;
+    private Kind kind;
+    // the pattern without the redundant wildcards, or the literal part of it for the fast paths
+    private String compiled;
 
     public CallMatcher(String pattern) {
-        this.pattern = (pattern + '\0').toCharArray();
+        this.pattern = pattern;
+        compile(normalize(pattern));
+    }
+
+    /**
+     * Collapses the consecutive '*'s into one.
+     */
+    static String normalize(String pattern) {
+        StringBuilder sb = new StringBuilder(pattern.length());
+        for (int i = 0, n = pattern.length(); i < n; i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' && sb.length() > 0 && sb.charAt(sb.length() - 1) == '*') {
+                continue;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private void compile(String pattern) {
+        int n = pattern.length();
+        int stars = 0;
+        boolean question = false;
+        for (int i = 0; i < n; i++) {
+            char c = pattern.charAt(i);
+            if (c == '*') {
+                stars++;
+            } else if (c == '?') {
+                question = true;
+            }
+        }
+        boolean leading = n > 0 && pattern.charAt(0) == '*';
+        boolean trailing = n > 0 && pattern.charAt(n - 1) == '*';
+        if (question) {
+            kind = Kind.GENERAL;
+            compiled = pattern;
+        } else if (stars == 0) {
+            kind = Kind.EXACT;
+            compiled = pattern;
+        } else if (n == 1) {
+            kind = Kind.ANY;
+            compiled = "";
+        } else if (stars == 1 && trailing) {
+            kind = Kind.PREFIX;
+            compiled = pattern.substring(0, n - 1);
+        } else if (stars == 1 && leading) {
+            kind = Kind.SUFFIX;
+            compiled = pattern.substring(1);
+        } else if (stars == 2 && leading && trailing) {
+            kind = Kind.CONTAINS;
+            compiled = pattern.substring(1, n - 1);
+        } else {
+            kind = Kind.GENERAL;
+            compiled = pattern;
+        }
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    String getPattern() {
+        return pattern;
     }
 
     public boolean match(String text) {
-        char[] textChars = (text + '\0').toCharArray();
+        switch (kind) {
+            case EXACT:
+                return text.equals(compiled);
+            case PREFIX:
+                return text.startsWith(compiled);
+            case SUFFIX:
+                return text.endsWith(compiled);
+            case CONTAINS:
+                return text.indexOf(compiled) >= 0;
+            case ANY:
+                return true;
+            default:
+                return matchGeneral(compiled, text);
+        }
+    }
+
+    private static boolean matchGeneral(String pattern, String text) {
+        int patternLength = pattern.length();
+        int textLength = text.length();
         int patternIndex = 0;
         int textIndex = 0;
-        while (true) {
-            char patternChar = pattern[patternIndex++];
-            if (patternChar == '\0') {
-                if (textChars[textIndex] != '\0') {
-                    // The text has more character but the pattern reached \0
-                    return false;
+        // the position of the last '*' and the text position it is retried from
+        int starIndex = -1;
+        int starTextIndex = 0;
+        while (textIndex < textLength) {
+            if (patternIndex < patternLength) {
+                char patternChar = pattern.charAt(patternIndex);
+                if (patternChar == '*') {
+                    starIndex = patternIndex++;
+                    starTextIndex = textIndex;
+                    continue;
                 }
-                // Completed.
-                return true;
-            } else if (patternChar == '*') {
-                patternChar = pattern[patternIndex];
-                if (patternChar == '\0') {
-                    // If the pattern ends with "*", completed.
-                    return true;
-                }
-                // Skip unmatched characters.
-                while (true) {
-                    patternChar = pattern[patternIndex];
-                    if (patternChar == '\0' || patternChar == '*' || patternChar == '?') {
-                        break;
-                    }
-                    while (true) {
-                        char textChar = textChars[textIndex++];
-                        if (textChar == '\0') {
-                            // The pattern requires more character but the text reached the \0.
-                            return false;
-                        }
-                        if (textChar == patternChar) {
-                            break;
-                        }
-                    }
+                if (patternChar == '?' || patternChar == text.charAt(textIndex)) {
                     patternIndex++;
+                    textIndex++;
+                    continue;
                 }
-            } else if (patternChar == '?') {
-                char textChar = textChars[textIndex++];
-                if (textChar == '\0') {
-                    // The pattern requires more character but the text reached the \0.
-                    return false;
-                }
-                // Otherwise, just skip the character.
-            } else {
-                char textChar = textChars[textIndex++];
-                if (textChar == '\0') {
-                    // The pattern requires more character but the text reached the \0.
-                    return false;
-                }
-                if (textChar != patternChar) {
-                    return false;
-                }
             }
+            if (starIndex < 0) {
+                return false;
+            }
+            // let the last '*' consume one more character and retry.
+            patternIndex = starIndex + 1;
+            textIndex = ++starTextIndex;
+        }
+        while (patternIndex < patternLength && pattern.charAt(patternIndex) == '*') {
+            patternIndex++;
         }
+        return patternIndex == patternLength;
     }
 
     @Override
     public String toString() {
-        return new String(pattern);
+        return pattern;
     }
 }
@@ -16,6 +16,7 @@
 package groovyx.gprof;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -24,13 +25,18 @@ public class CallTree {
     private Node root;
 
     public CallTree(Thread thread) {
-        this.root = new Node(new ThreadRunInfo(thread));
+        this(new Node(new ThreadRunInfo(thread)));
     }
 
+    public CallTree(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Visits the nodes in the depth-first order. The tree must not be modified while it is visited.
+     */
     public void visit(NodeVisitor visitor) {
-        visitor.visit(root);
-        root.visit(visitor);
-        visitor.exit(root);
+        Node.traverse(root, visitor, true);
     }
 
     public Node getRoot() {
@@ -78,6 +84,18 @@ public class CallTree {
             return Collections.unmodifiableList(children);
         }
 
+        /**
+         * Returns the number of the children, which can be iterated by {@link #getChild(int)}
+         * without making a view of the list.
+         */
+        public int getChildCount() {
+            return children.size();
+        }
+
+        public Node getChild(int index) {
+            return children.get(index);
+        }
+
         public boolean hasChildren() {
             return children != null;
         }
@@ -86,21 +104,63 @@ public class CallTree {
             return data;
         }
 
+        /**
+         * Returns the data of the node followed by the data of the descendants in the depth-first order,
+         * one per line.
+         */
         @Override
         public String toString() {
-            StringBuilder sb = new StringBuilder(String.format("%s", data));
-            for (Node child : getChildren()) {
-                sb.append("\n");
-                sb.append(String.format("    %s", child));
-            }
+            final StringBuilder sb = new StringBuilder(String.valueOf(getData()));
+            visit(new NodeVisitor() {
+                @Override
+                public void visit(Node node) {
+                    sb.append("\n    ").append(node.getData());
+                }
+            });
             return sb.toString();
         }
 
+        /**
+         * Visits the descendants in the depth-first order. The tree must not be modified while it is visited.
+         */
         public void visit(NodeVisitor visitor) {
-            for (Node child : new ArrayList<Node>(getChildren())) {
-                visitor.visit(child);
-                child.visit(visitor);
-                visitor.exit(child);
+            traverse(this, visitor, false);
+        }
+
+        /**
+         * Visits the nodes under the start node with an explicit stack instead of the recursion,
+         * so a deep tree does not overflow the stack and a node costs no allocation.
+         */
+        static void traverse(Node start, NodeVisitor visitor, boolean includeStart) {
+            Node[] nodes = new Node[16];
+            // the index of the next child to visit for each node in the stack
+            int[] nextChildren = new int[16];
+            int depth = 0;
+            if (includeStart) {
+                visitor.visit(start);
+            }
+            nodes[depth++] = start;
+            while (depth > 0) {
+                Node node = nodes[depth - 1];
+                int next = nextChildren[depth - 1];
+                if (next < node.getChildCount()) {
+                    nextChildren[depth - 1] = next + 1;
+                    Node child = node.getChild(next);
+                    visitor.visit(child);
+                    if (depth == nodes.length) {
+                        nodes = Arrays.copyOf(nodes, depth * 2);
+                        nextChildren = Arrays.copyOf(nextChildren, depth * 2);
+                    }
+                    nodes[depth] = child;
+                    nextChildren[depth] = 0;
+                    depth++;
+                } else {
+                    depth--;
+                    nodes[depth] = null;
+                    if (depth > 0 || includeStart) {
+                        visitor.exit(node);
+                    }
+                }
             }
         }
     }
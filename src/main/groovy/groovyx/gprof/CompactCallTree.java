@@ -0,0 +1,547 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof;
+
+import java.util.*;
+
+/**
+ * A call tree whose nodes are kept in the columns of primitive arrays instead of the objects, which takes
+ * about 32 bytes per call instead of more than 100 bytes of {@link CallTree.Node} and {@link MethodCallInfo}.
+ * <p>
+ * The nodes are numbered in the order they are added and the node 0 is the root. A node is a call of
+ * a method or, if its method id is 0, the run of a thread. The nodes must be added in the depth-first order,
+ * that is, a node is added under the last node or one of its ancestors, as the calls are recorded.
+ * </p>
+ * <p>
+ * The nodes are presented as {@link CallTree.Node} when they are visited, so the normalizers of the reports
+ * run on this tree as well. They are made on demand and cannot be modified. The data of the nodes which are
+ * being visited, including their parents, is written back to the tree when they are exited, while the data
+ * of the other nodes is a copy.
+ * </p>
+ */
+public class CompactCallTree extends CallTree {
+
+    private static final int NONE = -1;
+    private static final Metric[] NO_METRICS = new Metric[0];
+
+    private int size;
+    private int[] parents;
+    private int[] firstChildren;
+    private int[] nextSiblings;
+    private int[] methodIds;
+    private long[] times;
+    private long[] childrenTimes;
+    // created when the overhead time of any node is set
+    private long[] overheadTimes;
+    private Metric[] metrics;
+    // the total values and the children values of the metrics of each node
+    private long[] metricValues;
+    private long[] childrenMetricValues;
+    private Map<Integer, ThreadRunInfo> threadRuns = new HashMap<Integer, ThreadRunInfo>();
+
+    public CompactCallTree(ThreadRunInfo threadRun) {
+        this(threadRun, NO_METRICS);
+    }
+
+    /**
+     * @param threadRun
+     *      the run of the thread of the root
+     * @param metrics
+     *      the metrics which are measured for each call
+     */
+    public CompactCallTree(ThreadRunInfo threadRun, Metric[] metrics) {
+        super((Node) null);
+        this.metrics = metrics;
+        int capacity = 64;
+        parents = new int[capacity];
+        firstChildren = new int[capacity];
+        nextSiblings = new int[capacity];
+        methodIds = new int[capacity];
+        times = new long[capacity];
+        childrenTimes = new long[capacity];
+        metricValues = new long[capacity * metrics.length];
+        childrenMetricValues = new long[capacity * metrics.length];
+        addThreadRun(NONE, threadRun);
+    }
+
+    /**
+     * Adds a call of the method.
+     * @param parent
+     *      the parent node, which is the last node or one of its ancestors
+     * @param methodId
+     *      the id of the method
+     * @return the node
+     */
+    public int addCall(int parent, int methodId) {
+        if (methodId <= 0) {
+            throw new IllegalArgumentException("Invalid method id: " + methodId);
+        }
+        return add(parent, methodId);
+    }
+
+    /**
+     * Adds a run of a thread.
+     * @param parent
+     *      the parent node, which is the last node or one of its ancestors
+     * @param threadRun
+     *      the run of the thread
+     * @return the node
+     */
+    public int addThreadRun(int parent, ThreadRunInfo threadRun) {
+        int node = add(parent, 0);
+        threadRuns.put(node, threadRun);
+        return node;
+    }
+
+    private int add(int parent, int methodId) {
+        int node = size;
+        if (node > 0 && (parent < 0 || parent >= node)) {
+            throw new IllegalArgumentException("No such node: " + parent);
+        }
+        // the previous sibling is the child of the parent on the path from the last node to the parent
+        int previous = node - 1;
+        if (parent != NONE) {
+            while (previous != parent && parents[previous] != parent) {
+                previous = parents[previous];
+                if (previous < parent) {
+                    throw new IllegalArgumentException("The nodes must be added in the depth-first order: " + parent);
+                }
+            }
+        }
+        if (node == parents.length) {
+            grow(node * 2);
+        }
+        parents[node] = parent;
+        firstChildren[node] = NONE;
+        nextSiblings[node] = NONE;
+        methodIds[node] = methodId;
+        if (parent != NONE) {
+            if (previous == parent) {
+                firstChildren[parent] = node;
+            } else {
+                nextSiblings[previous] = node;
+            }
+        }
+        size++;
+        return node;
+    }
+
+    private void grow(int capacity) {
+        parents = Arrays.copyOf(parents, capacity);
+        firstChildren = Arrays.copyOf(firstChildren, capacity);
+        nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+        methodIds = Arrays.copyOf(methodIds, capacity);
+        times = Arrays.copyOf(times, capacity);
+        childrenTimes = Arrays.copyOf(childrenTimes, capacity);
+        if (overheadTimes != null) {
+            overheadTimes = Arrays.copyOf(overheadTimes, capacity);
+        }
+        metricValues = Arrays.copyOf(metricValues, capacity * metrics.length);
+        childrenMetricValues = Arrays.copyOf(childrenMetricValues, capacity * metrics.length);
+    }
+
+    /**
+     * Releases the capacity which is not used by the nodes, e.g. when the tree is kept after its thread terminates.
+     */
+    public void trimToSize() {
+        if (size < parents.length) {
+            grow(size);
+        }
+    }
+
+    /**
+     * Returns the number of the nodes including the root.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the parent of the node, or -1 if the node is the root.
+     */
+    public int getParent(int node) {
+        return parents[node];
+    }
+
+    /**
+     * Returns the first child of the node, or -1 if the node has no child.
+     */
+    public int getFirstChild(int node) {
+        return firstChildren[node];
+    }
+
+    /**
+     * Returns the next sibling of the node, or -1 if the node is the last child.
+     */
+    public int getNextSibling(int node) {
+        return nextSiblings[node];
+    }
+
+    /**
+     * Returns the id of the method of the call, or 0 if the node is the run of a thread.
+     */
+    public int getMethodId(int node) {
+        return methodIds[node];
+    }
+
+    public long getTime(int node) {
+        return times[node];
+    }
+
+    public void setTime(int node, long time) {
+        times[node] = time;
+    }
+
+    public long getChildrenTime(int node) {
+        return childrenTimes[node];
+    }
+
+    public void setChildrenTime(int node, long childrenTime) {
+        childrenTimes[node] = childrenTime;
+    }
+
+    public long getOverheadTime(int node) {
+        return overheadTimes != null ? overheadTimes[node] : 0;
+    }
+
+    public void setOverheadTime(int node, long overheadTime) {
+        if (overheadTimes == null) {
+            if (overheadTime == 0) {
+                return;
+            }
+            overheadTimes = new long[parents.length];
+        }
+        overheadTimes[node] = overheadTime;
+    }
+
+    public Metric[] getMetrics() {
+        return metrics.clone();
+    }
+
+    /**
+     * Returns the total value of the metric of the node.
+     * @param node
+     *      the node
+     * @param i
+     *      the index of the metric in {@link #getMetrics()}
+     * @return the value
+     */
+    public long getMetric(int node, int i) {
+        return metricValues[node * metrics.length + i];
+    }
+
+    public void setMetric(int node, int i, long value) {
+        metricValues[node * metrics.length + i] = value;
+    }
+
+    /**
+     * Returns the value of the metric which is spent in the children of the node.
+     * @param node
+     *      the node
+     * @param i
+     *      the index of the metric in {@link #getMetrics()}
+     * @return the value
+     */
+    public long getChildrenMetric(int node, int i) {
+        return childrenMetricValues[node * metrics.length + i];
+    }
+
+    public void setChildrenMetric(int node, int i, long value) {
+        childrenMetricValues[node * metrics.length + i] = value;
+    }
+
+    /**
+     * Returns the node as a {@link CallTree.Node}, which is made on demand.
+     * @param node
+     *      the node
+     * @return the view of the node
+     */
+    public Node getNode(int node) {
+        return new View(node, null);
+    }
+
+    @Override
+    public Node getRoot() {
+        return new View(0, null);
+    }
+
+    @Override
+    public void visit(NodeVisitor visitor) {
+        traverse(0, visitor, true);
+    }
+
+    /**
+     * Visits the node and its descendants, or only the descendants, in the depth-first order by the indices
+     * of the nodes. A view is made for each depth of the path and reused for the nodes at the depth.
+     */
+    private void traverse(int start, NodeVisitor visitor, boolean includeStart) {
+        View[] views = new View[16];
+        int depth = 0;
+        int node = start;
+        View view = views[0] = new View(start, null);
+        if (includeStart) {
+            visitor.visit(view);
+        }
+        while (true) {
+            int next = firstChildren[node];
+            if (next != NONE) {
+                depth++;
+            } else {
+                // exits the nodes up to the one which has the next sibling
+                while (true) {
+                    if (depth == 0) {
+                        if (includeStart) {
+                            visitor.exit(view);
+                        }
+                        view.store();
+                        return;
+                    }
+                    visitor.exit(view);
+                    view.store();
+                    next = nextSiblings[node];
+                    if (next != NONE) {
+                        break;
+                    }
+                    node = parents[node];
+                    view = views[--depth];
+                }
+            }
+            node = next;
+            if (depth == views.length) {
+                views = Arrays.copyOf(views, depth * 2);
+            }
+            view = views[depth];
+            if (view == null) {
+                view = views[depth] = new View(node, views[depth - 1]);
+            } else {
+                view.moveTo(node);
+            }
+            visitor.visit(view);
+        }
+    }
+
+    private void load(int node, CallInfo call) {
+        call.setTime(times[node]);
+        call.setChildrenTime(childrenTimes[node]);
+        call.setOverheadTime(getOverheadTime(node));
+        if (metrics.length > 0) {
+            MetricValues values = call.getMetrics();
+            for (int i = 0; i < metrics.length; i++) {
+                values.set(metrics[i], getMetric(node, i));
+                values.setChildren(metrics[i], getChildrenMetric(node, i));
+            }
+        }
+    }
+
+    private void store(int node, CallInfo call) {
+        times[node] = call.getTime();
+        childrenTimes[node] = call.getChildrenTime();
+        setOverheadTime(node, call.getOverheadTime());
+        if (metrics.length > 0) {
+            MetricValues values = call.getMetrics();
+            for (int i = 0; i < metrics.length; i++) {
+                setMetric(node, i, values.get(metrics[i]));
+                setChildrenMetric(node, i, values.getChildren(metrics[i]));
+            }
+        }
+    }
+
+    /**
+     * Merges the trees of the threads into a tree as {@link CallInterceptor#makeTree(ThreadRunInfo, List)} does.
+     * The calls in the main thread are put under the root directly.
+     * @param mainThreadRun
+     *      the run of the main thread
+     * @param threadTrees
+     *      the trees of the threads, which have the same metrics
+     * @return the merged tree
+     */
+    public static CompactCallTree merge(ThreadRunInfo mainThreadRun, List<CompactCallTree> threadTrees) {
+        Metric[] metrics = threadTrees.isEmpty() ? NO_METRICS : threadTrees.get(0).metrics;
+        int capacity = 1;
+        for (CompactCallTree theTree : threadTrees) {
+            capacity += theTree.size;
+        }
+        CompactCallTree tree = new CompactCallTree(mainThreadRun, metrics);
+        tree.grow(capacity);
+        for (CompactCallTree theTree : threadTrees) {
+            ThreadRunInfo threadRun = theTree.threadRuns.get(0);
+            tree.append(theTree, threadRun.equals(mainThreadRun) ? 0 : NONE);
+        }
+        return tree;
+    }
+
+    /**
+     * Appends the nodes of the tree under the root. The root of the tree is appended as well,
+     * unless it is merged into the specified node.
+     */
+    private void append(CompactCallTree tree, int mergedRoot) {
+        int[] nodes = new int[tree.size];
+        for (int i = 0; i < tree.size; i++) {
+            int node;
+            if (i == 0 && mergedRoot != NONE) {
+                node = mergedRoot;
+            } else {
+                int parent = i == 0 ? 0 : nodes[tree.parents[i]];
+                int methodId = tree.methodIds[i];
+                node = methodId == 0 ? addThreadRun(parent, tree.threadRuns.get(i)) : add(parent, methodId);
+                times[node] = tree.times[i];
+                childrenTimes[node] = tree.childrenTimes[i];
+                setOverheadTime(node, tree.getOverheadTime(i));
+                System.arraycopy(tree.metricValues, i * metrics.length, metricValues, node * metrics.length,
+                        metrics.length);
+                System.arraycopy(tree.childrenMetricValues, i * metrics.length, childrenMetricValues,
+                        node * metrics.length, metrics.length);
+            }
+            nodes[i] = node;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getRoot().toString();
+    }
+
+    /**
+     * A node of the tree which is made on demand. While a node is visited, its view is moved to
+     * the next node at the same depth when the node is exited.
+     */
+    private class View extends Node {
+
+        private int index;
+        // the view of the parent while the node is visited, or null if the parent is not visited
+        private final View parentView;
+        private CallInfo data;
+        // the call which is reused as the data of the method calls at this view
+        private MethodCallInfo methodCall;
+        // the indices of the children, which are collected once for the node,
+        // so iterating the children by the index does not walk the siblings each time
+        private int[] children = new int[0];
+        private int childCount = NONE;
+
+        View(int index, View parentView) {
+            super(null);
+            this.index = index;
+            this.parentView = parentView;
+        }
+
+        void moveTo(int index) {
+            this.index = index;
+            data = null;
+            childCount = NONE;
+        }
+
+        @Override
+        public CallInfo getData() {
+            if (data == null) {
+                int methodId = methodIds[index];
+                if (methodId == 0) {
+                    data = threadRuns.get(index);
+                } else {
+                    if (methodCall == null) {
+                        methodCall = new MethodCallInfo(methodId);
+                    } else {
+                        // the tree keeps a call per node, which has no extremes
+                        methodCall.setMethod(MethodRegistry.getMethod(methodId));
+                        methodCall.setCalls(1);
+                        methodCall.setMinTime(0);
+                        methodCall.setMaxTime(0);
+                        methodCall.setMinSelfTime(0);
+                        methodCall.setMaxSelfTime(0);
+                    }
+                    data = methodCall;
+                }
+                load(index, data);
+            }
+            return data;
+        }
+
+        /**
+         * Writes the data back to the tree if it has been made.
+         */
+        void store() {
+            if (data != null) {
+                CompactCallTree.this.store(index, data);
+            }
+        }
+
+        @Override
+        public Node getParent() {
+            if (parentView != null) {
+                return parentView;
+            }
+            return parents[index] != NONE ? new View(parents[index], null) : null;
+        }
+
+        @Override
+        public boolean hasParent() {
+            return parents[index] != NONE;
+        }
+
+        @Override
+        public List<Node> getChildren() {
+            int count = getChildCount();
+            List<Node> nodes = new ArrayList<Node>(count);
+            for (int i = 0; i < count; i++) {
+                nodes.add(new View(children[i], null));
+            }
+            return Collections.unmodifiableList(nodes);
+        }
+
+        @Override
+        public int getChildCount() {
+            if (childCount == NONE) {
+                childCount = 0;
+                for (int child = firstChildren[index]; child != NONE; child = nextSiblings[child]) {
+                    if (childCount == children.length) {
+                        children = Arrays.copyOf(children, Math.max(4, childCount * 2));
+                    }
+                    children[childCount++] = child;
+                }
+            }
+            return childCount;
+        }
+
+        @Override
+        public Node getChild(int i) {
+            if (i < 0 || i >= getChildCount()) {
+                throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + childCount);
+            }
+            return new View(children[i], null);
+        }
+
+        @Override
+        public void visit(NodeVisitor visitor) {
+            CompactCallTree.this.traverse(index, visitor, false);
+        }
+
+        @Override
+        public void setParent(Node parent) {
+            throw new UnsupportedOperationException("The compact call tree cannot be modified");
+        }
+
+        @Override
+        public void addChild(Node child) {
+            throw new UnsupportedOperationException("The compact call tree cannot be modified");
+        }
+
+        @Override
+        public void removeChild(Node child) {
+            throw new UnsupportedOperationException("The compact call tree cannot be modified");
+        }
+
+    }
+
+}
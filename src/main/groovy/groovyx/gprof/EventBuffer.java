@@ -0,0 +1,251 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A buffer of the events of the calls in a thread. Each event is packed into a long:
+ * <ul>
+ * <li>1 bit whether the event is the exit of the call or the enter</li>
+ * <li>24 bits the id of the method</li>
+ * <li>39 bits the time relative to the base time of the chunk</li>
+ * </ul>
+ * An event can be followed by a fixed number of values such as the metrics of the thread at the event.
+ * The events are stored in chunks and the first element of each chunk is its base time,
+ * so adding an event does not allocate except when a chunk gets full.
+ * The chunks are kept when the buffer is cleared so that the buffer can be reused.
+ * The events of the methods whose ids do not fit in 24 bits are dropped and counted,
+ * since the buffer is fed in the calls which are profiled and must not fail them.
+ * <p>
+ * Only one thread can add the events. Each event is published after it is added, so other threads can read
+ * the events which have been added so far while the events are being added, but not while the buffer is cleared.
+ * </p>
+ */
+public class EventBuffer {
+
+    public static final long ENTER = 0L;
+    public static final long EXIT = 1L << 63;
+
+    static final int CHUNK_SIZE = 4096;
+    static final int ID_SHIFT = 39;
+    static final int MAX_METHOD_ID = (1 << 24) - 1;
+    static final long MAX_DELTA = (1L << ID_SHIFT) - 1;
+
+    private static final AtomicLongFieldUpdater<EventBuffer> PUBLISHED =
+            AtomicLongFieldUpdater.newUpdater(EventBuffer.class, "published");
+
+    private static final long[] NO_VALUES = new long[0];
+
+    private int valuesPerEvent;
+    private volatile long[][] chunks;
+    private int chunkCount;
+    private long[] chunk;
+    private int size;
+    private long droppedEvents;
+    // the number of the chunks and the size of the last chunk which the readers can read
+    private volatile long published;
+
+    public EventBuffer() {
+        this(0);
+    }
+
+    /**
+     * @param valuesPerEvent
+     *      the number of the values which follow each event
+     */
+    public EventBuffer(int valuesPerEvent) {
+        this.valuesPerEvent = valuesPerEvent;
+        chunks = new long[8][];
+    }
+
+    public int getValuesPerEvent() {
+        return valuesPerEvent;
+    }
+
+    /**
+     * Adds an event.
+     * @param type
+     *      {@link #ENTER} or {@link #EXIT}
+     * @param methodId
+     *      the id of the method
+     * @param time
+     *      the time of the event
+     */
+    public void add(long type, int methodId, long time) {
+        add(type, methodId, time, NO_VALUES);
+    }
+
+    /**
+     * Adds an event with the values.
+     * @param type
+     *      {@link #ENTER} or {@link #EXIT}
+     * @param methodId
+     *      the id of the method
+     * @param time
+     *      the time of the event
+     * @param values
+     *      the values which follow the event, whose length is the number of the values per event
+     */
+    public void add(long type, int methodId, long time, long[] values) {
+        if (methodId > MAX_METHOD_ID) {
+            droppedEvents++;
+            return;
+        }
+        long delta;
+        if (chunk == null || size + valuesPerEvent >= chunk.length
+                || (delta = time - chunk[0]) < 0 || delta > MAX_DELTA) {
+            newChunk(time);
+            delta = 0;
+        }
+        chunk[size++] = type | ((long) methodId << ID_SHIFT) | delta;
+        for (int i = 0; i < valuesPerEvent; i++) {
+            chunk[size++] = values[i];
+        }
+        // an ordered write is enough to publish the event and cheaper than a volatile write
+        PUBLISHED.lazySet(this, ((long) chunkCount << 32) | size);
+    }
+
+    private void newChunk(long baseTime) {
+        if (chunk != null && size < chunk.length) {
+            // the rest of the chunk is left unused
+            Arrays.fill(chunk, size, chunk.length, 0L);
+        }
+        long[][] theChunks = chunks;
+        if (chunkCount == theChunks.length) {
+            theChunks = Arrays.copyOf(theChunks, theChunks.length * 2);
+            chunks = theChunks;
+        }
+        chunk = theChunks[chunkCount];
+        if (chunk == null) {
+            chunk = new long[CHUNK_SIZE];
+            theChunks[chunkCount] = chunk;
+        }
+        chunkCount++;
+        chunk[0] = baseTime;
+        size = 1;
+    }
+
+    /**
+     * Returns the number of the events which have been dropped since the buffer was cleared,
+     * whose method ids are greater than {@link #MAX_METHOD_ID}.
+     * @return the number of the dropped events
+     */
+    public long getDroppedEvents() {
+        return droppedEvents;
+    }
+
+    /**
+     * Returns whether the buffer has no event.
+     * @return true if the buffer has no event
+     */
+    public boolean isEmpty() {
+        return chunkCount == 0;
+    }
+
+    /**
+     * Removes all the events.
+     */
+    public void clear() {
+        chunkCount = 0;
+        chunk = null;
+        size = 0;
+        droppedEvents = 0;
+        published = 0;
+    }
+
+    /**
+     * Returns a reader of the events which have been published so far.
+     * @return the reader
+     */
+    public Reader reader() {
+        return new Reader();
+    }
+
+    /**
+     * A reader of the events in the order they were added.
+     */
+    public class Reader {
+
+        private long[][] theChunks;
+        private int chunkCount;
+        private int lastSize;
+        private int chunkIndex;
+        // the index of the next event in the chunk
+        private int index = 1;
+        private long[] chunk;
+        private int entryIndex;
+        private long entry;
+        private long baseTime;
+
+        Reader() {
+            long thePublished = published;
+            chunkCount = (int) (thePublished >>> 32);
+            lastSize = (int) thePublished;
+            // the chunks are read after the position, so they contain all the chunks before the position
+            theChunks = chunks;
+        }
+
+        /**
+         * Moves to the next event.
+         * @return false if there is no more event
+         */
+        public boolean next() {
+            while (chunkIndex < chunkCount) {
+                long[] theChunk = theChunks[chunkIndex];
+                // chunks other than the last one can have unused elements left,
+                // which are zero and never taken for an event because the method ids start from 1.
+                int limit = chunkIndex == chunkCount - 1 ? lastSize : theChunk.length;
+                if (index < limit && theChunk[index] != 0) {
+                    chunk = theChunk;
+                    entryIndex = index;
+                    entry = theChunk[index];
+                    baseTime = theChunk[0];
+                    index += 1 + valuesPerEvent;
+                    return true;
+                }
+                chunkIndex++;
+                index = 1;
+            }
+            return false;
+        }
+
+        public boolean isExit() {
+            return (entry & EXIT) != 0;
+        }
+
+        public int getMethodId() {
+            return (int) ((entry & ~EXIT) >>> ID_SHIFT);
+        }
+
+        public long getTime() {
+            return baseTime + (entry & MAX_DELTA);
+        }
+
+        /**
+         * Returns a value which follows the event.
+         * @param i
+         *      the index of the value
+         * @return the value
+         */
+        public long getValue(int i) {
+            return chunk[entryIndex + 1 + i];
+        }
+
+    }
+
+}
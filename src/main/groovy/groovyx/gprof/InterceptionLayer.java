@@ -0,0 +1,380 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof;
+
+import groovy.lang.*;
+import org.codehaus.groovy.reflection.ClassInfo;
+import org.codehaus.groovy.runtime.DefaultGroovyMethods;
+import org.codehaus.groovy.runtime.MetaClassHelper;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.security.CodeSource;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The layer of the proxy meta classes which intercepts the calls for all the profilers of the interception mode.
+ * The meta class registry is global, so the layer is installed when the first profiler starts and restored
+ * when the last one stops. The profilers in between are only added to and removed from the sessions,
+ * which dispatch each call to every active profiler.
+ * <p>
+ * Starting drops the meta classes of the profiled classes which have been cached before profiling, so that
+ * the layer proxies them when they are looked up first, reusing the dropped ones. The classes which are not
+ * profiled keep their cached meta classes, and the others get the meta classes of the original creation handle,
+ * which are cached as usual. So they are not intercepted at all.
+ *
+ * @author Masato Nagai
+ */
+class InterceptionLayer extends MetaClassRegistry.MetaClassCreationHandle {
+
+    private static final InterceptionLayer INSTANCE = new InterceptionLayer();
+    private static final String PROFILER_PACKAGE = "groovyx.gprof.";
+    private static final String PROFILER_LOCATION = location(InterceptionLayer.class);
+
+    private final SessionMultiplexer sessions = new SessionMultiplexer();
+    // the filters of the classes of the active sessions. a class is proxied if any of them accepts it.
+    private volatile CallFilter[] classFilters = new CallFilter[0];
+    // whether a class has been left unproxied by the filters, which needs another pass for a new session
+    private volatile boolean declined;
+    private MetaClassRegistry.MetaClassCreationHandle originalMetaClassCreationHandle;
+    // the classes whose meta classes had been set explicitly before profiling
+    private Set<Class> strongMetaClassClasses = new HashSet<Class>();
+    // the meta classes which had been set explicitly before profiling and are not proxied by the filters
+    private Map<Class, MetaClass> unproxiedStrongMetaClasses = new HashMap<Class, MetaClass>();
+    // the proxies and the adapters which have been installed for the classes and the instances,
+    // which are restored when uninstalling
+    private Map<Class, AdaptingExpandoMetaClass> installedProxies = new ConcurrentHashMap();
+    private List<InstanceProxy> installedInstanceProxies = new ArrayList();
+    // the meta classes which had been cached before profiling and have been dropped to be proxied,
+    // which are reused when they are looked up
+    private Map<Class, MetaClass> droppedMetaClasses = new ConcurrentHashMap();
+
+    static InterceptionLayer getInstance() {
+        return INSTANCE;
+    }
+
+    boolean isInstalled() {
+        return GroovySystem.getMetaClassRegistry().getMetaClassCreationHandler() == this;
+    }
+
+    /**
+     * Starts feeding the calls to the interceptor of a session, which installs the layer if it is the first one.
+     * @param session
+     *      the interceptor of the session
+     * @param refs
+     *      the references to the instances whose own meta classes are proxied, or null
+     */
+    synchronized void start(CallInterceptor session, List<Reference> refs) {
+        CallFilter[] filters = Arrays.copyOf(classFilters, classFilters.length + 1);
+        filters[classFilters.length] = session.getClassFilter();
+        classFilters = filters;
+        if (sessions.add(session) == 1) {
+            install();
+        } else if (declined) {
+            proxyDeclinedMetaClasses();
+        }
+        if (refs != null) {
+            proxyPerInstanceMetaClasses(refs);
+        }
+    }
+
+    /**
+     * Stops feeding the calls to the interceptor of a session, which restores the meta classes
+     * if it is the last one.
+     * @param session
+     *      the interceptor of the session
+     */
+    synchronized void stop(CallInterceptor session) {
+        List<CallFilter> filters = new ArrayList<CallFilter>(Arrays.asList(classFilters));
+        filters.remove(session.getClassFilter());
+        classFilters = filters.toArray(new CallFilter[filters.size()]);
+        if (sessions.remove(session) == 0) {
+            uninstall();
+        }
+    }
+
+    /**
+     * Proxies the meta classes. The meta classes which have been set explicitly, e.g. the modified expandos,
+     * are proxied now since setting the creation handle clears them. The other meta classes are proxied
+     * by {@link #createNormalMetaClass(Class, MetaClassRegistry)} when they are looked up first, so the cached
+     * ones are dropped, which makes the call sites which have cached them look them up again.
+     */
+    private void install() {
+        MetaClassRegistry registry = GroovySystem.getMetaClassRegistry();
+        Map<Class, MetaClass> strongMetaClasses = getStrongMetaClasses(registry);
+
+        originalMetaClassCreationHandle = registry.getMetaClassCreationHandler();
+        registry.setMetaClassCreationHandle(this);
+
+        for (Map.Entry<Class, MetaClass> e : strongMetaClasses.entrySet()) {
+            Class theClass = e.getKey();
+            MetaClass proxyMetaClass = proxyMetaClass(theClass, e.getValue());
+            registry.setMetaClass(theClass, proxyMetaClass);
+            if (proxyMetaClass == e.getValue()) {
+                unproxiedStrongMetaClasses.put(theClass, proxyMetaClass);
+            }
+            installed(proxyMetaClass);
+        }
+        strongMetaClassClasses.addAll(strongMetaClasses.keySet());
+        dropWeakMetaClasses();
+    }
+
+    /**
+     * Proxies the meta classes which the filters of the former sessions have left unproxied
+     * and the filter of a new session accepts.
+     */
+    private void proxyDeclinedMetaClasses() {
+        declined = false;
+        MetaClassRegistry registry = GroovySystem.getMetaClassRegistry();
+        for (Map.Entry<Class, MetaClass> e : getStrongMetaClasses(registry).entrySet()) {
+            Class theClass = e.getKey();
+            MetaClass metaClass = e.getValue();
+            MetaClass proxyMetaClass = proxyMetaClass(theClass, metaClass);
+            if (proxyMetaClass != metaClass) {
+                registry.setMetaClass(theClass, proxyMetaClass);
+                strongMetaClassClasses.add(theClass);
+                unproxiedStrongMetaClasses.remove(theClass);
+                installed(proxyMetaClass);
+            }
+        }
+        dropWeakMetaClasses();
+    }
+
+    /**
+     * Returns the meta classes which have been set explicitly. The registry keeps the meta classes which have been
+     * set, some of which may have been replaced since then.
+     */
+    private Map<Class, MetaClass> getStrongMetaClasses(MetaClassRegistry registry) {
+        Map<Class, MetaClass> strongMetaClasses = new HashMap();
+        for (Iterator it = registry.iterator(); it.hasNext();) {
+            MetaClass metaClass = (MetaClass) it.next();
+            if (metaClass != null && !(metaClass instanceof ProfileMetaClass)
+                    && ClassInfo.getClassInfo(metaClass.getTheClass()).getStrongMetaClass() == metaClass) {
+                strongMetaClasses.put(metaClass.getTheClass(), metaClass);
+            }
+        }
+        return strongMetaClasses;
+    }
+
+    /**
+     * Drops the cached meta classes of the classes which are accepted by the filters. Dropping a meta class
+     * changes the version of the class which the call sites check. The meta classes of the other classes
+     * are kept as they are.
+     */
+    private void dropWeakMetaClasses() {
+        for (ClassInfo classInfo : getAllClassInfo()) {
+            MetaClass metaClass = classInfo.getWeakMetaClass();
+            if (metaClass != null && !(metaClass instanceof ProfileMetaClass)
+                    && classInfo.getStrongMetaClass() == null && acceptClass(metaClass.getTheClass())) {
+                droppedMetaClasses.put(metaClass.getTheClass(), metaClass);
+                classInfo.setWeakMetaClass(null);
+            }
+        }
+    }
+
+    private Collection<ClassInfo> getAllClassInfo() {
+        // ClassInfo.getAllClassInfo() returns cached class info and there is a case it doesn't return
+        // all of the loaded classes. This is a hack to ignore the cache.
+        try {
+            Field classSetField = ClassInfo.class.getDeclaredField("globalClassSet");
+            classSetField.setAccessible(true);
+/* $if version < 2.4 $ */
+            ClassInfo.ClassInfoSet classSet = (ClassInfo.ClassInfoSet) classSetField.get(ClassInfo.class);
+            return new ArrayList<ClassInfo>((Collection<ClassInfo>) classSet.values());
+/* $endif$ */
+/* $if version >= 2.4 $ */
+            Object classSet = classSetField.get(ClassInfo.class);
+            Method valuesMethod = classSet.getClass().getDeclaredMethod("values");
+            valuesMethod.setAccessible(true);
+            return new ArrayList<ClassInfo>((Collection<ClassInfo>) valuesMethod.invoke(classSet));
+/* $endif$ */
+        } catch (Exception e) {
+            e.printStackTrace();
+            return ClassInfo.getAllClassInfo();
+        }
+    }
+
+    private void proxyPerInstanceMetaClasses(List<Reference> refs) {
+        for (Reference ref : refs) {
+            Object obj = ref.get();
+            if (obj != null) {
+                Class theClass = obj.getClass();
+                MetaClass metaClass;
+                MetaClass proxyMetaClass;
+                if (obj instanceof GroovyObject) {
+                    GroovyObject gobj = (GroovyObject) obj;
+                    metaClass = gobj.getMetaClass();
+                    proxyMetaClass = proxyMetaClass(theClass, metaClass);
+                    DefaultGroovyMethods.setMetaClass(gobj, proxyMetaClass);
+                } else {
+                    metaClass = DefaultGroovyMethods.getMetaClass(obj);
+                    proxyMetaClass = proxyMetaClass(theClass, metaClass);
+                    MetaClassHelper.doSetMetaClass(obj, proxyMetaClass);
+                }
+                if (proxyMetaClass != metaClass) {
+                    installedInstanceProxies.add(new InstanceProxy(obj, metaClass, proxyMetaClass));
+                }
+            }
+        }
+    }
+
+    private void uninstall() {
+        MetaClassRegistry registry = GroovySystem.getMetaClassRegistry();
+        // only the proxies which are still installed are restored. the others have been replaced or collected.
+        List<AdaptingExpandoMetaClass> proxyMetaClasses = new ArrayList<AdaptingExpandoMetaClass>();
+        for (AdaptingExpandoMetaClass proxyMetaClass : installedProxies.values()) {
+            ClassInfo classInfo = ClassInfo.getClassInfo(proxyMetaClass.getTheClass());
+            MetaClass metaClass = classInfo.getStrongMetaClass();
+            if (metaClass == null) {
+                metaClass = classInfo.getWeakMetaClass();
+            }
+            if (metaClass == proxyMetaClass) {
+                proxyMetaClasses.add(proxyMetaClass);
+            }
+        }
+        installedProxies.clear();
+        List<MetaClass> strongMetaClasses = new ArrayList<MetaClass>();
+        for (MetaClass metaClass : unproxiedStrongMetaClasses.values()) {
+            if (ClassInfo.getClassInfo(metaClass.getTheClass()).getStrongMetaClass() == metaClass) {
+                strongMetaClasses.add(metaClass);
+            }
+        }
+        unproxiedStrongMetaClasses.clear();
+
+        // resetting the meta class creation handler clears the modified expandos, which are restored below.
+        registry.setMetaClassCreationHandle(originalMetaClassCreationHandle);
+
+        // the meta classes which have been set explicitly or modified are set again and the others are cached again
+        for (AdaptingExpandoMetaClass proxyMetaClass : proxyMetaClasses) {
+            Class theClass = proxyMetaClass.getTheClass();
+            MetaClass adaptee = proxyMetaClass.getAdaptee();
+            if (strongMetaClassClasses.contains(theClass) || adaptee instanceof ExpandoMetaClass) {
+                registry.setMetaClass(theClass, adaptee);
+            } else {
+                ClassInfo.getClassInfo(theClass).setWeakMetaClass(adaptee);
+            }
+        }
+        strongMetaClassClasses.clear();
+        for (MetaClass metaClass : strongMetaClasses) {
+            registry.setMetaClass(metaClass.getTheClass(), metaClass);
+        }
+        for (InstanceProxy instanceProxy : installedInstanceProxies) {
+            instanceProxy.restore();
+        }
+        installedInstanceProxies.clear();
+        // the dropped meta classes which have not been looked up are created again when they are
+        droppedMetaClasses.clear();
+        declined = false;
+    }
+
+    private boolean acceptClass(Class theClass) {
+        if (MetaClass.class.isAssignableFrom(theClass) || isProfilerClass(theClass)) {
+            return false;
+        }
+        String className = theClass.getName();
+        for (CallFilter classFilter : classFilters) {
+            if (classFilter.accept(className)) {
+                return true;
+            }
+        }
+        declined = true;
+        return false;
+    }
+
+    /**
+     * Returns whether the class is a part of the profiler, e.g. {@link ProfileHooks} which the methods
+     * annotated by {@link Profiled} call. The classes in the same package which are loaded from another
+     * location, e.g. the tests of the profiler, are not.
+     */
+    static boolean isProfilerClass(Class theClass) {
+        if (!theClass.getName().startsWith(PROFILER_PACKAGE)) {
+            return false;
+        }
+        String location = location(theClass);
+        return location == null ? PROFILER_LOCATION == null : location.equals(PROFILER_LOCATION);
+    }
+
+    private static String location(Class theClass) {
+        CodeSource codeSource = theClass.getProtectionDomain().getCodeSource();
+        return codeSource == null || codeSource.getLocation() == null ? null : codeSource.getLocation().toString();
+    }
+
+    private MetaClass proxyMetaClass(Class theClass, MetaClass metaClass) {
+        if (metaClass instanceof ProfileMetaClass || !acceptClass(theClass)) {
+            return metaClass;
+        }
+        ProfileMetaClass proxyMetaClass = new ProfileMetaClass(theClass, metaClass);
+        proxyMetaClass.setSessions(sessions);
+        return proxyMetaClass;
+    }
+
+    /**
+     * Creates the meta class of the class which is looked up first while profiling. The meta class which
+     * has been cached before profiling is reused. The classes which are not profiled get the meta classes
+     * of the original creation handle.
+     */
+    @Override
+    protected MetaClass createNormalMetaClass(Class theClass, MetaClassRegistry registry) {
+        if (!acceptClass(theClass)) {
+            return originalMetaClassCreationHandle.create(theClass, registry);
+        }
+        MetaClass metaClass = droppedMetaClasses.remove(theClass);
+        if (metaClass == null) {
+            metaClass = new MetaClassImpl(registry, theClass);
+        }
+        MetaClass proxyMetaClass = proxyMetaClass(theClass, metaClass);
+        installed(proxyMetaClass);
+        return proxyMetaClass;
+    }
+
+    private void installed(MetaClass proxyMetaClass) {
+        if (proxyMetaClass instanceof AdaptingExpandoMetaClass) {
+            installedProxies.put(proxyMetaClass.getTheClass(), (AdaptingExpandoMetaClass) proxyMetaClass);
+        }
+    }
+
+    /**
+     * A proxy which is installed for an instance. The instance is not kept alive by the proxy.
+     */
+    private static class InstanceProxy {
+
+        private WeakReference<Object> ref;
+        private MetaClass original;
+        private MetaClass proxy;
+
+        InstanceProxy(Object obj, MetaClass original, MetaClass proxy) {
+            this.ref = new WeakReference<Object>(obj);
+            this.original = original;
+            this.proxy = proxy;
+        }
+
+        void restore() {
+            Object obj = ref.get();
+            if (obj instanceof GroovyObject) {
+                GroovyObject gobj = (GroovyObject) obj;
+                if (gobj.getMetaClass() == proxy) {
+                    DefaultGroovyMethods.setMetaClass(gobj, original);
+                }
+            } else if (obj != null && DefaultGroovyMethods.getMetaClass(obj) == proxy) {
+                MetaClassHelper.doSetMetaClass(obj, original);
+            }
+        }
+
+    }
+
+}
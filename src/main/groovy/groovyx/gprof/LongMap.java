@@ -0,0 +1,257 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A map which is sorted by the long keys and keeps them in a primitive array, so looking up a value
+ * by a long does not box the key. The keys which are put in the ascending order are appended, and
+ * the dense keys like the indices of the elements of a report are looked up directly without the binary search.
+ * It is a {@link Map} of the boxed keys as well, for iterating and comparing the maps.
+ */
+public class LongMap<V> extends AbstractMap<Long, V> {
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+
+    public LongMap() {
+        this(8);
+    }
+
+    public LongMap(int initialCapacity) {
+        keys = new long[Math.max(initialCapacity, 1)];
+        values = new Object[keys.length];
+    }
+
+    // the position of the key, or (-(insertion point) - 1) if the map does not have the key
+    private int indexOf(long key) {
+        if (size == 0) {
+            return -1;
+        }
+        long offset = key - keys[0];
+        if (offset >= 0 && offset < size && keys[(int) offset] == key) {
+            return (int) offset;
+        }
+        if (key > keys[size - 1]) {
+            return -size - 1;
+        }
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int i = indexOf(key);
+        return i >= 0 ? (V) values[i] : null;
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        int i = indexOf(key);
+        if (i >= 0) {
+            V old = (V) values[i];
+            values[i] = value;
+            return old;
+        }
+        i = -i - 1;
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(values, i, values, i + 1, size - i);
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        V old = (V) values[i];
+        removeAt(i);
+        return old;
+    }
+
+    private void removeAt(int i) {
+        System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+        System.arraycopy(values, i + 1, values, i, size - i - 1);
+        size--;
+        values[size] = null;
+    }
+
+    /**
+     * Replaces each key by the new key which the mapper has at the index of the key, and sorts the entries
+     * by the new keys at once instead of moving them one by one. The new keys must be distinct.
+     */
+    public void remapKeys(long[] mapper) {
+        long[] newKeys = new long[size];
+        boolean sorted = true;
+        for (int i = 0; i < size; i++) {
+            newKeys[i] = mapper[(int) keys[i]];
+            sorted &= i == 0 || newKeys[i - 1] < newKeys[i];
+        }
+        System.arraycopy(newKeys, 0, keys, 0, size);
+        if (sorted) {
+            return;
+        }
+        Arrays.sort(keys, 0, size);
+        Object[] newValues = new Object[values.length];
+        for (int i = 0; i < size; i++) {
+            newValues[Arrays.binarySearch(keys, 0, size, newKeys[i])] = values[i];
+        }
+        values = newValues;
+    }
+
+    @Override
+    public V get(Object key) {
+        return key instanceof Long ? get(((Long) key).longValue()) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof Long && containsKey(((Long) key).longValue());
+    }
+
+    @Override
+    public V put(Long key, V value) {
+        return put(key.longValue(), value);
+    }
+
+    @Override
+    public V remove(Object key) {
+        return key instanceof Long ? remove(((Long) key).longValue()) : null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+    }
+
+    @Override
+    public Set<Map.Entry<Long, V>> entrySet() {
+        return new AbstractSet<Map.Entry<Long, V>>() {
+            @Override
+            public Iterator<Map.Entry<Long, V>> iterator() {
+                return new Iterator<Map.Entry<Long, V>>() {
+                    int next = 0;
+                    int last = -1;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < size;
+                    }
+
+                    @Override
+                    public Map.Entry<Long, V> next() {
+                        if (next >= size) {
+                            throw new NoSuchElementException();
+                        }
+                        last = next++;
+                        return new Entry(last);
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (last < 0) {
+                            throw new IllegalStateException();
+                        }
+                        removeAt(last);
+                        next = last;
+                        last = -1;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public void clear() {
+                LongMap.this.clear();
+            }
+        };
+    }
+
+    private class Entry implements Map.Entry<Long, V> {
+
+        private final long key;
+
+        Entry(int i) {
+            key = keys[i];
+        }
+
+        @Override
+        public Long getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return get(key);
+        }
+
+        @Override
+        public V setValue(V value) {
+            return put(key, value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) return false;
+            Map.Entry<?, ?> that = (Map.Entry<?, ?>) o;
+            V value = getValue();
+            return getKey().equals(that.getKey()) &&
+                    (value != null ? value.equals(that.getValue()) : that.getValue() == null);
+        }
+
+        @Override
+        public int hashCode() {
+            V value = getValue();
+            return (int) (key ^ (key >>> 32)) ^ (value != null ? value.hashCode() : 0);
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + getValue();
+        }
+
+    }
+
+}
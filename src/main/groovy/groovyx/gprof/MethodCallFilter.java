@@ -18,7 +18,7 @@ package groovyx.gprof;
 public class MethodCallFilter extends CallFilter {
 
     public boolean accept(MethodInfo method) {
-        return accept(method.getName());
+        return accept(method.getClassName(), '.', method.getMethodName());
     }
 
 }
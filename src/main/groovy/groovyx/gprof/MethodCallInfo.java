@@ -18,7 +18,10 @@ package groovyx.gprof;
 public class MethodCallInfo extends CallInfo {
 
     private MethodInfo method;
-    private long calls;
+    private long calls = 1;
+    // the extremes of the calls which are merged into this call info by aggregation
+    private long minTime, maxTime;
+    private long minSelfTime, maxSelfTime;
 
     public MethodCallInfo(String className, String methodName) {
         this(new MethodInfo(className, methodName));
@@ -28,10 +31,22 @@ public class MethodCallInfo extends CallInfo {
         this.method = method;
     }
 
+    public MethodCallInfo(int methodId) {
+        this(MethodRegistry.getMethod(methodId));
+    }
+
     public MethodInfo getMethod() {
         return method;
     }
 
+    void setMethod(MethodInfo method) {
+        this.method = method;
+    }
+
+    public int getMethodId() {
+        return method.getId();
+    }
+
     public long getCalls() {
         return calls;
     }
@@ -40,6 +55,38 @@ public class MethodCallInfo extends CallInfo {
         this.calls = calls;
     }
 
+    public long getMinTime() {
+        return minTime;
+    }
+
+    public void setMinTime(long minTime) {
+        this.minTime = minTime;
+    }
+
+    public long getMaxTime() {
+        return maxTime;
+    }
+
+    public void setMaxTime(long maxTime) {
+        this.maxTime = maxTime;
+    }
+
+    public long getMinSelfTime() {
+        return minSelfTime;
+    }
+
+    public void setMinSelfTime(long minSelfTime) {
+        this.minSelfTime = minSelfTime;
+    }
+
+    public long getMaxSelfTime() {
+        return maxSelfTime;
+    }
+
+    public void setMaxSelfTime(long maxSelfTime) {
+        this.maxSelfTime = maxSelfTime;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -48,6 +95,10 @@ public class MethodCallInfo extends CallInfo {
         MethodCallInfo that = (MethodCallInfo) o;
 
         if (calls != that.calls) return false;
+        if (maxSelfTime != that.maxSelfTime) return false;
+        if (maxTime != that.maxTime) return false;
+        if (minSelfTime != that.minSelfTime) return false;
+        if (minTime != that.minTime) return false;
         if (method != null ? !method.equals(that.method) : that.method != null) return false;
 
         return true;
@@ -57,6 +108,10 @@ public class MethodCallInfo extends CallInfo {
     public int hashCode() {
         int result = method != null ? method.hashCode() : 0;
         result = 31 * result + (int) (calls ^ (calls >>> 32));
+        result = 31 * result + (int) (minTime ^ (minTime >>> 32));
+        result = 31 * result + (int) (maxTime ^ (maxTime >>> 32));
+        result = 31 * result + (int) (minSelfTime ^ (minSelfTime >>> 32));
+        result = 31 * result + (int) (maxSelfTime ^ (maxSelfTime >>> 32));
         return result;
     }
 
@@ -65,6 +120,10 @@ public class MethodCallInfo extends CallInfo {
         return "MethodCallInfo{" +
                 "method=" + method +
                 ", calls=" + calls +
+                ", minTime=" + minTime +
+                ", maxTime=" + maxTime +
+                ", minSelfTime=" + minSelfTime +
+                ", maxSelfTime=" + maxSelfTime +
                 '}';
     }
 }
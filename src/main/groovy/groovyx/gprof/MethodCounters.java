@@ -0,0 +1,164 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof;
+
+import java.util.Arrays;
+
+/**
+ * The counters of the calls of the methods in a thread which are indexed by the id of the method.
+ * The counters of a method are laid out next to each other, so updating them touches few cache lines.
+ * Each measured metric has two more counters of its total value and self value.
+ * Only the thread can update the counters.
+ */
+public class MethodCounters {
+
+    private static final int CALLS = 0, TIME = 1, SELF_TIME = 2,
+            MIN_TIME = 3, MAX_TIME = 4, MIN_SELF_TIME = 5, MAX_SELF_TIME = 6, METRICS = 7;
+
+    private ThreadInfo thread;
+    private Metric[] metrics;
+    private int stride;
+    private long[] values;
+
+    public MethodCounters(ThreadInfo thread) {
+        this(thread, new Metric[0]);
+    }
+
+    /**
+     * @param thread
+     *      the thread
+     * @param metrics
+     *      the metrics which are counted in addition to the time
+     */
+    public MethodCounters(ThreadInfo thread, Metric[] metrics) {
+        this.thread = thread;
+        this.metrics = metrics;
+        this.stride = METRICS + metrics.length * 2;
+        this.values = new long[(MethodRegistry.size() + 1) * stride];
+    }
+
+    public ThreadInfo getThread() {
+        return thread;
+    }
+
+    public Metric[] getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Adds a call of the method.
+     * @param methodId
+     *      the id of the method
+     * @param time
+     *      the time of the call
+     * @param selfTime
+     *      the time of the call which is not spent in the other methods
+     */
+    public void add(int methodId, long time, long selfTime) {
+        int i = methodId * stride;
+        if (i >= values.length) {
+            values = Arrays.copyOf(values, Math.max(i + stride, values.length * 2));
+        }
+        long[] v = values;
+        if (v[i + CALLS] == 0) {
+            v[i + MIN_TIME] = time;
+            v[i + MIN_SELF_TIME] = selfTime;
+        } else {
+            v[i + MIN_TIME] = Math.min(v[i + MIN_TIME], time);
+            v[i + MIN_SELF_TIME] = Math.min(v[i + MIN_SELF_TIME], selfTime);
+        }
+        v[i + MAX_TIME] = Math.max(v[i + MAX_TIME], time);
+        v[i + MAX_SELF_TIME] = Math.max(v[i + MAX_SELF_TIME], selfTime);
+        v[i + CALLS]++;
+        v[i + TIME] += time;
+        v[i + SELF_TIME] += selfTime;
+    }
+
+    /**
+     * Adds the value of a metric of a call of the method, which must have been added.
+     * @param methodId
+     *      the id of the method
+     * @param index
+     *      the index of the metric in the metrics of the counters
+     * @param value
+     *      the value of the call
+     * @param selfValue
+     *      the value of the call which is not spent in the other methods
+     */
+    public void addMetric(int methodId, int index, long value, long selfValue) {
+        int i = methodId * stride + METRICS + index * 2;
+        values[i] += value;
+        values[i + 1] += selfValue;
+    }
+
+    /**
+     * Returns the largest id of the methods which can have been called.
+     */
+    public int getMaxMethodId() {
+        return values.length / stride - 1;
+    }
+
+    private long get(int methodId, int counter) {
+        int i = methodId * stride;
+        return i < values.length ? values[i + counter] : 0;
+    }
+
+    private long getMetric(int methodId, Metric metric, int offset) {
+        for (int index = 0; index < metrics.length; index++) {
+            if (metrics[index] == metric) {
+                return get(methodId, METRICS + index * 2 + offset);
+            }
+        }
+        return 0;
+    }
+
+    public long getCalls(int methodId) {
+        return get(methodId, CALLS);
+    }
+
+    public long getTime(int methodId) {
+        return get(methodId, TIME);
+    }
+
+    public long getSelfTime(int methodId) {
+        return get(methodId, SELF_TIME);
+    }
+
+    public long getMinTime(int methodId) {
+        return get(methodId, MIN_TIME);
+    }
+
+    public long getMaxTime(int methodId) {
+        return get(methodId, MAX_TIME);
+    }
+
+    public long getMinSelfTime(int methodId) {
+        return get(methodId, MIN_SELF_TIME);
+    }
+
+    public long getMaxSelfTime(int methodId) {
+        return get(methodId, MAX_SELF_TIME);
+    }
+
+    public long getMetric(int methodId, Metric metric) {
+        return getMetric(methodId, metric, 0);
+    }
+
+    public long getSelfMetric(int methodId, Metric metric) {
+        return getMetric(methodId, metric, 1);
+    }
+
+}
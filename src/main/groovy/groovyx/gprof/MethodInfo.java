@@ -18,12 +18,29 @@ package groovyx.gprof;
 public class MethodInfo {
 
     private String className, methodName;
+    private int id;
 
     public MethodInfo(String className, String methodName) {
         this.className = className;
         this.methodName = methodName;
     }
 
+    MethodInfo(String className, String methodName, int id) {
+        this(className, methodName);
+        this.id = id;
+    }
+
+    /**
+     * Returns the id of the method which is given by {@link MethodRegistry}.
+     * @return the id of the method
+     */
+    public int getId() {
+        if (id == 0) {
+            id = MethodRegistry.getId(className, methodName);
+        }
+        return id;
+    }
+
     public String getClassName() {
         return className;
     }
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The registry of the methods. It hands out a stable id for each pair of a class name and a method name
+ * so that the profiler can identify a method by an int instead of the names.
+ * The ids are dense and start from 1, so they can be used as indices of arrays.
+ */
+public class MethodRegistry {
+
+    private static final ConcurrentMap<String, ConcurrentMap<String, Integer>> ids =
+            new ConcurrentHashMap<String, ConcurrentMap<String, Integer>>();
+    private static volatile MethodInfo[] methods = new MethodInfo[256];
+    private static int lastId = 0;
+
+    /**
+     * Returns the id of the method. The method is registered if it has not been registered yet.
+     * @param className
+     *      the name of the class
+     * @param methodName
+     *      the name of the method
+     * @return the id of the method
+     */
+    public static int getId(String className, String methodName) {
+        ConcurrentMap<String, Integer> classIds = ids.get(className);
+        if (classIds != null) {
+            Integer id = classIds.get(methodName);
+            if (id != null) {
+                return id;
+            }
+        }
+        return register(className, methodName);
+    }
+
+    private static synchronized int register(String className, String methodName) {
+        ConcurrentMap<String, Integer> classIds = ids.get(className);
+        if (classIds == null) {
+            classIds = new ConcurrentHashMap<String, Integer>();
+            ids.put(className, classIds);
+        }
+        Integer id = classIds.get(methodName);
+        if (id != null) {
+            return id;
+        }
+        int newId = ++lastId;
+        MethodInfo[] theMethods = methods;
+        if (newId == theMethods.length) {
+            MethodInfo[] newMethods = new MethodInfo[theMethods.length * 2];
+            System.arraycopy(theMethods, 0, newMethods, 0, theMethods.length);
+            theMethods = newMethods;
+        }
+        theMethods[newId] = new MethodInfo(className, methodName, newId);
+        // publishes the method before the id
+        methods = theMethods;
+        classIds.put(methodName, newId);
+        return newId;
+    }
+
+    /**
+     * Returns the method of the id.
+     * @param id
+     *      the id of the method
+     * @return the method
+     */
+    public static MethodInfo getMethod(int id) {
+        return methods[id];
+    }
+
+    /**
+     * Returns the number of the ids which have been handed out, that is, the largest id.
+     * @return the number of the ids
+     */
+    public static int size() {
+        synchronized (MethodRegistry.class) {
+            return lastId;
+        }
+    }
+
+}
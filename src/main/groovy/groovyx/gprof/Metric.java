@@ -0,0 +1,227 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * A counter of a thread which is measured at the start and the end of each call in addition to the time.
+ * The difference of the counter is attributed to the call.
+ */
+public enum Metric {
+
+    /**
+     * The bytes which the thread has allocated in the heap.
+     */
+    ALLOCATED_BYTES {
+        @Override
+        public boolean isSupported() {
+            try {
+                return HotSpot.THREAD_MX_BEAN != null && HotSpot.THREAD_MX_BEAN.isThreadAllocatedMemorySupported();
+            } catch (LinkageError e) {
+                return false;
+            }
+        }
+
+        @Override
+        public boolean enable() {
+            if (HotSpot.THREAD_MX_BEAN.isThreadAllocatedMemoryEnabled()) {
+                return false;
+            }
+            HotSpot.THREAD_MX_BEAN.setThreadAllocatedMemoryEnabled(true);
+            return true;
+        }
+
+        @Override
+        public void disable() {
+            HotSpot.THREAD_MX_BEAN.setThreadAllocatedMemoryEnabled(false);
+        }
+
+        @Override
+        public long read(long threadId) {
+            return HotSpot.THREAD_MX_BEAN.getThreadAllocatedBytes(threadId);
+        }
+    },
+
+    /**
+     * The CPU time in nanoseconds which the thread has spent, which is the sum of the user time and the system time.
+     * Unlike the time, it does not include the time while the thread is blocked, waiting or sleeping.
+     */
+    CPU_TIME {
+        @Override
+        public boolean isSupported() {
+            return THREAD_MX_BEAN.isThreadCpuTimeSupported();
+        }
+
+        @Override
+        public boolean enable() {
+            if (THREAD_MX_BEAN.isThreadCpuTimeEnabled()) {
+                return false;
+            }
+            THREAD_MX_BEAN.setThreadCpuTimeEnabled(true);
+            return true;
+        }
+
+        @Override
+        public void disable() {
+            THREAD_MX_BEAN.setThreadCpuTimeEnabled(false);
+        }
+
+        @Override
+        public long read(long threadId) {
+            return THREAD_MX_BEAN.getThreadCpuTime(threadId);
+        }
+    },
+
+    /**
+     * The time in nanoseconds which the thread has spent being blocked to enter or reenter a monitor,
+     * that is, waiting for the locks of the synchronized blocks and methods. The resolution is milliseconds.
+     */
+    BLOCKED_TIME {
+        @Override
+        long read(java.lang.management.ThreadInfo info) {
+            return info.getBlockedTime() * 1000000L;
+        }
+    },
+
+    /**
+     * The time in nanoseconds which the thread has spent waiting for a notification such as by
+     * {@link Object#wait()}, {@link Thread#join()} or the locks of java.util.concurrent.
+     * The resolution is milliseconds.
+     */
+    WAITED_TIME {
+        @Override
+        long read(java.lang.management.ThreadInfo info) {
+            return info.getWaitedTime() * 1000000L;
+        }
+    },
+    ;
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    // the number of the profilers which measure the metric, and whether the first one has enabled the measurement
+    private int users;
+    private boolean enabledByUsers;
+
+    /**
+     * Returns whether the metric can be measured in this JVM.
+     * The contention metrics need the thread contention monitoring by default.
+     */
+    public boolean isSupported() {
+        return THREAD_MX_BEAN.isThreadContentionMonitoringSupported();
+    }
+
+    /**
+     * Enables the measurement of the metric, which must be supported.
+     * @return true if the measurement has been disabled and is enabled by this call
+     */
+    public boolean enable() {
+        if (THREAD_MX_BEAN.isThreadContentionMonitoringEnabled()) {
+            return false;
+        }
+        THREAD_MX_BEAN.setThreadContentionMonitoringEnabled(true);
+        return true;
+    }
+
+    /**
+     * Disables the measurement of the metric, which restores the setting which {@link #enable()} has changed.
+     */
+    public void disable() {
+        THREAD_MX_BEAN.setThreadContentionMonitoringEnabled(false);
+    }
+
+    /**
+     * Enables the measurement of the metric for a profiler, which must be supported. The profilers which measure
+     * the metric at the same time share the measurement, and the setting is restored by {@link #release()}
+     * of the last one.
+     */
+    public synchronized void acquire() {
+        if (users++ == 0) {
+            enabledByUsers = enable();
+        }
+    }
+
+    /**
+     * Ends the measurement of the metric for a profiler which has acquired it.
+     */
+    public synchronized void release() {
+        if (--users == 0 && enabledByUsers) {
+            disable();
+            enabledByUsers = false;
+        }
+    }
+
+    /**
+     * Reads the counter of the thread.
+     * @param threadId
+     *      the id of the thread
+     * @return the value of the counter
+     */
+    public long read(long threadId) {
+        return read(THREAD_MX_BEAN.getThreadInfo(threadId));
+    }
+
+    /**
+     * Reads the counter from the info of the thread, which is supported only by the contention metrics.
+     */
+    long read(java.lang.management.ThreadInfo info) {
+        throw new UnsupportedOperationException(name());
+    }
+
+    /**
+     * Reads the counters of the thread. The info of the thread is taken at most once for the contention metrics,
+     * since taking it is much more expensive than reading a counter.
+     * @param metrics
+     *      the metrics to read
+     * @param threadId
+     *      the id of the thread
+     * @param values
+     *      the array which the values are stored into in the order of the metrics
+     * @param offset
+     *      the index of the array which the value of the first metric is stored into
+     */
+    static void read(Metric[] metrics, long threadId, long[] values, int offset) {
+        java.lang.management.ThreadInfo info = null;
+        for (int i = 0; i < metrics.length; i++) {
+            Metric metric = metrics[i];
+            if (metric == BLOCKED_TIME || metric == WAITED_TIME) {
+                if (info == null) {
+                    info = THREAD_MX_BEAN.getThreadInfo(threadId);
+                }
+                values[offset + i] = metric.read(info);
+            } else {
+                values[offset + i] = metric.read(threadId);
+            }
+        }
+    }
+
+    /**
+     * The extension of the thread MXBean which is provided by HotSpot.
+     * It is loaded when it is used first, so the other metrics are available on the other JVMs.
+     */
+    private static class HotSpot {
+
+        static final com.sun.management.ThreadMXBean THREAD_MX_BEAN;
+        static {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            THREAD_MX_BEAN = bean instanceof com.sun.management.ThreadMXBean ?
+                    (com.sun.management.ThreadMXBean) bean : null;
+        }
+
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The values of the metrics of a call or the calls. Like the time, each metric has the total value
+ * and the value which is spent in the children, and the self value is the difference of them.
+ * Only the metrics which have been set are regarded as measured.
+ */
+public class MetricValues {
+
+    private static final Metric[] METRICS = Metric.values();
+
+    private int mask;
+    // the total value and the children value of each metric
+    private long[] values = new long[METRICS.length * 2];
+
+    public boolean isEmpty() {
+        return mask == 0;
+    }
+
+    public boolean has(Metric metric) {
+        return (mask & (1 << metric.ordinal())) != 0;
+    }
+
+    /**
+     * Returns the measured metrics.
+     * @return the metrics
+     */
+    public Set<Metric> getMetrics() {
+        Set<Metric> metrics = EnumSet.noneOf(Metric.class);
+        for (Metric metric : METRICS) {
+            if (has(metric)) {
+                metrics.add(metric);
+            }
+        }
+        return metrics;
+    }
+
+    public long get(Metric metric) {
+        return values[metric.ordinal() * 2];
+    }
+
+    public void set(Metric metric, long value) {
+        mask |= 1 << metric.ordinal();
+        values[metric.ordinal() * 2] = value;
+    }
+
+    public long getChildren(Metric metric) {
+        return values[metric.ordinal() * 2 + 1];
+    }
+
+    public void setChildren(Metric metric, long value) {
+        mask |= 1 << metric.ordinal();
+        values[metric.ordinal() * 2 + 1] = value;
+    }
+
+    public long getSelf(Metric metric) {
+        return get(metric) - getChildren(metric);
+    }
+
+    /**
+     * Adds the total values of the other to the total values.
+     * @param other
+     *      the values to add
+     */
+    public void addTotals(MetricValues other) {
+        for (Metric metric : METRICS) {
+            if (other.has(metric)) {
+                set(metric, get(metric) + other.get(metric));
+            }
+        }
+    }
+
+    /**
+     * Adds the total values of the other to the children values.
+     * @param other
+     *      the values of a child
+     */
+    public void addChildren(MetricValues other) {
+        for (Metric metric : METRICS) {
+            if (other.has(metric)) {
+                setChildren(metric, getChildren(metric) + other.get(metric));
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        MetricValues that = (MetricValues) o;
+
+        if (mask != that.mask) return false;
+        if (!Arrays.equals(values, that.values)) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mask;
+        result = 31 * result + Arrays.hashCode(values);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("MetricValues{");
+        for (Metric metric : getMetrics()) {
+            if (sb.length() > "MetricValues{".length()) {
+                sb.append(", ");
+            }
+            sb.append(metric).append('=').append(get(metric)).append('/').append(getChildren(metric));
+        }
+        return sb.append('}').toString();
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof;
+
+/**
+ * The hooks which the instrumented methods call at their entry and exit, which are woven by
+ * {@link Profiled} at compile time or by {@link groovyx.gprof.agent.ProfileAgent} at runtime.
+ * They feed the calls to the interceptors of the active profilers, and they only read the flags
+ * when no profiler is active in the thread, so the instrumentation can be kept permanently.
+ */
+public class ProfileHooks {
+
+    private static final SessionMultiplexer sessions = new SessionMultiplexer();
+
+    /**
+     * Starts feeding the calls of the instrumented methods to the interceptor
+     * in addition to the interceptors of the other active profilers.
+     * @param interceptor
+     *      the interceptor of the calls
+     */
+    public static void activate(CallInterceptor interceptor) {
+        sessions.add(interceptor);
+    }
+
+    /**
+     * Stops feeding the calls of the instrumented methods to the interceptor.
+     * @param interceptor
+     *      the interceptor of the calls
+     */
+    public static void deactivate(CallInterceptor interceptor) {
+        sessions.remove(interceptor);
+    }
+
+    public static boolean isActive() {
+        return sessions.size() > 0;
+    }
+
+    /**
+     * Intercepts the start of the call of the method.
+     * @param methodId
+     *      the id of the method
+     */
+    public static void enter(int methodId) {
+        if (sessions.isActive() && sessions.acceptMethod(methodId)) {
+            sessions.enter(methodId, System.nanoTime());
+        }
+    }
+
+    /**
+     * Intercepts the end of the call of the method whether it returns or throws.
+     * @param methodId
+     *      the id of the method
+     */
+    public static void exit(int methodId) {
+        if (sessions.isActive() && sessions.acceptMethod(methodId)) {
+            sessions.exit(methodId);
+        }
+    }
+
+}
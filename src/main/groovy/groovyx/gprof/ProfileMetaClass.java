@@ -17,8 +17,18 @@ package groovyx.gprof;
 
 import groovy.lang.*;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 /**
- * This class profiles when the method of the class is invoked.
+ * This class profiles when the method of the class is invoked. Optionally the access to the properties
+ * and the dispatch to methodMissing and propertyMissing are profiled as the entries of their own, which are
+ * named like <code>Foo.@prop</code> (get), <code>Foo.@prop=</code> (set), <code>Foo.methodMissing(bar)</code>
+ * and <code>Foo.propertyMissing(bar)</code>.
+ * <p>
+ * Whether any session is active in the thread is checked before anything else, so the threads which
+ * are not profiled do not look up the ids of the entries or read the clock. The id 0 means that
+ * the call is not intercepted.
  */
 public class ProfileMetaClass
     // org.codehaus.groovy.runtime.HandleMetaClass replaces the meta class with a new object of ExpandoMetaClass
@@ -27,23 +37,73 @@ public class ProfileMetaClass
     extends AdaptingExpandoMetaClass {
     // extends ProxyMetaClass {
     
-    protected CallInterceptor interceptor = null;
+    // dispatches the calls to the interceptors of the active sessions
+    protected SessionMultiplexer sessions = null;
+    
+    private static final Object[] METHOD_MISSING_ARGS = { String.class, Object.class };
+    private static final Object[] PROPERTY_MISSING_ARGS = { String.class };
+
+    // the ids of the entries of the class which are cached by the name of the method or the property
+    private final EntryIds methodIds = new EntryIds("", "");
+    private final EntryIds getPropertyIds = new EntryIds("@", "");
+    private final EntryIds setPropertyIds = new EntryIds("@", "=");
+    private final EntryIds methodMissingIds = new EntryIds("methodMissing(", ")");
+    private final EntryIds propertyMissingIds = new EntryIds("propertyMissing(", ")");
 
     public ProfileMetaClass(Class theClass, MetaClass metaClass) {
         super(metaClass, theClass);
         super.initialize();
     }
 
-    public void setInterceptor(CallInterceptor interceptor) {
-        this.interceptor = interceptor;
+    void setSessions(SessionMultiplexer sessions) {
+        this.sessions = sessions;
     }
     
     private long time() {
         return System.nanoTime();
     }
     
-    private long elapsedTime(long from) {
-        return time() - from;
+    private int methodId(Class theClass, String methodName) {
+        if (theClass != this.theClass) {
+            return MethodRegistry.getId(theClass.getName(), methodName);
+        }
+        return methodIds.get(methodName);
+    }
+
+    private boolean isMissingMethod(Object object, String methodName, Object[] arguments) {
+        return adaptee.getMetaMethod(methodName, arguments) == null
+                && adaptee.getMetaMethod("methodMissing", METHOD_MISSING_ARGS) != null;
+    }
+
+    private boolean isMissingProperty(Object object, String property) {
+        return adaptee.hasProperty(object, property) == null
+                && adaptee.getMetaMethod("propertyMissing", PROPERTY_MISSING_ARGS) != null;
+    }
+
+    /**
+     * Returns the id of the entry of getting the property, or 0 if it is not intercepted.
+     */
+    private int getPropertyId(Object object, String property) {
+        if (sessions.isInterceptMissing() && isMissingProperty(object, property)) {
+            return propertyMissingIds.get(property);
+        }
+        if (sessions.isInterceptProperties()) {
+            return getPropertyIds.get(property);
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the id of the entry of setting the property, or 0 if it is not intercepted.
+     */
+    private int setPropertyId(Object object, String property) {
+        if (sessions.isInterceptMissing() && isMissingProperty(object, property)) {
+            return propertyMissingIds.get(property);
+        }
+        if (sessions.isInterceptProperties()) {
+            return setPropertyIds.get(property);
+        }
+        return 0;
     }
 
     @Override
@@ -55,7 +115,7 @@ public class ProfileMetaClass
             if (!(closure.getMetaClass() instanceof ProfileMetaClass)) {
                 ProfileMetaClass proxyMetaClass = 
                         new ProfileMetaClass(closure.getClass(), closure.getMetaClass());
-                proxyMetaClass.setInterceptor(interceptor);
+                proxyMetaClass.setSessions(sessions);
                 closure.setMetaClass(proxyMetaClass);
             }
         }
@@ -63,51 +123,136 @@ public class ProfileMetaClass
     }
 
     public Object invokeMethod(final Object object, final String methodName, final Object[] arguments) {
+        int methodId = !sessions.isActive() ? 0
+                : sessions.isInterceptMissing() && isMissingMethod(object, methodName, arguments) ?
+                        methodMissingIds.get(methodName) : methodId(object.getClass(), methodName);
+        if (methodId == 0 || !sessions.acceptMethod(methodId)) {
+            return super.invokeMethod(object, methodName, arguments);
+        }
         long interceptStartTime = time();
-        MethodCallInfo methodCall = new MethodCallInfo(object.getClass().getName(), methodName);
-        interceptor.beforeInvoke(methodCall);
-        long executeStartTime = time();
+        sessions.enter(methodId, interceptStartTime);
         try {
             return super.invokeMethod(object, methodName, arguments);
         } finally {
-            long executeTime = elapsedTime(executeStartTime);
-            methodCall.setTime(executeTime);
-            interceptor.afterInvoke(methodCall);
-            long interceptTime = elapsedTime(interceptStartTime);
-            methodCall.setOverheadTime(interceptTime - executeTime);
+            sessions.exit(methodId);
         }
     }
 
     public Object invokeStaticMethod(final Object object, final String methodName, final Object[] arguments) {
+        int methodId = sessions.isActive() ? methodId(theClass, methodName) : 0;
+        if (methodId == 0 || !sessions.acceptMethod(methodId)) {
+            return super.invokeStaticMethod(object, methodName, arguments);
+        }
         long interceptStartTime = time();
-        MethodCallInfo methodCall = new MethodCallInfo(theClass.getName(), methodName);
-        interceptor.beforeInvoke(methodCall);
-        long executeStartTime = time();
+        sessions.enter(methodId, interceptStartTime);
         try {
             return super.invokeStaticMethod(object, methodName, arguments);
         } finally {
-            long executeTime = elapsedTime(executeStartTime);
-            methodCall.setTime(executeTime);
-            interceptor.afterInvoke(methodCall);
-            long interceptTime = elapsedTime(interceptStartTime);
-            methodCall.setOverheadTime(interceptTime - executeTime);
+            sessions.exit(methodId);
         }
     }
 
     public Object invokeConstructor(final Object[] arguments) {
+        int methodId = sessions.isActive() ? methodId(theClass, "ctor") : 0;
+        if (methodId == 0 || !sessions.acceptMethod(methodId)) {
+            return super.invokeConstructor(arguments);
+        }
         long interceptStartTime = time();
-        MethodCallInfo methodCall = new MethodCallInfo(theClass.getName(), "ctor");
-        interceptor.beforeInvoke(methodCall);
-        long executeStartTime = time();
+        sessions.enter(methodId, interceptStartTime);
         try {
             return super.invokeConstructor(arguments);
         } finally {
-            long executeTime = elapsedTime(executeStartTime);
-            methodCall.setTime(executeTime);
-            interceptor.afterInvoke(methodCall);
-            long interceptTime = elapsedTime(interceptStartTime);
-            methodCall.setOverheadTime(interceptTime - executeTime);
+            sessions.exit(methodId);
+        }
+    }
+
+    @Override
+    public Object getProperty(Object object, String property) {
+        int methodId = sessions.isActive() ? getPropertyId(object, property) : 0;
+        if (methodId == 0 || !sessions.acceptMethod(methodId)) {
+            return super.getProperty(object, property);
+        }
+        long interceptStartTime = time();
+        sessions.enter(methodId, interceptStartTime);
+        try {
+            return super.getProperty(object, property);
+        } finally {
+            sessions.exit(methodId);
         }
     }
 
+    @Override
+    public Object getProperty(Class sender, Object object, String name, boolean useSuper, boolean fromInsideClass) {
+        int methodId = sessions.isActive() ? getPropertyId(object, name) : 0;
+        if (methodId == 0 || !sessions.acceptMethod(methodId)) {
+            return super.getProperty(sender, object, name, useSuper, fromInsideClass);
+        }
+        long interceptStartTime = time();
+        sessions.enter(methodId, interceptStartTime);
+        try {
+            return super.getProperty(sender, object, name, useSuper, fromInsideClass);
+        } finally {
+            sessions.exit(methodId);
+        }
+    }
+
+    @Override
+    public void setProperty(Object object, String property, Object newValue) {
+        int methodId = sessions.isActive() ? setPropertyId(object, property) : 0;
+        if (methodId == 0 || !sessions.acceptMethod(methodId)) {
+            super.setProperty(object, property, newValue);
+            return;
+        }
+        long interceptStartTime = time();
+        sessions.enter(methodId, interceptStartTime);
+        try {
+            super.setProperty(object, property, newValue);
+        } finally {
+            sessions.exit(methodId);
+        }
+    }
+
+    @Override
+    public void setProperty(Class sender, Object object, String name, Object newValue,
+                            boolean useSuper, boolean fromInsideClass) {
+        int methodId = sessions.isActive() ? setPropertyId(object, name) : 0;
+        if (methodId == 0 || !sessions.acceptMethod(methodId)) {
+            super.setProperty(sender, object, name, newValue, useSuper, fromInsideClass);
+            return;
+        }
+        long interceptStartTime = time();
+        sessions.enter(methodId, interceptStartTime);
+        try {
+            super.setProperty(sender, object, name, newValue, useSuper, fromInsideClass);
+        } finally {
+            sessions.exit(methodId);
+        }
+    }
+
+    /**
+     * The ids of the entries of the class whose names are made of the names of the methods or the properties.
+     * The ids are cached by the names, so looking them up does not allocate.
+     */
+    private class EntryIds {
+
+        private final String prefix;
+        private final String suffix;
+        private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+        EntryIds(String prefix, String suffix) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+
+        int get(String name) {
+            Integer id = ids.get(name);
+            if (id == null) {
+                id = MethodRegistry.getId(theClass.getName(), prefix + name + suffix);
+                ids.put(name, id);
+            }
+            return id;
+        }
+
+    }
+
 }
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof;
+
+import org.codehaus.groovy.transform.GroovyASTTransformationClass;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Weaves the calls of {@link ProfileHooks} into the methods and the constructors at compile time,
+ * so their calls are profiled without proxying the meta classes when a profiler runs in the annotation mode
+ * or the agent mode. On a class, all the methods and the constructors which are declared in the class are
+ * instrumented. It works for statically compiled code as well.
+ * <pre>
+ * &#64;Profiled
+ * class Service {
+ *     def handle(request) {
+ *         // ...
+ *     }
+ * }
+ *
+ * profile(mode: "annotation") {
+ *     service.handle(request)
+ * }.prettyPrint()
+ * </pre>
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target({ ElementType.TYPE, ElementType.METHOD, ElementType.CONSTRUCTOR })
+@GroovyASTTransformationClass("groovyx.gprof.ProfiledASTTransformation")
+public @interface Profiled {
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof;
+
+import groovyjarjarasm.asm.Opcodes;
+import org.codehaus.groovy.ast.*;
+import org.codehaus.groovy.ast.expr.*;
+import org.codehaus.groovy.ast.stmt.*;
+import org.codehaus.groovy.control.CompilePhase;
+import org.codehaus.groovy.control.SourceUnit;
+import org.codehaus.groovy.control.messages.SyntaxErrorMessage;
+import org.codehaus.groovy.syntax.SyntaxException;
+import org.codehaus.groovy.transform.ASTTransformation;
+import org.codehaus.groovy.transform.GroovyASTTransformation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The transformation of {@link Profiled}. The body of each method is wrapped as follows:
+ * <pre>
+ * ProfileHooks.enter($gprof$id0)
+ * try {
+ *     // the original body
+ * } finally {
+ *     ProfileHooks.exit($gprof$id0)
+ * }
+ * </pre>
+ * where the static field holds the id of the method which {@link MethodRegistry} gives when the class
+ * is initialized. The call of the super or this constructor stays at the top of the constructor.
+ */
+@GroovyASTTransformation(phase = CompilePhase.SEMANTIC_ANALYSIS)
+public class ProfiledASTTransformation implements ASTTransformation {
+
+    private static final ClassNode HOOKS = ClassHelper.make(ProfileHooks.class);
+    private static final ClassNode REGISTRY = ClassHelper.make(MethodRegistry.class);
+    private static final String ID_FIELD_PREFIX = "$gprof$id";
+    private static final int ID_FIELD_MODIFIERS =
+            Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC;
+
+    public void visit(ASTNode[] nodes, SourceUnit source) {
+        if (nodes.length != 2 || !(nodes[0] instanceof AnnotationNode)) {
+            return;
+        }
+        if (nodes[1] instanceof ClassNode) {
+            ClassNode classNode = (ClassNode) nodes[1];
+            if (classNode.isInterface()) {
+                addError("@Profiled cannot be applied to an interface", classNode, source);
+                return;
+            }
+            List<MethodNode> methods = new ArrayList<MethodNode>(classNode.getMethods());
+            methods.addAll(classNode.getDeclaredConstructors());
+            for (MethodNode method : methods) {
+                instrument(classNode, method);
+            }
+        } else if (nodes[1] instanceof MethodNode) {
+            MethodNode method = (MethodNode) nodes[1];
+            if (method.isAbstract()) {
+                addError("@Profiled cannot be applied to an abstract method", method, source);
+                return;
+            }
+            instrument(method.getDeclaringClass(), method);
+        }
+    }
+
+    private void instrument(ClassNode classNode, MethodNode method) {
+        if (method.isAbstract() || method.isSynthetic() || method.getCode() == null
+                || method.getName().startsWith("$") || method.getName().equals("<clinit>")
+                || method.getNodeMetaData(ProfiledASTTransformation.class) != null) {
+            return;
+        }
+        // the method may be annotated in the annotated class
+        method.setNodeMetaData(ProfiledASTTransformation.class, Boolean.TRUE);
+
+        String methodName = method instanceof ConstructorNode ? "ctor" : method.getName();
+        FieldNode idField = addIdField(classNode, methodName);
+
+        Statement code = method.getCode();
+        BlockStatement body = new BlockStatement();
+        BlockStatement tryBlock = new BlockStatement();
+        if (code instanceof BlockStatement) {
+            BlockStatement block = (BlockStatement) code;
+            body.setVariableScope(block.getVariableScope());
+            tryBlock.setVariableScope(block.getVariableScope());
+            List<Statement> statements = block.getStatements();
+            for (int i = 0; i < statements.size(); i++) {
+                Statement statement = statements.get(i);
+                if (i == 0 && isSpecialConstructorCall(statement)) {
+                    body.addStatement(statement);
+                } else {
+                    tryBlock.addStatement(statement);
+                }
+            }
+        } else {
+            tryBlock.addStatement(code);
+        }
+        body.addStatement(new ExpressionStatement(callHook("enter", idField)));
+        body.addStatement(new TryCatchStatement(tryBlock, new ExpressionStatement(callHook("exit", idField))));
+        method.setCode(body);
+    }
+
+    private static FieldNode addIdField(ClassNode classNode, String methodName) {
+        int index = 0;
+        while (classNode.getDeclaredField(ID_FIELD_PREFIX + index) != null) {
+            index++;
+        }
+        Expression id = callStatic(REGISTRY, "getId",
+                new ConstantExpression(classNode.getName()), new ConstantExpression(methodName));
+        return classNode.addField(ID_FIELD_PREFIX + index, ID_FIELD_MODIFIERS, ClassHelper.int_TYPE, id);
+    }
+
+    private static Expression callHook(String name, FieldNode idField) {
+        return callStatic(HOOKS, name, new FieldExpression(idField));
+    }
+
+    /**
+     * Makes the call of the static method which is compiled to invokestatic even in the dynamic code,
+     * so it does not go through the call site and the meta class which the profiler proxies.
+     */
+    private static Expression callStatic(ClassNode owner, String name, Expression... args) {
+        MethodCallExpression call = new MethodCallExpression(new ClassExpression(owner), name,
+                new ArgumentListExpression(args));
+        call.setImplicitThis(false);
+        for (MethodNode method : owner.getMethods(name)) {
+            if (method.isStatic() && method.getParameters().length == args.length) {
+                call.setMethodTarget(method);
+            }
+        }
+        return call;
+    }
+
+    private static boolean isSpecialConstructorCall(Statement statement) {
+        return statement instanceof ExpressionStatement
+                && ((ExpressionStatement) statement).getExpression() instanceof ConstructorCallExpression
+                && ((ConstructorCallExpression) ((ExpressionStatement) statement).getExpression()).isSpecialCall();
+    }
+
+    private static void addError(String message, ASTNode node, SourceUnit source) {
+        source.getErrorCollector().addErrorAndContinue(new SyntaxErrorMessage(new SyntaxException(
+                message, node.getLineNumber(), node.getColumnNumber(),
+                node.getLastLineNumber(), node.getLastColumnNumber()), source));
+    }
+
+}
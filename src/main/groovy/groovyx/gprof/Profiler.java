@@ -16,12 +16,11 @@
 package groovyx.gprof;
 
 import groovy.lang.*;
-import org.codehaus.groovy.reflection.ClassInfo;
-import org.codehaus.groovy.runtime.DefaultGroovyMethods;
-import org.codehaus.groovy.runtime.MetaClassHelper;
+import groovyx.gprof.agent.ProfileAgent;
+import groovyx.gprof.flat.FlatReport;
+import org.codehaus.groovy.runtime.typehandling.DefaultTypeTransformation;
 
 import java.lang.reflect.Field;
-import java.lang.reflect.Method;
 import java.util.*;
 
 /**
@@ -42,6 +41,16 @@ import java.util.*;
  * prof.stop()
  * prof.report.prettyPrint()
  * </pre>
+ * profileIf() with a condition, which profiles only the selected runs, e.g. 1% of the requests:
+ * <pre>
+ * prof.start(conditional: true)
+ * // for each request
+ * prof.profileIf({ Math.random() &lt; 0.01 }) {
+ *     // code
+ * }
+ * </pre>
+ * The profilers can run at the same time, e.g. for the concurrent requests. They share one layer of
+ * the interception, which feeds each call to every running profiler with its own filters and report.
  * 
  * @author Masato Nagai
  */
@@ -54,10 +63,29 @@ public class Profiler extends MetaClassRegistry.MetaClassCreationHandle {
         defaultOptions.put("excludeMethods", Arrays.asList(Profiler.class.getName() + ".stop"));
         defaultOptions.put("includeThreads", Collections.emptyList());
         defaultOptions.put("excludeThreads", Collections.emptyList());
+        defaultOptions.put("includeClasses", Collections.emptyList());
+        defaultOptions.put("excludeClasses", Collections.emptyList());
+        defaultOptions.put("capture", "tree");
+        defaultOptions.put("mode", "interception");
+        defaultOptions.put("samplingInterval", 10);
+        defaultOptions.put("continuous", false);
+        defaultOptions.put("window", 60);
+        defaultOptions.put("windows", 10);
+        defaultOptions.put("allocation", false);
+        defaultOptions.put("cpu", false);
+        defaultOptions.put("contention", false);
+        defaultOptions.put("properties", false);
+        defaultOptions.put("missing", false);
+        defaultOptions.put("conditional", false);
     }
 
-    private MetaClassRegistry.MetaClassCreationHandle originalMetaClassCreationHandle;
     private CallInterceptor interceptor;
+    private Sampler sampler;
+    private WindowAggregator windowAggregator;
+    // the mode which feeds the calls to the interceptor while profiling, or null
+    private String mode;
+    // the metrics which have been acquired by the profiler, which are released when it stops
+    private List<Metric> acquiredMetrics = new ArrayList<Metric>();
 
     public Report run(Closure profiled) {
         return run(Collections.<String, Object>emptyMap(), profiled);
@@ -68,9 +96,35 @@ public class Profiler extends MetaClassRegistry.MetaClassCreationHandle {
      * @param options
      *      <ul>
      *      <li>includeMethods a method name to be included.</li>
-     *      <li>excludeMethods a method name to be excluded.</li>
+     *      <li>excludeMethods a method name to be excluded. The calls of the excluded methods are not captured,
+     *      so their time, except the included calls in them, is counted in the self time of their callers.</li>
      *      <li>includeThreads a thread name to be included.</li>
      *      <li>excludeThreads a thread name to be excluded.</li>
+     *      <li>includeClasses a class name whose meta class is proxied. The calls of the methods of
+     *      the other classes are not intercepted at all, so they run at full speed.</li>
+     *      <li>excludeClasses a class name whose meta class is not proxied.</li>
+     *      <li>capture "tree" to keep every call as a node of the call tree (default), "events" to record
+     *      every call as compact events, which builds the call tree on demand, "aggregate" to merge the calls
+     *      along the same call path or "flat" to count the calls of each method only, whose report has no
+     *      call graph.</li>
+     *      <li>mode "interception" to intercept every call (default), "sampling" to sample the stacks of
+     *      the threads periodically, which aggregates the calls along the same call path, or "agent" to
+     *      instrument the bytecode of the included methods by {@link groovyx.gprof.agent.ProfileAgent},
+     *      which needs includeMethods and the JVM which is run with <code>-javaagent:gprof.jar</code>,
+     *      or "annotation" to profile only the methods which are instrumented by {@link Profiled}.
+     *      The methods which are instrumented by {@link Profiled} are profiled in the agent mode as well.</li>
+     *      <li>samplingInterval the minimum interval of the samples in milliseconds. It is stretched when
+     *      taking the samples would spend more than 2% of the time, e.g. with many threads.</li>
+     *      <li>allocation true to measure the bytes which each call allocates in the heap, which needs
+     *      HotSpot and the interception mode.</li>
+     *      <li>cpu true to measure the CPU time of each call in addition to the wall clock time, which needs
+     *      the interception mode.</li>
+     *      <li>contention true to measure the time which each call is blocked on the monitors and waits for
+     *      the notifications, which needs the interception mode.</li>
+     *      <li>properties true to profile getting and setting the properties as the entries named like
+     *      <code>Foo.@prop</code> and <code>Foo.@prop=</code>.</li>
+     *      <li>missing true to profile the dispatch to methodMissing and propertyMissing as the entries named like
+     *      <code>Foo.methodMissing(bar)</code> and <code>Foo.propertyMissing(bar)</code>.</li>
      *      </ul>
      * @param profiled
      *      a callable object to be run and profiled.
@@ -118,9 +172,43 @@ public class Profiler extends MetaClassRegistry.MetaClassCreationHandle {
      * @param options
      *      <ul>
      *      <li>includeMethods a method name to be included.</li>
-     *      <li>excludeMethods a method name to be excluded.</li>
+     *      <li>excludeMethods a method name to be excluded. The calls of the excluded methods are not captured,
+     *      so their time, except the included calls in them, is counted in the self time of their callers.</li>
      *      <li>includeThreads a thread name to be included.</li>
      *      <li>excludeThreads a thread name to be excluded.</li>
+     *      <li>includeClasses a class name whose meta class is proxied. The calls of the methods of
+     *      the other classes are not intercepted at all, so they run at full speed.</li>
+     *      <li>excludeClasses a class name whose meta class is not proxied.</li>
+     *      <li>capture "tree" to keep every call as a node of the call tree (default), "events" to record
+     *      every call as compact events, which builds the call tree on demand, "aggregate" to merge the calls
+     *      along the same call path or "flat" to count the calls of each method only, whose report has no
+     *      call graph.</li>
+     *      <li>mode "interception" to intercept every call (default), "sampling" to sample the stacks of
+     *      the threads periodically, which aggregates the calls along the same call path, or "agent" to
+     *      instrument the bytecode of the included methods by {@link groovyx.gprof.agent.ProfileAgent},
+     *      which needs includeMethods and the JVM which is run with <code>-javaagent:gprof.jar</code>,
+     *      or "annotation" to profile only the methods which are instrumented by {@link Profiled}.
+     *      The methods which are instrumented by {@link Profiled} are profiled in the agent mode as well.</li>
+     *      <li>samplingInterval the minimum interval of the samples in milliseconds. It is stretched when
+     *      taking the samples would spend more than 2% of the time, e.g. with many threads.</li>
+     *      <li>continuous true to make a report for each window without stopping, which needs the events capture.
+     *      The events capture is used unless the capture is specified. The reports are available
+     *      by {@link #getWindowReports()}. It is not supported by the sampling mode.</li>
+     *      <li>window the length of a window in seconds.</li>
+     *      <li>windows the number of the windows to keep.</li>
+     *      <li>allocation true to measure the bytes which each call allocates in the heap, which needs
+     *      HotSpot and the interception mode.</li>
+     *      <li>cpu true to measure the CPU time of each call in addition to the wall clock time, which needs
+     *      the interception mode.</li>
+     *      <li>contention true to measure the time which each call is blocked on the monitors and waits for
+     *      the notifications, which needs the interception mode.</li>
+     *      <li>properties true to profile getting and setting the properties as the entries named like
+     *      <code>Foo.@prop</code> and <code>Foo.@prop=</code>.</li>
+     *      <li>missing true to profile the dispatch to methodMissing and propertyMissing as the entries named like
+     *      <code>Foo.methodMissing(bar)</code> and <code>Foo.propertyMissing(bar)</code>.</li>
+     *      <li>conditional true to profile only the calls in {@link #profileIf(boolean, Closure)}
+     *      whose condition is satisfied. The other calls pay only reading the flags.
+     *      It is not supported by the sampling mode.</li>
      *      </ul>
      */
     public void start(Map<String, Object> options) {
@@ -132,110 +220,174 @@ public class Profiler extends MetaClassRegistry.MetaClassCreationHandle {
         methodFilter.addExcludes((List) opts.get("excludeMethods"));
         threadFilter.addIncludes((List) opts.get("includeThreads"));
         threadFilter.addExcludes((List) opts.get("excludeThreads"));
+        CallFilter classFilter = new CallFilter();
+        classFilter.addIncludes((List) opts.get("includeClasses"));
+        classFilter.addExcludes((List) opts.get("excludeClasses"));
+        // the automata are built here rather than by the first call which is filtered
+        methodFilter.compile();
+        threadFilter.compile();
+        classFilter.compile();
         
-        if (interceptor == null) {
-            this.interceptor = new CallInterceptor(methodFilter, threadFilter);
+        boolean continuous = Boolean.TRUE.equals(opts.get("continuous"));
+        if (continuous && !options.containsKey("capture")) {
+            opts.put("capture", "events");
         }
+        CallInterceptor.Capture capture =
+                CallInterceptor.Capture.valueOf(opts.get("capture").toString().toUpperCase());
 
-        proxyMetaClasses();
-        List<Reference> refs = (List) opts.get("references");
-        if (refs != null) {
-            proxyPerInstanceMetaClasses(refs);
+        if (continuous && capture != CallInterceptor.Capture.EVENTS) {
+            throw new IllegalArgumentException("The continuous profiling needs the events capture: " + capture);
+        }
+        if (continuous && "sampling".equals(opts.get("mode"))) {
+            throw new IllegalArgumentException("The continuous profiling is not supported by sampling");
         }
-    }
 
-    private void proxyPerInstanceMetaClasses(List<Reference> refs) {
-        for (Reference ref : refs) {
-            Object obj = ref.get();
-            if (obj != null) {
-                Class theClass = obj.getClass();
-                if (obj instanceof GroovyObject) {
-                    GroovyObject gobj = (GroovyObject) obj;
-                    MetaClass metaClass = gobj.getMetaClass();
-                    MetaClass proxyMetaClass = proxyMetaClass(theClass, metaClass);
-                    DefaultGroovyMethods.setMetaClass(gobj, proxyMetaClass);
-                } else {
-                    MetaClass metaClass = DefaultGroovyMethods.getMetaClass(obj);
-                    MetaClass proxyMetaClass = proxyMetaClass(theClass, metaClass);
-                    MetaClassHelper.doSetMetaClass(obj, proxyMetaClass);
-                }
+        Set<Metric> metrics = EnumSet.noneOf(Metric.class);
+        if (Boolean.TRUE.equals(opts.get("allocation"))) {
+            metrics.add(Metric.ALLOCATED_BYTES);
+        }
+        if (Boolean.TRUE.equals(opts.get("cpu"))) {
+            metrics.add(Metric.CPU_TIME);
+        }
+        if (Boolean.TRUE.equals(opts.get("contention"))) {
+            metrics.add(Metric.BLOCKED_TIME);
+            metrics.add(Metric.WAITED_TIME);
+        }
+        if (!metrics.isEmpty() && "sampling".equals(opts.get("mode"))) {
+            throw new IllegalArgumentException("The metrics cannot be measured by sampling: " + metrics);
+        }
+        boolean conditional = Boolean.TRUE.equals(opts.get("conditional"));
+        if (conditional && "sampling".equals(opts.get("mode"))) {
+            throw new IllegalArgumentException("The conditional profiling is not supported by sampling");
+        }
+        for (Metric metric : metrics) {
+            if (!metric.isSupported()) {
+                throw new UnsupportedOperationException("The metric is not supported by this JVM: " + metric);
+            }
+        }
+        if ("agent".equals(opts.get("mode"))) {
+            if (((List) opts.get("includeMethods")).isEmpty()) {
+                throw new IllegalArgumentException("The agent mode needs includeMethods");
+            }
+            if (!ProfileAgent.isInstalled()) {
+                throw new IllegalStateException(
+                        "The agent is not loaded. Run the JVM with -javaagent:<path to gprof.jar>");
             }
         }
-    }
 
-    private void proxyMetaClasses() {
-        Set<Class> allClasses = getLoadedClasses();
-        MetaClassRegistry registry = GroovySystem.getMetaClassRegistry();
-        Map<Class, MetaClass> originalMetaClasses = new HashMap();
-        for (Class theClass : allClasses) {
-            MetaClass originalMetaClass = registry.getMetaClass(theClass);
-            originalMetaClasses.put(theClass, originalMetaClass);
+        if (interceptor == null) {
+            this.interceptor = new CallInterceptor(methodFilter, threadFilter, capture, metrics);
+            interceptor.setClassFilter(classFilter);
+            interceptor.setConditional(conditional);
+            interceptor.setInterceptProperties(Boolean.TRUE.equals(opts.get("properties")));
+            interceptor.setInterceptMissing(Boolean.TRUE.equals(opts.get("missing")));
         }
 
-        originalMetaClassCreationHandle = registry.getMetaClassCreationHandler();
-        registry.setMetaClassCreationHandle(this);
+        if ("sampling".equals(opts.get("mode"))) {
+            if (sampler == null) {
+                long interval = ((Number) opts.get("samplingInterval")).longValue();
+                sampler = new Sampler(interceptor, interval);
+            }
+            sampler.start();
+            return;
+        }
 
-        // creates and sets meta classes from the original meta classes
-        for (Map.Entry<Class, MetaClass> e : originalMetaClasses.entrySet()) {
-            Class theClass = e.getKey();
-            MetaClass metaClass = e.getValue();
-            MetaClass proxyMetaClass = proxyMetaClass(theClass, metaClass);
-            registry.setMetaClass(theClass, proxyMetaClass); 
+        // the metrics are acquired only after the options are validated, and released if starting fails
+        for (Metric metric : metrics) {
+            metric.acquire();
+            acquiredMetrics.add(metric);
+        }
+        try {
+            if ("agent".equals(opts.get("mode"))) {
+                ProfileAgent.start(interceptor);
+                ProfileHooks.activate(interceptor);
+                mode = "agent";
+            } else if ("annotation".equals(opts.get("mode"))) {
+                ProfileHooks.activate(interceptor);
+                mode = "annotation";
+            } else {
+                InterceptionLayer.getInstance().start(interceptor, (List<Reference>) opts.get("references"));
+                mode = "interception";
+            }
+        } catch (RuntimeException e) {
+            releaseMetrics();
+            throw e;
+        }
+
+        if (continuous) {
+            long windowMillis = (long) (((Number) opts.get("window")).doubleValue() * 1000);
+            int windows = ((Number) opts.get("windows")).intValue();
+            windowAggregator = new WindowAggregator(
+                    interceptor, new ThreadRunInfo(Thread.currentThread()), windowMillis, windows);
+            windowAggregator.start();
         }
     }
 
-    private Set<Class> getLoadedClasses() {
-        Set<Class> allClasses = new HashSet();
-        // ClassInfo.getAllClassInfo() returns cached class info and there is a case it doesn't return
-        // all of the loaded classes. This is a hack to ignore the cache.
+    /**
+     * Runs the closure and profiles the calls in it if the predicate is satisfied.
+     * @param predicate
+     *      a callable object which is called in the thread to decide whether the calls are profiled
+     * @param profiled
+     *      a callable object to be run
+     * @return the result of the closure
+     * @see #profileIf(boolean, Closure)
+     */
+    public Object profileIf(Closure predicate, Closure profiled) {
+        return profileIf(DefaultTypeTransformation.castToBoolean(predicate.call()), profiled);
+    }
+
+    /**
+     * Runs the closure and profiles the calls in it if the condition is true. The calls in the closure
+     * are profiled only in the current thread, and the profiler needs to be started with the conditional option
+     * to leave the other calls unprofiled.
+     * @param condition
+     *      true to profile the calls in the closure
+     * @param profiled
+     *      a callable object to be run
+     * @return the result of the closure
+     */
+    public Object profileIf(boolean condition, Closure profiled) {
+        CallInterceptor interceptor = this.interceptor;
+        if (!condition || interceptor == null || !interceptor.isConditional()) {
+            return profiled.call();
+        }
+        SessionMultiplexer.activate(interceptor);
         try {
-            Field classSetField = ClassInfo.class.getDeclaredField("globalClassSet");
-            classSetField.setAccessible(true);
-/* $if version < 2.4 $ */
-            ClassInfo.ClassInfoSet classSet = (ClassInfo.ClassInfoSet) classSetField.get(ClassInfo.class);
-            for (ClassInfo classInfo : (Collection<ClassInfo>) classSet.values()) {
-                allClasses.add(classInfo.get());
-            }
-/* $endif$ */
-/* $if version >= 2.4 $ */
-            Object classSet = classSetField.get(ClassInfo.class);
-            Method valuesMethod = classSet.getClass().getDeclaredMethod("values");
-            valuesMethod.setAccessible(true);
-            for (ClassInfo classInfo : (Collection<ClassInfo>) valuesMethod.invoke(classSet)) {
-                allClasses.add(classInfo.getMetaClass().getTheClass());
-            }
-/* $endif$ */
-        } catch (Exception e) {
-            e.printStackTrace();
+            return profiled.call();
+        } finally {
+            SessionMultiplexer.deactivate(interceptor);
         }
-        return allClasses;
     }
 
     /**
      * Stops profiling.
      */
     public void stop() {
-        MetaClassRegistry registry = GroovySystem.getMetaClassRegistry();
-        Set<ProfileMetaClass> proxyMetaClasses = new HashSet(); 
-        for (ClassInfo classInfo : ClassInfo.getAllClassInfo()) {
-/* $if version < 2.4 $ */
-            Class theClass = classInfo.get();
-            MetaClass metaClass = registry.getMetaClass(theClass);
-/* $endif */            
-/* $if version >= 2.4 $ */
-            MetaClass metaClass = classInfo.getMetaClass();
-/* $endif */            
-            if (metaClass instanceof ProfileMetaClass) {
-                proxyMetaClasses.add((ProfileMetaClass) metaClass);
-            }
+        if (sampler != null) {
+            sampler.stop();
+            return;
         }
-        
-        // resetting the meta class creation handler clears all the meta classes.
-        registry.setMetaClassCreationHandle(originalMetaClassCreationHandle);
+        if ("agent".equals(mode)) {
+            ProfileAgent.stop();
+        }
+        if ("interception".equals(mode)) {
+            InterceptionLayer.getInstance().stop(interceptor);
+        } else if (mode != null) {
+            ProfileHooks.deactivate(interceptor);
+        }
+        // the last window is closed after the calls stop being captured
+        if (windowAggregator != null) {
+            windowAggregator.stop();
+        }
+        mode = null;
+        releaseMetrics();
+    }
 
-        for (ProfileMetaClass proxyMetaClass : proxyMetaClasses) {
-            registry.setMetaClass(proxyMetaClass.getTheClass(), proxyMetaClass.getAdaptee());
+    private void releaseMetrics() {
+        for (Metric metric : acquiredMetrics) {
+            metric.release();
         }
+        acquiredMetrics.clear();
     }
 
     /**
@@ -243,32 +395,70 @@ public class Profiler extends MetaClassRegistry.MetaClassCreationHandle {
      */
     public void reset() {
         interceptor = null;
+        sampler = null;
+        windowAggregator = null;
     }
 
     /**
-     * Returns the report.
+     * Returns the report. In the continuous profiling, it is the report of the last window.
      * @return the report
      */
     public Report getReport() {
+        if (windowAggregator != null) {
+            List<Report> reports = windowAggregator.getReports();
+            if (reports.isEmpty()) {
+                return new ProxyReport(new CallTree(Thread.currentThread()));
+            }
+            return reports.get(reports.size() - 1);
+        }
+        if (sampler == null && interceptor.getCapture() == CallInterceptor.Capture.FLAT) {
+            Thread thread = Thread.currentThread();
+            return new FlatReport(new ThreadInfo(thread.getName(), thread.getId()), interceptor.getCounters());
+        }
         return new ProxyReport(interceptor.getTree());
     }
-    
-    private MetaClass proxyMetaClass(Class theClass, MetaClass metaClass) {
-        if (MetaClass.class.isAssignableFrom(theClass)) {
-            return metaClass;
+
+    /**
+     * Returns the report of the calls which have been captured so far while profiling is running.
+     * The calls which have not finished yet are accounted up to the time of the snapshot.
+     * This is supported only by the events capture which is not continuous.
+     * @return the report
+     */
+    public Report snapshot() {
+        if (interceptor == null) {
+            throw new IllegalStateException("The profiler has not been started");
+        }
+        if (sampler != null || windowAggregator != null || interceptor.getCapture() != CallInterceptor.Capture.EVENTS) {
+            throw new IllegalStateException(
+                    "A snapshot is supported only by the events capture which is not continuous");
+        }
+        return new ProxyReport(interceptor.getTree());
+    }
+
+    /**
+     * Returns the reports of the last windows of the continuous profiling from the oldest one.
+     * @return the reports
+     */
+    public List<Report> getWindowReports() {
+        if (windowAggregator == null) {
+            return Collections.emptyList();
         }
-        ProfileMetaClass proxyMetaClass = new ProfileMetaClass(theClass, metaClass);
-        proxyMetaClass.setInterceptor(interceptor);
-        return proxyMetaClass;
+        return windowAggregator.getReports();
     }
 
+    /**
+     * Creates the meta class of a class which is looked up while profiling.
+     * @deprecated the profilers share the interception layer, which is set as the creation handle
+     *      instead of the profiler. This delegates to the layer while it is installed.
+     */
+    @Deprecated
     @Override
     protected MetaClass createNormalMetaClass(Class theClass, MetaClassRegistry registry) {
-        if (theClass == ProfileMetaClass.class) {
+        InterceptionLayer layer = InterceptionLayer.getInstance();
+        if (!layer.isInstalled()) {
             return super.createNormalMetaClass(theClass, registry);
         }
-        MetaClass metaClass = new MetaClassImpl(registry, theClass);
-        return proxyMetaClass(theClass, metaClass);
+        return layer.createNormalMetaClass(theClass, registry);
     }
 
 }
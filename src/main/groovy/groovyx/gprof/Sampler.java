@@ -0,0 +1,249 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A sampler which takes the stacks of the threads periodically instead of intercepting the calls.
+ * The frames of the stacks are mapped to the methods and the runtime frames of Groovy and the profiler
+ * are folded away. A method is regarded to be called when it appears in the stack at a sample and
+ * to return when it disappears at a later sample, and the calls are aggregated along the call paths.
+ */
+public class Sampler implements Runnable {
+
+    private static final String[] RUNTIME_PACKAGES = {
+        "java.lang.reflect.", "java.lang.invoke.", "sun.reflect.", "jdk.internal.", "com.sun.proxy.",
+        "groovy.lang.", "org.codehaus.groovy.",
+    };
+
+    // the share of the time which the sampler may spend in taking the samples.
+    // the interval is stretched when a sample takes longer, e.g. with many threads or deep stacks.
+    // the first sample is not counted, which is slow to load the classes and would stall the sampling.
+    private static final double MAX_DUTY = 0.02;
+
+    private CallInterceptor interceptor;
+    private long interval;
+    private Thread thread;
+    private volatile boolean running;
+    private Map<Thread, ThreadSampler> threadSamplers = new HashMap<Thread, ThreadSampler>();
+    // the id of each method of the frames which have been sampled, or 0 if the method is not profiled.
+    // only the methods which are profiled are registered, so the frames of the JDK and the frameworks
+    // do not grow the global registry.
+    private Map<String, Map<String, Integer>> frameMethodIds = new HashMap<String, Map<String, Integer>>();
+
+    /**
+     * @param interceptor
+     *      the interceptor which filters the threads and the methods and keeps the results
+     * @param interval
+     *      the minimum interval of the samples in milliseconds. The interval is stretched so that taking
+     *      the samples spends up to 2% of the time.
+     */
+    public Sampler(CallInterceptor interceptor, long interval) {
+        this.interceptor = interceptor;
+        this.interval = interval;
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, "gprof-sampler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long time = System.nanoTime();
+        for (ThreadSampler threadSampler : threadSamplers.values()) {
+            threadSampler.exitTo(0, time);
+        }
+    }
+
+    @Override
+    public void run() {
+        boolean first = true;
+        while (running) {
+            long start = System.nanoTime();
+            sample();
+            long elapsed = first ? 0 : System.nanoTime() - start;
+            first = false;
+            try {
+                Thread.sleep(Math.max(interval, (long) (elapsed * (1 - MAX_DUTY) / MAX_DUTY / 1000000)));
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    void sample() {
+        Map<Thread, StackTraceElement[]> stacks = Thread.getAllStackTraces();
+        long time = System.nanoTime();
+        for (Map.Entry<Thread, StackTraceElement[]> e : stacks.entrySet()) {
+            Thread theThread = e.getKey();
+            if (theThread == thread || isSystemThread(theThread)) {
+                continue;
+            }
+            ThreadSampler threadSampler = threadSamplers.get(theThread);
+            if (threadSampler == null) {
+                if (!interceptor.acceptThread(theThread)) {
+                    continue;
+                }
+                threadSampler = new ThreadSampler(theThread);
+                threadSamplers.put(theThread, threadSampler);
+                interceptor.addLocalInterceptor(threadSampler.interceptor);
+            }
+            int[] path = fold(e.getValue());
+            threadSampler.sample(path, time);
+        }
+        // the calls of the terminated threads
+        for (Iterator<Map.Entry<Thread, ThreadSampler>> it = threadSamplers.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Thread, ThreadSampler> e = it.next();
+            if (!stacks.containsKey(e.getKey())) {
+                e.getValue().exitTo(0, time);
+                it.remove();
+            }
+        }
+    }
+
+    private static boolean isSystemThread(Thread thread) {
+        ThreadGroup group = thread.getThreadGroup();
+        return group != null && group.getParent() == null;
+    }
+
+    /**
+     * Maps the frames of the stack to the ids of the methods from the outermost one.
+     */
+    int[] fold(StackTraceElement[] stack) {
+        int[] path = new int[stack.length];
+        int length = 0;
+        for (int i = stack.length - 1; i >= 0; i--) {
+            String className = stack[i].getClassName();
+            String methodName = stack[i].getMethodName();
+            if (className.equals(Profiler.class.getName())) {
+                if (methodName.equals("run")) {
+                    // the frames outside of the profiled closure are not profiled.
+                    length = 0;
+                    continue;
+                }
+                // the frames inside the profiler are not profiled.
+                break;
+            }
+            if (isRuntimeFrame(className, methodName)) {
+                continue;
+            }
+            if (methodName.equals("<init>")) {
+                methodName = "ctor";
+            }
+            int methodId = getMethodId(className, methodName);
+            if (methodId == 0) {
+                continue;
+            }
+            // a closure is called through its overloaded doCall() methods
+            if (methodName.equals("doCall") && length > 0 && path[length - 1] == methodId) {
+                continue;
+            }
+            path[length++] = methodId;
+        }
+        return Arrays.copyOf(path, length);
+    }
+
+    /**
+     * Returns the id of the method which is filtered before it is registered, or 0 if it is not profiled.
+     */
+    private int getMethodId(String className, String methodName) {
+        Map<String, Integer> methodIds = frameMethodIds.get(className);
+        if (methodIds == null) {
+            methodIds = new HashMap<String, Integer>();
+            frameMethodIds.put(className, methodIds);
+        }
+        Integer methodId = methodIds.get(methodName);
+        if (methodId == null) {
+            methodId = interceptor.acceptMethod(className, methodName) ? MethodRegistry.getId(className, methodName) : 0;
+            methodIds.put(methodName, methodId);
+        }
+        return methodId;
+    }
+
+    static boolean isRuntimeFrame(String className, String methodName) {
+        if (methodName.indexOf('$') >= 0) {
+            // the methods generated by the compiler such as $getCallSiteArray or this$dist$invoke$1
+            return true;
+        }
+        if (className.startsWith("org.codehaus.groovy.runtime.") && className.endsWith("GroovyMethods")) {
+            // the methods added by Groovy such as DefaultGroovyMethods.each are the methods of the users
+            return false;
+        }
+        for (String runtimePackage : RUNTIME_PACKAGES) {
+            if (className.startsWith(runtimePackage)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The calls in a thread which have been observed in the samples.
+     */
+    static class ThreadSampler {
+
+        private CallInterceptor.AggregatingLocalInterceptor interceptor;
+        private int[] path = new int[16];
+        private long[] enterTimes = new long[16];
+        private int depth;
+
+        ThreadSampler(Thread thread) {
+            interceptor = new CallInterceptor.AggregatingLocalInterceptor(thread);
+        }
+
+        void sample(int[] newPath, long time) {
+            int common = 0;
+            while (common < depth && common < newPath.length && path[common] == newPath[common]) {
+                common++;
+            }
+            exitTo(common, time);
+            if (newPath.length > path.length) {
+                path = Arrays.copyOf(path, Math.max(newPath.length, path.length * 2));
+                enterTimes = Arrays.copyOf(enterTimes, path.length);
+            }
+            for (int i = common; i < newPath.length; i++) {
+                interceptor.beforeInvoke(new MethodCallInfo(newPath[i]));
+                path[i] = newPath[i];
+                enterTimes[i] = time;
+            }
+            depth = newPath.length;
+        }
+
+        void exitTo(int newDepth, long time) {
+            while (depth > newDepth) {
+                depth--;
+                MethodCallInfo methodCall = new MethodCallInfo(path[depth]);
+                methodCall.setTime(time - enterTimes[depth]);
+                interceptor.afterInvoke(methodCall);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatches the intercepted calls to the interceptors of all the active sessions of profiling,
+ * so one layer of the interception serves the profilers which run at the same time, each with its own
+ * filters and trees.
+ * <p>
+ * The sessions are kept in an array which is replaced when a session is added or removed. Each thread
+ * remembers the sessions which it has entered each call with and exits the call from the same sessions,
+ * so a session which is added or removed in the middle of a call never sees an exit without the enter.
+ * <p>
+ * A conditional session intercepts the calls only in the threads which it has been activated in by
+ * {@link #activate(CallInterceptor)}. While only the conditional sessions are active, the threads which
+ * are not activated pay reading the flags for each call.
+ */
+class SessionMultiplexer {
+
+    private static final CallInterceptor[] NO_SESSIONS = new CallInterceptor[0];
+
+    // the number of the activations of the conditional sessions in all the threads
+    private static final AtomicInteger activations = new AtomicInteger();
+    private static final ThreadLocal<Activations> localActivations = new ThreadLocal<Activations>() {
+        @Override
+        protected Activations initialValue() {
+            return new Activations();
+        }
+    };
+
+    private volatile CallInterceptor[] sessions = NO_SESSIONS;
+    private volatile int unconditionalSessions;
+    private volatile boolean interceptProperties;
+    private volatile boolean interceptMissing;
+    // replaced when the last session is removed, so the threads do not keep the interceptors of the old sessions
+    private volatile ThreadLocal<LocalSessions> localSessions = newLocalSessions();
+
+    private static ThreadLocal<LocalSessions> newLocalSessions() {
+        return new ThreadLocal<LocalSessions>() {
+            @Override
+            protected LocalSessions initialValue() {
+                return new LocalSessions();
+            }
+        };
+    }
+
+    /**
+     * Adds a session whose interceptor is fed by the calls from now on.
+     * @return the number of the active sessions
+     */
+    synchronized int add(CallInterceptor session) {
+        CallInterceptor[] newSessions = Arrays.copyOf(sessions, sessions.length + 1);
+        newSessions[sessions.length] = session;
+        update(newSessions);
+        return newSessions.length;
+    }
+
+    /**
+     * Removes a session. The calls which it has entered are still exited from it.
+     * @return the number of the active sessions
+     */
+    synchronized int remove(CallInterceptor session) {
+        CallInterceptor[] newSessions = new CallInterceptor[sessions.length];
+        int size = 0;
+        for (CallInterceptor s : sessions) {
+            if (s != session) {
+                newSessions[size++] = s;
+            }
+        }
+        update(Arrays.copyOf(newSessions, size));
+        if (size == 0) {
+            localSessions = newLocalSessions();
+        }
+        return size;
+    }
+
+    private void update(CallInterceptor[] newSessions) {
+        boolean properties = false;
+        boolean missing = false;
+        int unconditional = 0;
+        for (CallInterceptor session : newSessions) {
+            properties |= session.isInterceptProperties();
+            missing |= session.isInterceptMissing();
+            if (!session.isConditional()) {
+                unconditional++;
+            }
+        }
+        interceptProperties = properties;
+        interceptMissing = missing;
+        unconditionalSessions = unconditional;
+        sessions = newSessions;
+    }
+
+    int size() {
+        return sessions.length;
+    }
+
+    /**
+     * Activates a conditional session in the current thread until {@link #deactivate(CallInterceptor)}.
+     * The activations can be nested.
+     */
+    static void activate(CallInterceptor session) {
+        localActivations.get().add(session);
+        activations.incrementAndGet();
+    }
+
+    static void deactivate(CallInterceptor session) {
+        activations.decrementAndGet();
+        localActivations.get().remove(session);
+    }
+
+    /**
+     * Returns whether any session may intercept the calls in the current thread. It is checked before anything
+     * else for each call, and it only reads the flags unless a conditional session is activated in some thread.
+     */
+    boolean isActive() {
+        if (unconditionalSessions > 0) {
+            return true;
+        }
+        return activations.get() > 0 && localActivations.get().size > 0;
+    }
+
+    /**
+     * Returns whether any session intercepts the calls of the method.
+     */
+    boolean acceptMethod(int methodId) {
+        for (CallInterceptor session : sessions) {
+            if (session.acceptMethod(methodId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether any session intercepts the access to the properties.
+     */
+    boolean isInterceptProperties() {
+        return interceptProperties;
+    }
+
+    /**
+     * Returns whether any session intercepts the dispatch to methodMissing and propertyMissing.
+     */
+    boolean isInterceptMissing() {
+        return interceptMissing;
+    }
+
+    /**
+     * Intercepts the start of the call of the method for each session which accepts it.
+     */
+    void enter(int methodId, long interceptStartTime) {
+        localSessions.get().enter(sessions, methodId, interceptStartTime);
+    }
+
+    /**
+     * Intercepts the end of the call of the method for the sessions which have entered it.
+     */
+    void exit(int methodId) {
+        localSessions.get().exit(methodId);
+    }
+
+    /**
+     * The sessions which a thread has entered the calls with. The local interceptors of the sessions are
+     * looked up once for each array of the sessions, so dispatching a call does not look up the thread local
+     * of each session.
+     */
+    private static class LocalSessions {
+
+        private final Activations activations = localActivations.get();
+        private Frame current;
+        private Frame[] frames = new Frame[16];
+        private int[] methodIds = new int[16];
+        private int depth;
+
+        void enter(CallInterceptor[] sessions, int methodId, long interceptStartTime) {
+            Frame frame = current;
+            if (frame == null || frame.sessions != sessions) {
+                frame = new Frame(sessions, activations);
+                current = frame;
+            }
+            if (depth == frames.length) {
+                frames = Arrays.copyOf(frames, depth * 2);
+                methodIds = Arrays.copyOf(methodIds, depth * 2);
+            }
+            frames[depth] = frame;
+            methodIds[depth] = methodId;
+            depth++;
+            frame.enter(methodId, interceptStartTime);
+        }
+
+        void exit(int methodId) {
+            // the exit of a call which has not been entered, e.g. by the hooks while a session is being added
+            if (depth == 0 || methodIds[depth - 1] != methodId) {
+                return;
+            }
+            depth--;
+            Frame frame = frames[depth];
+            frames[depth] = null;
+            frame.exit(methodId);
+        }
+
+    }
+
+    private static class Frame {
+
+        final CallInterceptor[] sessions;
+        final CallInterceptor.LocalInterceptor[] locals;
+        final Activations activations;
+
+        Frame(CallInterceptor[] sessions, Activations activations) {
+            this.sessions = sessions;
+            locals = new CallInterceptor.LocalInterceptor[sessions.length];
+            this.activations = activations;
+        }
+
+        // the activations are scoped by the blocks, so a call is exited from the same sessions as entered
+        private boolean accept(CallInterceptor session, int methodId) {
+            return session.acceptMethod(methodId) && (!session.isConditional() || activations.contains(session));
+        }
+
+        void enter(int methodId, long interceptStartTime) {
+            for (int i = 0; i < sessions.length; i++) {
+                if (accept(sessions[i], methodId)) {
+                    // looked up at the first call which the session accepts in the thread,
+                    // so the session does not get an empty tree of the thread which it does not profile
+                    if (locals[i] == null) {
+                        locals[i] = sessions[i].getLocalInterceptor();
+                    }
+                    locals[i].enter(methodId, interceptStartTime);
+                }
+            }
+        }
+
+        void exit(int methodId) {
+            for (int i = sessions.length - 1; i >= 0; i--) {
+                if (accept(sessions[i], methodId)) {
+                    locals[i].exit(methodId);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * The conditional sessions which are activated in a thread.
+     */
+    private static class Activations {
+
+        private CallInterceptor[] sessions = new CallInterceptor[4];
+        private int size;
+
+        void add(CallInterceptor session) {
+            if (size == sessions.length) {
+                sessions = Arrays.copyOf(sessions, size * 2);
+            }
+            sessions[size++] = session;
+        }
+
+        void remove(CallInterceptor session) {
+            for (int i = size - 1; i >= 0; i--) {
+                if (sessions[i] == session) {
+                    System.arraycopy(sessions, i + 1, sessions, i, size - i - 1);
+                    sessions[--size] = null;
+                    return;
+                }
+            }
+        }
+
+        boolean contains(CallInterceptor session) {
+            for (int i = 0; i < size; i++) {
+                if (sessions[i] == session) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+    }
+
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An aggregator of the continuous profiling. It starts a new window periodically, aggregates the events
+ * which the threads have handed over in the background and keeps the reports of the last windows.
+ * <p>
+ * A thread hands over its events at its first event in a new window, so the events of a thread which is idle
+ * at the boundary are reported in a later window. A call which spans windows is split at the boundaries and
+ * reported in each of them with the time spent in it. The last window is closed when the aggregator stops.
+ * </p>
+ */
+public class WindowAggregator implements Runnable {
+
+    private CallInterceptor interceptor;
+    private Metric[] metrics;
+    private ThreadRunInfo mainThreadRun;
+    private long windowMillis;
+    private int maxWindows;
+    private Thread thread;
+    private volatile boolean running;
+    private final LinkedList<Report> reports = new LinkedList<Report>();
+    // the calls which have not finished at the end of the last window
+    private Map<ThreadInfo, OpenCalls> openCalls = new HashMap<ThreadInfo, OpenCalls>();
+
+    /**
+     * @param interceptor
+     *      the interceptor which captures the calls as the events
+     * @param mainThreadRun
+     *      the thread whose calls are put under the root of the trees
+     * @param windowMillis
+     *      the length of a window in milliseconds
+     * @param maxWindows
+     *      the number of the windows to keep
+     */
+    public WindowAggregator(CallInterceptor interceptor, ThreadRunInfo mainThreadRun,
+                            long windowMillis, int maxWindows) {
+        this.interceptor = interceptor;
+        interceptor.setContinuous(true);
+        Set<Metric> theMetrics = interceptor.getMetrics();
+        this.metrics = theMetrics.toArray(new Metric[theMetrics.size()]);
+        this.mainThreadRun = mainThreadRun;
+        this.windowMillis = windowMillis;
+        this.maxWindows = maxWindows;
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, "gprof-window-aggregator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the aggregator and reports the last window, which has not been finished.
+     */
+    public void stop() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        interceptor.closeWindows();
+        collect();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Thread.sleep(windowMillis);
+            } catch (InterruptedException e) {
+                break;
+            }
+            aggregate();
+        }
+    }
+
+    /**
+     * Returns the reports of the last windows from the oldest one.
+     * @return the reports
+     */
+    public List<Report> getReports() {
+        synchronized (reports) {
+            return new ArrayList<Report>(reports);
+        }
+    }
+
+    void aggregate() {
+        interceptor.nextWindow();
+        // the terminated threads hand over their last events, which they would never do by themselves
+        interceptor.retireTerminated();
+        collect();
+    }
+
+    /**
+     * Makes the report of the events which have been handed over.
+     */
+    private void collect() {
+        Map<ThreadInfo, CallInterceptor.AggregatingLocalInterceptor> localInterceptors =
+                new LinkedHashMap<ThreadInfo, CallInterceptor.AggregatingLocalInterceptor>();
+        Map<ThreadInfo, Long> endTimes = new HashMap<ThreadInfo, Long>();
+        Set<ThreadInfo> lastThreads = new HashSet<ThreadInfo>();
+        CallInterceptor.FinishedEvents finished;
+        while ((finished = interceptor.pollFinishedEvents()) != null) {
+            ThreadInfo threadInfo = finished.getThreadRun().getThread();
+            OpenCalls theOpenCalls = openCalls.get(threadInfo);
+            if (theOpenCalls == null) {
+                theOpenCalls = new OpenCalls(metrics);
+                openCalls.put(threadInfo, theOpenCalls);
+            }
+            CallInterceptor.AggregatingLocalInterceptor localInterceptor = localInterceptors.get(threadInfo);
+            if (localInterceptor == null) {
+                localInterceptor = new CallInterceptor.AggregatingLocalInterceptor(new ThreadRunInfo(threadInfo));
+                localInterceptors.put(threadInfo, localInterceptor);
+                theOpenCalls.enterAll(localInterceptor);
+            }
+            theOpenCalls.replay(finished.getEvents(), localInterceptor);
+            endTimes.put(threadInfo, finished.getEndTime());
+            if (finished.isLast()) {
+                lastThreads.add(threadInfo);
+            }
+            finished.recycle();
+        }
+        List<CallTree> threadTrees = new ArrayList<CallTree>();
+        for (Map.Entry<ThreadInfo, CallInterceptor.AggregatingLocalInterceptor> e : localInterceptors.entrySet()) {
+            ThreadInfo threadInfo = e.getKey();
+            OpenCalls theOpenCalls = openCalls.get(threadInfo);
+            theOpenCalls.exitAll(e.getValue(), endTimes.get(threadInfo));
+            // only the threads which have the calls to carry over are kept, so the terminated threads
+            // and the idle ones do not pile up
+            if (theOpenCalls.isEmpty() || lastThreads.contains(threadInfo)) {
+                openCalls.remove(threadInfo);
+            }
+            threadTrees.add(e.getValue().getTree());
+        }
+        Report report = new ProxyReport(CallInterceptor.makeTree(
+                new ThreadRunInfo(mainThreadRun.getThread()), threadTrees));
+        synchronized (reports) {
+            reports.addLast(report);
+            while (reports.size() > maxWindows) {
+                reports.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * The calls of a thread which have not finished yet.
+     */
+    static class OpenCalls {
+
+        private Metric[] metrics;
+        private int[] methodIds = new int[16];
+        private long[] enterTimes = new long[16];
+        // the values of the metrics at the start of the calls
+        private long[] enterValues;
+        private long[] lastValues;
+        private int depth;
+        private long lastTime;
+        // the time when the calls which are carried over from the last window have been split
+        private long splitTime;
+
+        /**
+         * @param metrics
+         *      the metrics whose values follow each event
+         */
+        OpenCalls(Metric[] metrics) {
+            this.metrics = metrics;
+            enterValues = new long[enterTimes.length * metrics.length];
+            lastValues = new long[metrics.length];
+        }
+
+        /**
+         * Enters the calls which have been carried over from the last window at the end of it.
+         */
+        void enterAll(CallInterceptor.LocalInterceptor localInterceptor) {
+            for (int i = 0; i < depth; i++) {
+                localInterceptor.beforeInvoke(new MethodCallInfo(methodIds[i]));
+                enterTimes[i] = splitTime;
+                System.arraycopy(lastValues, 0, enterValues, i * metrics.length, metrics.length);
+            }
+        }
+
+        void replay(EventBuffer events, CallInterceptor.LocalInterceptor localInterceptor) {
+            EventBuffer.Reader reader = events.reader();
+            while (reader.next()) {
+                lastTime = reader.getTime();
+                for (int i = 0; i < metrics.length; i++) {
+                    lastValues[i] = reader.getValue(i);
+                }
+                if (!reader.isExit()) {
+                    if (depth == methodIds.length) {
+                        methodIds = Arrays.copyOf(methodIds, depth * 2);
+                        enterTimes = Arrays.copyOf(enterTimes, depth * 2);
+                        enterValues = Arrays.copyOf(enterValues, depth * 2 * metrics.length);
+                    }
+                    methodIds[depth] = reader.getMethodId();
+                    enterTimes[depth] = lastTime;
+                    System.arraycopy(lastValues, 0, enterValues, depth * metrics.length, metrics.length);
+                    depth++;
+                    localInterceptor.beforeInvoke(new MethodCallInfo(reader.getMethodId()));
+                } else if (depth > 0) {
+                    depth--;
+                    exit(localInterceptor, depth, lastTime);
+                }
+            }
+        }
+
+        /**
+         * Exits the calls which have not finished at the end of the window. They are carried over to the next window.
+         * @param endTime
+         *      the time when the window ended, which is not before the events of the window
+         */
+        void exitAll(CallInterceptor.LocalInterceptor localInterceptor, long endTime) {
+            splitTime = Math.max(endTime, lastTime);
+            for (int i = depth - 1; i >= 0; i--) {
+                exit(localInterceptor, i, splitTime);
+            }
+        }
+
+        boolean isEmpty() {
+            return depth == 0;
+        }
+
+        private void exit(CallInterceptor.LocalInterceptor localInterceptor, int index, long time) {
+            MethodCallInfo methodCall = new MethodCallInfo(methodIds[index]);
+            methodCall.setTime(time - enterTimes[index]);
+            for (int i = 0; i < metrics.length; i++) {
+                methodCall.getMetrics().set(metrics[i], lastValues[i] - enterValues[index * metrics.length + i]);
+            }
+            localInterceptor.afterInvoke(methodCall);
+        }
+
+    }
+
+}
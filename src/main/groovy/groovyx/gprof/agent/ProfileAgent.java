@@ -0,0 +1,115 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof.agent;
+
+import groovyx.gprof.CallInterceptor;
+import groovyx.gprof.ProfileHooks;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An agent which instruments the entry and the exit of the methods in the bytecode instead of proxying
+ * the meta classes, so the calls from statically compiled Groovy code and Java code are profiled as well
+ * and the call site caching of Groovy is kept. It is loaded by <code>-javaagent:gprof.jar</code> or
+ * attached to the running JVM, and it does nothing until a profiler starts in the agent mode.
+ * While profiling, the methods which are included by the method filter of the profiler are instrumented
+ * to call {@link ProfileHooks}, and they are restored when the profiling stops.
+ */
+public class ProfileAgent {
+
+    private static Instrumentation instrumentation;
+    private static ProfileClassTransformer transformer;
+    private static boolean started;
+
+    public static void premain(String args, Instrumentation inst) {
+        install(inst);
+    }
+
+    public static void agentmain(String args, Instrumentation inst) {
+        install(inst);
+    }
+
+    private static synchronized void install(Instrumentation inst) {
+        if (instrumentation != null) {
+            return;
+        }
+        transformer = new ProfileClassTransformer();
+        inst.addTransformer(transformer, true);
+        instrumentation = inst;
+    }
+
+    public static synchronized boolean isInstalled() {
+        return instrumentation != null;
+    }
+
+    /**
+     * Starts instrumenting the methods which are included by the method filter of the interceptor.
+     * The loaded classes are retransformed and the classes which are loaded later are transformed
+     * when they are loaded. The calls are fed to the interceptor while {@link ProfileHooks} is activated.
+     * @param interceptor
+     *      the interceptor of the calls
+     */
+    public static synchronized void start(CallInterceptor interceptor) {
+        if (instrumentation == null) {
+            throw new IllegalStateException("The agent is not loaded. Run the JVM with -javaagent:<path to gprof.jar>");
+        }
+        if (started) {
+            throw new IllegalStateException("The agent is used by another profiler");
+        }
+        started = true;
+        transformer.setMethodFilter(interceptor.getMethodFilter());
+        List<Class> classes = new ArrayList<Class>();
+        for (Class theClass : instrumentation.getAllLoadedClasses()) {
+            if (instrumentation.isModifiableClass(theClass) && transformer.accept(theClass)) {
+                classes.add(theClass);
+            }
+        }
+        retransform(classes);
+    }
+
+    /**
+     * Stops instrumenting the methods and restores the classes which have been instrumented.
+     */
+    public static synchronized void stop() {
+        if (!started) {
+            return;
+        }
+        transformer.setMethodFilter(null);
+        List<Class> classes = new ArrayList<Class>();
+        for (Class theClass : instrumentation.getAllLoadedClasses()) {
+            if (transformer.isInstrumented(theClass.getName())) {
+                classes.add(theClass);
+            }
+        }
+        retransform(classes);
+        transformer.clearInstrumented();
+        started = false;
+    }
+
+    private static void retransform(List<Class> classes) {
+        for (Class theClass : classes) {
+            try {
+                instrumentation.retransformClasses(theClass);
+            } catch (Throwable e) {
+                // the class is left as it is
+                ProfileClassTransformer.report("Cannot retransform " + theClass.getName(), e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof.agent;
+
+import groovyjarjarasm.asm.ClassReader;
+import groovyjarjarasm.asm.ClassVisitor;
+import groovyjarjarasm.asm.ClassWriter;
+import groovyjarjarasm.asm.Label;
+import groovyjarjarasm.asm.MethodVisitor;
+import groovyjarjarasm.asm.Opcodes;
+import groovyjarjarasm.asm.Type;
+import groovyjarjarasm.asm.commons.AdviceAdapter;
+import groovyjarjarasm.asm.commons.Method;
+import groovyx.gprof.MethodCallFilter;
+import groovyx.gprof.MethodInfo;
+import groovyx.gprof.MethodRegistry;
+import groovyx.gprof.ProfileHooks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.reflect.Constructor;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A transformer which inserts the calls of {@link ProfileHooks#enter(int)} and {@link ProfileHooks#exit(int)}
+ * at the entry and every exit of the methods which are accepted by the method filter.
+ * The ids of the methods are given by {@link groovyx.gprof.MethodRegistry} when the classes are transformed,
+ * so the instrumented code only passes a constant. The classes of the bootstrap class loader, the interfaces,
+ * the call sites which Groovy generates, and the abstract, native, synthetic and bridge methods are not instrumented.
+ * The classes which cannot be instrumented are left as they are and reported to the standard error.
+ */
+public class ProfileClassTransformer implements ClassFileTransformer {
+
+    private static final Type HOOKS = Type.getType(ProfileHooks.class);
+    private static final Method ENTER = Method.getMethod("void enter(int)");
+    private static final Method EXIT = Method.getMethod("void exit(int)");
+    // the call sites which Groovy generates at runtime are named after the callers
+    private static final String CALL_SITE_PACKAGE = "org/codehaus/groovy/runtime/callsite/";
+    private static final int SKIPPED_ACCESS =
+            Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE | Opcodes.ACC_SYNTHETIC | Opcodes.ACC_BRIDGE;
+
+    private volatile MethodCallFilter methodFilter;
+    // the names of the classes which have been instrumented
+    private Set<String> instrumented = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Sets the filter of the methods to instrument, or null to instrument nothing.
+     */
+    public void setMethodFilter(MethodCallFilter methodFilter) {
+        this.methodFilter = methodFilter;
+    }
+
+    boolean isInstrumented(String className) {
+        return instrumented.contains(className);
+    }
+
+    void clearInstrumented() {
+        instrumented.clear();
+    }
+
+    /**
+     * Returns whether the class may have any method to instrument, which is decided exactly when it is transformed.
+     */
+    boolean accept(Class theClass) {
+        if (theClass.getClassLoader() == null || theClass.isInterface() || theClass.isArray()
+                || !acceptClass(theClass.getName())) {
+            return false;
+        }
+        Class superClass = theClass.getSuperclass();
+        if (superClass != null && superClass.getName().replace('.', '/').startsWith(CALL_SITE_PACKAGE)) {
+            return false;
+        }
+        try {
+            for (java.lang.reflect.Method method : theClass.getDeclaredMethods()) {
+                if (acceptMethod(theClass.getName(), method.getName(), method.getModifiers())) {
+                    return true;
+                }
+            }
+            for (Constructor constructor : theClass.getDeclaredConstructors()) {
+                if (acceptMethod(theClass.getName(), "<init>", constructor.getModifiers())) {
+                    return true;
+                }
+            }
+        } catch (Throwable e) {
+            // the class which cannot be linked
+        }
+        return false;
+    }
+
+    private boolean acceptClass(String className) {
+        return methodFilter != null && !className.startsWith("groovyx.gprof.");
+    }
+
+    private boolean acceptMethod(String className, String methodName, int access) {
+        if ((access & SKIPPED_ACCESS) != 0 || methodName.equals("<clinit>") || methodName.startsWith("$")) {
+            return false;
+        }
+        MethodCallFilter methodFilter = this.methodFilter;
+        return methodFilter != null && methodFilter.accept(new MethodInfo(className, methodName(methodName)));
+    }
+
+    private static String methodName(String name) {
+        return name.equals("<init>") ? "ctor" : name;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String internalName, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        if (loader == null || internalName == null) {
+            return null;
+        }
+        String className = internalName.replace('/', '.');
+        if (!acceptClass(className)) {
+            return null;
+        }
+        try {
+            ClassReader reader = new ClassReader(classfileBuffer);
+            if ((reader.getAccess() & Opcodes.ACC_INTERFACE) != 0
+                    || (reader.getSuperName() != null && reader.getSuperName().startsWith(CALL_SITE_PACKAGE))) {
+                return null;
+            }
+            // the frames are needed since java 6, and the classes before it only need the max stack size
+            boolean framed = reader.readUnsignedShort(6) >= Opcodes.V1_6;
+            ClassWriter writer = framed
+                    ? new LoaderClassWriter(reader, loader)
+                    : new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+            InstrumentingClassVisitor visitor = new InstrumentingClassVisitor(writer, className);
+            reader.accept(visitor, framed ? ClassReader.SKIP_FRAMES : 0);
+            if (!visitor.instrumented) {
+                return null;
+            }
+            byte[] bytes = writer.toByteArray();
+            instrumented.add(className);
+            return bytes;
+        } catch (Throwable e) {
+            // e.g. the version of the class is newer than the one which asm supports
+            report("Cannot instrument " + className, e);
+            return null;
+        }
+    }
+
+    static void report(String message, Throwable e) {
+        System.err.println("gprof: " + message + ": " + e);
+    }
+
+    private class InstrumentingClassVisitor extends ClassVisitor {
+
+        private String className;
+        private boolean instrumented;
+
+        InstrumentingClassVisitor(ClassVisitor cv, String className) {
+            super(Opcodes.ASM4, cv);
+            this.className = className;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+            MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+            if (mv == null || !acceptMethod(className, name, access)) {
+                return mv;
+            }
+            instrumented = true;
+            int methodId = MethodRegistry.getId(className, methodName(name));
+            return new InstrumentingMethodVisitor(mv, access, name, desc, methodId);
+        }
+
+    }
+
+    /**
+     * Calls the hooks at the entry, and at the returns and in the handler of any exception
+     * which covers the whole body of the method. For the constructors the body starts after
+     * the call of the super constructor.
+     */
+    private static class InstrumentingMethodVisitor extends AdviceAdapter {
+
+        private int methodId;
+        private Label start = new Label();
+        private Label handler = new Label();
+
+        InstrumentingMethodVisitor(MethodVisitor mv, int access, String name, String desc, int methodId) {
+            super(Opcodes.ASM4, mv, access, name, desc);
+            this.methodId = methodId;
+        }
+
+        @Override
+        protected void onMethodEnter() {
+            push(methodId);
+            invokeStatic(HOOKS, ENTER);
+            visitLabel(start);
+        }
+
+        @Override
+        protected void onMethodExit(int opcode) {
+            // the thrown exceptions are handled by the handler
+            if (opcode != ATHROW) {
+                push(methodId);
+                invokeStatic(HOOKS, EXIT);
+            }
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            visitLabel(handler);
+            push(methodId);
+            invokeStatic(HOOKS, EXIT);
+            visitInsn(ATHROW);
+            // the handler is added after the handlers of the method, so they take precedence
+            visitTryCatchBlock(start, handler, handler, null);
+            super.visitMaxs(maxStack, maxLocals);
+        }
+
+    }
+
+    /**
+     * A class writer which resolves the common super classes for the frames by reading the class files
+     * from the class loader of the transformed class. The classes are not loaded, which could load them
+     * before they are instrumented or by another class loader than the one which defines them.
+     */
+    static class LoaderClassWriter extends ClassWriter {
+
+        private static final String OBJECT = "java/lang/Object";
+
+        private ClassLoader loader;
+        private Map<String, ClassReader> readers = new HashMap<String, ClassReader>();
+
+        LoaderClassWriter(ClassReader reader, ClassLoader loader) {
+            super(reader, ClassWriter.COMPUTE_FRAMES);
+            this.loader = loader;
+            // the transformed class is not found by the class loader while it is defined
+            readers.put(reader.getClassName(), reader);
+        }
+
+        @Override
+        protected String getCommonSuperClass(String type1, String type2) {
+            if (isAssignable(type1, type2)) {
+                return type1;
+            }
+            if (isAssignable(type2, type1)) {
+                return type2;
+            }
+            if (isInterface(type1) || isInterface(type2)) {
+                return OBJECT;
+            }
+            List<String> superClasses1 = superClasses(type1);
+            for (String superClass : superClasses(type2)) {
+                if (superClasses1.contains(superClass)) {
+                    return superClass;
+                }
+            }
+            return OBJECT;
+        }
+
+        private boolean isAssignable(String to, String from) {
+            if (to.equals(from) || to.equals(OBJECT)) {
+                return true;
+            }
+            if (from.equals(OBJECT)) {
+                return false;
+            }
+            ClassReader reader = reader(from);
+            if (reader.getSuperName() != null && isAssignable(to, reader.getSuperName())) {
+                return true;
+            }
+            for (String anInterface : reader.getInterfaces()) {
+                if (isAssignable(to, anInterface)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isInterface(String type) {
+            return (reader(type).getAccess() & Opcodes.ACC_INTERFACE) != 0;
+        }
+
+        private List<String> superClasses(String type) {
+            List<String> superClasses = new ArrayList<String>();
+            for (String t = type; t != null; t = t.equals(OBJECT) ? null : reader(t).getSuperName()) {
+                superClasses.add(t);
+            }
+            return superClasses;
+        }
+
+        private ClassReader reader(String type) {
+            ClassReader reader = readers.get(type);
+            if (reader != null) {
+                return reader;
+            }
+            InputStream in = loader.getResourceAsStream(type + ".class");
+            if (in == null) {
+                throw new TypeNotPresentException(type.replace('/', '.'), null);
+            }
+            try {
+                try {
+                    reader = new ClassReader(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                throw new TypeNotPresentException(type.replace('/', '.'), e);
+            }
+            readers.put(type, reader);
+            return reader;
+        }
+
+    }
+
+}
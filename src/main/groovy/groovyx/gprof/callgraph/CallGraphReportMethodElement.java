@@ -15,7 +15,9 @@
  */
 package groovyx.gprof.callgraph;
 
+import groovyx.gprof.LongMap;
 import groovyx.gprof.MethodInfo;
+import groovyx.gprof.MetricValues;
 
 import java.util.*;
 
@@ -26,6 +28,7 @@ public class CallGraphReportMethodElement implements CallGraphReportElement {
         private long index;
         private long time, childrenTime;
         private long calls, recursiveCalls, cycleCalls;
+        private MetricValues metrics = new MetricValues();
         
         public Parent(long index) {
             this.index = index;
@@ -51,6 +54,10 @@ public class CallGraphReportMethodElement implements CallGraphReportElement {
             this.childrenTime = childrenTime;
         }
 
+        public MetricValues getMetrics() {
+            return metrics;
+        }
+
         public long getCalls() {
             return calls;
         }
@@ -96,6 +103,7 @@ public class CallGraphReportMethodElement implements CallGraphReportElement {
             if (index != parent.index) return false;
             if (recursiveCalls != parent.recursiveCalls) return false;
             if (time != parent.time) return false;
+            if (metrics != null ? !metrics.equals(parent.metrics) : parent.metrics != null) return false;
 
             return true;
         }
@@ -108,6 +116,7 @@ public class CallGraphReportMethodElement implements CallGraphReportElement {
             result = 31 * result + (int) (calls ^ (calls >>> 32));
             result = 31 * result + (int) (recursiveCalls ^ (recursiveCalls >>> 32));
             result = 31 * result + (int) (cycleCalls ^ (cycleCalls >>> 32));
+            result = 31 * result + (metrics != null ? metrics.hashCode() : 0);
             return result;
         }
 
@@ -120,6 +129,7 @@ public class CallGraphReportMethodElement implements CallGraphReportElement {
                     ", calls=" + calls +
                     ", recursiveCalls=" + recursiveCalls +
                     ", cycleCalls=" + cycleCalls +
+                    ", metrics=" + metrics +
                     '}';
         }
     }
@@ -170,8 +180,9 @@ public class CallGraphReportMethodElement implements CallGraphReportElement {
     private float timePercent;
     private long time, childrenTime;
     private long calls, recursiveCalls, cycleCalls;
-    private SortedMap<Long, Parent> parents = new TreeMap();
-    private SortedMap<Long, Child> children = new TreeMap();
+    private MetricValues metrics = new MetricValues();
+    private LongMap<Parent> parents = new LongMap<Parent>(4);
+    private LongMap<Child> children = new LongMap<Child>(4);
 
     public CallGraphReportMethodElement(long index, MethodInfo method) {
         this.index = index;
@@ -222,6 +233,13 @@ public class CallGraphReportMethodElement implements CallGraphReportElement {
         return parents;
     }
 
+    /**
+     * Returns the parent of the index, or null if the element has no such parent, without boxing the index.
+     */
+    Parent getParent(long index) {
+        return parents.get(index);
+    }
+
     public void addChild(Child child) {
         children.put(child.getIndex(), child);
     }
@@ -230,6 +248,28 @@ public class CallGraphReportMethodElement implements CallGraphReportElement {
         return children;
     }
 
+    /**
+     * Returns whether the element has the child of the index, without boxing the index.
+     */
+    boolean hasChild(long index) {
+        return children.containsKey(index);
+    }
+
+    /**
+     * Changes the indices of the parents and the children to the new ones which the mapper has
+     * at their old indices.
+     */
+    void reindexRelatives(long[] indexMapper) {
+        for (Parent p : parents.values()) {
+            p.setIndex(indexMapper[(int) p.getIndex()]);
+        }
+        parents.remapKeys(indexMapper);
+        for (Child c : children.values()) {
+            c.setIndex(indexMapper[(int) c.getIndex()]);
+        }
+        children.remapKeys(indexMapper);
+    }
+
     public long getTime() {
         return time;
     }
@@ -250,6 +290,13 @@ public class CallGraphReportMethodElement implements CallGraphReportElement {
         this.childrenTime = childrenTime;
     }
 
+    /**
+     * Returns the values of the metrics, whose children values are the ones of the children like the time.
+     */
+    public MetricValues getMetrics() {
+        return metrics;
+    }
+
     public long getCalls() {
         return calls;
     }
@@ -281,6 +328,7 @@ public class CallGraphReportMethodElement implements CallGraphReportElement {
         if (recursiveCalls != that.recursiveCalls) return false;
         if (time != that.time) return false;
         if (Float.compare(that.timePercent, timePercent) != 0) return false;
+        if (metrics != null ? !metrics.equals(that.metrics) : that.metrics != null) return false;
         if (children != null ? !children.equals(that.children) : that.children != null) return false;
         if (method != null ? !method.equals(that.method) : that.method != null) return false;
         if (parents != null ? !parents.equals(that.parents) : that.parents != null) return false;
@@ -299,6 +347,7 @@ public class CallGraphReportMethodElement implements CallGraphReportElement {
         result = 31 * result + (int) (calls ^ (calls >>> 32));
         result = 31 * result + (int) (recursiveCalls ^ (recursiveCalls >>> 32));
         result = 31 * result + (int) (cycleCalls ^ (cycleCalls >>> 32));
+        result = 31 * result + (metrics != null ? metrics.hashCode() : 0);
         result = 31 * result + (parents != null ? parents.hashCode() : 0);
         result = 31 * result + (children != null ? children.hashCode() : 0);
         return result;
@@ -315,6 +364,7 @@ public class CallGraphReportMethodElement implements CallGraphReportElement {
                 ", calls=" + calls +
                 ", recursiveCalls=" + recursiveCalls +
                 ", cycleCalls=" + cycleCalls +
+                ", metrics=" + metrics +
                 ", parents=" + parents +
                 ", children=" + children +
                 '}';
@@ -34,28 +34,21 @@ public class CallGraphReportNormalizer implements ReportNormalizer {
         }
         long fi = methodElements.get(0).getIndex();
         Collections.sort(methodElements, comparator);
-        Map<Long, Long> indexMapper = new HashMap();
-        indexMapper.put(0L, 0L); // the index of spontaneous is not changed (= 0)
+        long maxIndex = 0;
+        for (CallGraphReportMethodElement e : methodElements) {
+            maxIndex = Math.max(maxIndex, e.getIndex());
+        }
+        // the new index of each old index. the index of spontaneous is not changed (= 0)
+        long[] indexMapper = new long[(int) maxIndex + 1];
         for (int i = 0, n = methodElements.size(); i < n; i++) {
             CallGraphReportMethodElement e = methodElements.get(i);
             long newIndex = i + fi;
             long oldIndex = e.getIndex();
             e.setIndex(newIndex);
-            indexMapper.put(oldIndex, newIndex);
+            indexMapper[(int) oldIndex] = newIndex;
         }
         for (CallGraphReportMethodElement e : methodElements) {
-            List<CallGraphReportMethodElement.Parent> parents = new ArrayList(e.getParents().values());
-            e.getParents().clear();
-            for (CallGraphReportMethodElement.Parent p : parents) {
-                p.setIndex(indexMapper.get(p.getIndex()));
-                e.addParent(p);
-            }
-            List<CallGraphReportMethodElement.Child> children = new ArrayList(e.getChildren().values());
-            e.getChildren().clear();
-            for (CallGraphReportMethodElement.Child c : children) {
-                c.setIndex(indexMapper.get(c.getIndex()));
-                e.addChild(c);
-            }
+            e.reindexRelatives(indexMapper);
         }
     }
     
@@ -106,14 +99,26 @@ public class CallGraphReportNormalizer implements ReportNormalizer {
         final List<CallGraphReportThreadElement> elements = new ArrayList();
 
         callTree.visit(new CallTree.NodeVisitor() {
-            Map<MethodInfo, Long> indexTable = new HashMap();
-            Map<Long, CallGraphReportWholeCycleElement> cycleTable = new HashMap();
-            Stack<Long> parentStack = new Stack();
+            long[] indexTable = new long[MethodRegistry.size() + 1];
+            LongMap<CallGraphReportWholeCycleElement> cycleTable = new LongMap<CallGraphReportWholeCycleElement>();
+            IndexStack parentStack = new IndexStack();
             long lastIndex = 0;
             long lastCycleIndex = 0;
             CallGraphReportThreadElement element;
             CallGraphReportSpontaneousElement spontaneous;
             
+            // the index of the method in the report or 0 if the method is not indexed yet
+            long getIndex(int methodId) {
+                return methodId < indexTable.length ? indexTable[methodId] : 0;
+            }
+
+            void putIndex(int methodId, long index) {
+                if (methodId >= indexTable.length) {
+                    indexTable = Arrays.copyOf(indexTable, Math.max(methodId + 1, indexTable.length * 2));
+                }
+                indexTable[methodId] = index;
+            }
+
             long searchCycleParent(long index, long parentIndex) {
                 CallGraphReportMethodElement parentElement = element.getSubElement(parentIndex);
                 if (parentElement != null && parentElement.getCycleIndex() > 0) {
@@ -133,7 +138,7 @@ public class CallGraphReportNormalizer implements ReportNormalizer {
                 if (call instanceof ThreadRunInfo) {
                     ThreadRunInfo threadRun = (ThreadRunInfo) call;
                     if (separateThread || element == null) {
-                        indexTable.clear();
+                        Arrays.fill(indexTable, 0L);
                         cycleTable.clear();
                         lastIndex = 0;
                         lastCycleIndex = 0;
@@ -143,22 +148,22 @@ public class CallGraphReportNormalizer implements ReportNormalizer {
                         elements.add(element);
                     }
                     handleSubElement(node, 0, false, spontaneous, new CallGraphReportMethodElement.Parent(-1));
-                    for (CallTree.Node child : node.getChildren()) {
+                    for (int i = 0, n = node.getChildCount(); i < n; i++) {
+                        CallTree.Node child = node.getChild(i);
                         if (child.getData() instanceof MethodCallInfo) {
                             MethodCallInfo childMethodCall = (MethodCallInfo) child.getData();
                             long index;
-                            if (indexTable.containsKey(childMethodCall.getMethod())) {
-                                index = indexTable.get(childMethodCall.getMethod());
-                            } else {
+                            index = getIndex(childMethodCall.getMethodId());
+                            if (index == 0) {
                                 index = ++lastIndex;
                             }
-                            indexTable.put(childMethodCall.getMethod(), index);
+                            putIndex(childMethodCall.getMethodId(), index);
                         }
                     }
-                    parentStack.push(0L);
+                    parentStack.push(0);
                 } else if (call instanceof MethodCallInfo) {
                     final MethodCallInfo methodCall = (MethodCallInfo) call;
-                    long index = indexTable.get(methodCall.getMethod());
+                    long index = getIndex(methodCall.getMethodId());
                     long parentIndex = parentStack.peek();
                     boolean recursive = index == parentIndex;
                     if (recursive && parentStack.size() > 1) {
@@ -166,12 +171,8 @@ public class CallGraphReportNormalizer implements ReportNormalizer {
                             parentIndex = parentStack.get(i);    
                         }
                     } else if (parentStack.size() > 2) {
-                        List<Long> inCycleIndices = new ArrayList();
-                        inCycleIndices.add(index);
-                        inCycleIndices.add(parentIndex);
                         for (int i = parentStack.size() - 2; i > 0; i--) {
                             long pi = parentStack.get(i);
-                            inCycleIndices.add(pi);
                             if (pi == index) {
                                 CallGraphReportMethodElement cycleEntryElement = element.getSubElement(pi);
                                 boolean newCycle = cycleEntryElement.getCycleIndex() == 0;
@@ -182,8 +183,9 @@ public class CallGraphReportNormalizer implements ReportNormalizer {
                                     cycleTable.put(cycleIndex, cycleElement);
                                     element.addSubElement(cycleElement);
                                 }
-                                for (int j = inCycleIndices.size() - 1; j > 0; j--) {
-                                    CallGraphReportMethodElement inCycleElement = element.getSubElement(inCycleIndices.get(j));
+                                // the calls from the entry of the cycle to the parent are in the cycle
+                                for (int j = i, n = parentStack.size(); j < n; j++) {
+                                    CallGraphReportMethodElement inCycleElement = element.getSubElement(parentStack.get(j));
                                     inCycleElement.setCycleIndex(cycleIndex);
                                 }
                                 break;
@@ -196,7 +198,7 @@ public class CallGraphReportNormalizer implements ReportNormalizer {
                         element.addSubElement(subElement);
                     }
                     CallGraphReportMethodElement.Parent parent;
-                    parent = subElement.getParents().get(parentIndex);
+                    parent = subElement.getParent(parentIndex);
                     if (parent == null) {
                         parent = new CallGraphReportMethodElement.Parent(parentIndex);
                         subElement.addParent(parent);
@@ -206,41 +208,51 @@ public class CallGraphReportNormalizer implements ReportNormalizer {
                 }
             }
 
+            private long calls(CallInfo call) {
+                // a node of the aggregated call tree represents one or more calls
+                return call instanceof MethodCallInfo ? ((MethodCallInfo) call).getCalls() : 1;
+            }
+
             private void handleSubElement(
                     CallTree.Node node, long index, boolean recursive,
                     CallGraphReportMethodElement subElement, CallGraphReportMethodElement.Parent parent) {
                 CallInfo call = (CallInfo) node.getData();
-                subElement.setCalls(subElement.getCalls() + 1);
-                parent.setCalls(parent.getCalls() + 1);
+                int methodId = call instanceof MethodCallInfo ? ((MethodCallInfo) call).getMethodId() : 0;
+                long calls = calls(call);
+                subElement.setCalls(subElement.getCalls() + calls);
+                parent.setCalls(parent.getCalls() + calls);
                 if (subElement.getCycleIndex() > 0) {
-                    subElement.setCycleCalls(subElement.getCycleCalls() + 1);
+                    subElement.setCycleCalls(subElement.getCycleCalls() + calls);
                 }
 
                 if (!recursive) {
                     subElement.setTime(subElement.getTime() + call.getTime());
                     parent.setTime(parent.getTime() + call.getTime());
+                    addTotalMetrics(subElement.getMetrics(), call, 1);
+                    addTotalMetrics(parent.getMetrics(), call, 1);
                 }
 
-                for (CallTree.Node child : node.getChildren()) {
+                for (int i = 0, n = node.getChildCount(); i < n; i++) {
+                    CallTree.Node child = node.getChild(i);
                     if (child.getData() instanceof MethodCallInfo) {
                         MethodCallInfo childMethodCall = (MethodCallInfo) child.getData();
-                        if (childMethodCall.getMethod().equals(subElement.getMethod())) {
-                            subElement.setRecursiveCalls(subElement.getRecursiveCalls() + 1);
-                            parent.setRecursiveCalls(parent.getRecursiveCalls() + 1);
-                            indexTable.put(childMethodCall.getMethod(), index);
+                        if (childMethodCall.getMethodId() == methodId) {
+                            subElement.setRecursiveCalls(subElement.getRecursiveCalls() + childMethodCall.getCalls());
+                            parent.setRecursiveCalls(parent.getRecursiveCalls() + childMethodCall.getCalls());
+                            putIndex(childMethodCall.getMethodId(), index);
                         } else {
-                            long childIndex;
-                            if (indexTable.containsKey(childMethodCall.getMethod())) {
-                                childIndex = indexTable.get(childMethodCall.getMethod());
-                            } else {
+                            long childIndex = getIndex(childMethodCall.getMethodId());
+                            if (childIndex == 0) {
                                 childIndex = ++lastIndex;
-                                indexTable.put(childMethodCall.getMethod(), childIndex);
+                                putIndex(childMethodCall.getMethodId(), childIndex);
                             }
-                            if (!subElement.getChildren().containsKey(childIndex)) {
+                            if (!subElement.hasChild(childIndex)) {
                                 subElement.addChild(new CallGraphReportMethodElement.Child(childIndex));
                             }
                             subElement.setChildrenTime(subElement.getChildrenTime() + childMethodCall.getTime());
                             parent.setChildrenTime(parent.getChildrenTime() + childMethodCall.getTime());
+                            addChildrenMetrics(subElement.getMetrics(), childMethodCall, 1);
+                            addChildrenMetrics(parent.getMetrics(), childMethodCall, 1);
                         }
                     }
                 }
@@ -251,7 +263,7 @@ public class CallGraphReportNormalizer implements ReportNormalizer {
                 if (node.getData() instanceof ThreadRunInfo) {
                 } else if (node.getData() instanceof MethodCallInfo) {
                     MethodCallInfo methodCall = (MethodCallInfo) node.getData();
-                    long index = indexTable.get(methodCall.getMethod());
+                    long index = getIndex(methodCall.getMethodId());
                     long parentIndex = parentStack.get(parentStack.size() - 2);
                     boolean recursiveCall = index == parentIndex;
                     if (recursiveCall) {
@@ -262,11 +274,11 @@ public class CallGraphReportNormalizer implements ReportNormalizer {
                     CallGraphReportMethodElement subElement = element.getSubElement(index);
                     if (subElement.getCycleIndex() > 0) {
                         // the last element is not the parent call but the call.
-                        CallGraphReportMethodElement.Parent parent = subElement.getParents().get(parentIndex);
+                        CallGraphReportMethodElement.Parent parent = subElement.getParent(parentIndex);
                         CallGraphReportMethodElement parentElement = element.getSubElement(parentIndex);
-                        for (CallTree.Node childNode : node.getChildren()) {
-                            MethodCallInfo childMethodCall = (MethodCallInfo) childNode.getData();
-                            long childIndex = indexTable.get(childMethodCall.getMethod());
+                        for (int i = 0, n = node.getChildCount(); i < n; i++) {
+                            MethodCallInfo childMethodCall = (MethodCallInfo) node.getChild(i).getData();
+                            long childIndex = getIndex(childMethodCall.getMethodId());
                             boolean recursiveChildCall = childIndex == index;
                             if (!recursiveChildCall) {
                                 CallGraphReportMethodElement childElement = element.getSubElement(childIndex); 
@@ -274,20 +286,28 @@ public class CallGraphReportNormalizer implements ReportNormalizer {
                                     if (parentElement != null && parentElement.getCycleIndex() == subElement.getCycleIndex()) {
                                         parent.setTime(parent.getTime() - childMethodCall.getTime());
                                         parent.setChildrenTime(parent.getChildrenTime() - childMethodCall.getTime());
+                                        addTotalMetrics(parent.getMetrics(), childMethodCall, -1);
+                                        addChildrenMetrics(parent.getMetrics(), childMethodCall, -1);
                                     }
                                     subElement.setTime(subElement.getTime() - childMethodCall.getTime());
                                     subElement.setChildrenTime(subElement.getChildrenTime() - childMethodCall.getTime());
+                                    addTotalMetrics(subElement.getMetrics(), childMethodCall, -1);
+                                    addChildrenMetrics(subElement.getMetrics(), childMethodCall, -1);
                                 }
                             }
                         }
                         long cycleParentIndex = searchCycleParent(index, parentIndex);
                         CallGraphReportWholeCycleElement cycleElement = cycleTable.get(subElement.getCycleIndex());
-                        cycleElement.setCalls(cycleElement.getCalls() + 1);
+                        cycleElement.setCalls(cycleElement.getCalls() + methodCall.getCalls());
                         if (parentIndex != cycleParentIndex) {
-                            cycleElement.setRecursiveCalls(cycleElement.getRecursiveCalls() + 1);
+                            cycleElement.setRecursiveCalls(cycleElement.getRecursiveCalls() + methodCall.getCalls());
                         } else {
                             cycleElement.setTime(parent.getTime());
                             cycleElement.setChildrenTime(parent.getChildrenTime());
+                            for (Metric metric : parent.getMetrics().getMetrics()) {
+                                cycleElement.getMetrics().set(metric, parent.getMetrics().get(metric));
+                                cycleElement.getMetrics().setChildren(metric, parent.getMetrics().getChildren(metric));
+                            }
                             cycleElement.addChild(new CallGraphReportMethodElement.Child(subElement.getIndex()));
                         }
                         // when the parent of the method call isn't the parent of the cycle, 
@@ -302,18 +322,26 @@ public class CallGraphReportNormalizer implements ReportNormalizer {
                                 }
                             }
                             CallGraphReportMethodElement.Parent cycleParent = 
-                                    cycleEntryElement.getParents().get(cycleParentIndex);
+                                    cycleEntryElement.getParent(cycleParentIndex);
                             long childrenTime = 0L;
-                            for (CallTree.Node childNode : node.getChildren()) {
-                                MethodCallInfo childCall = (MethodCallInfo) childNode.getData();
+                            MetricValues selfMetrics = new MetricValues();
+                            addTotalMetrics(selfMetrics, methodCall, 1);
+                            for (int i = 0, n = node.getChildCount(); i < n; i++) {
+                                MethodCallInfo childCall = (MethodCallInfo) node.getChild(i).getData();
                                 // if the child call is recursion, doesn't count the time of the child call
                                 // as the children time but the self time of the method call.
-                                if (!childCall.getMethod().equals(methodCall.getMethod())) {
+                                if (childCall.getMethodId() != methodCall.getMethodId()) {
                                     childrenTime += childCall.getTime();
+                                    addTotalMetrics(selfMetrics, childCall, -1);
                                 }
                             }
                             long selfTime = methodCall.getTime() - childrenTime;
                             cycleParent.setChildrenTime(cycleParent.getChildrenTime() - selfTime);
+                            MetricValues cycleParentMetrics = cycleParent.getMetrics();
+                            for (Metric metric : selfMetrics.getMetrics()) {
+                                cycleParentMetrics.setChildren(metric,
+                                        cycleParentMetrics.getChildren(metric) - selfMetrics.get(metric));
+                            }
                         }
                         
                     }
@@ -327,4 +355,57 @@ public class CallGraphReportNormalizer implements ReportNormalizer {
         return elements;
     }
 
+    /**
+     * An unsynchronized stack of the indices of the elements, which does not box them.
+     */
+    private static class IndexStack {
+
+        private long[] indices = new long[16];
+        private int size;
+
+        void push(long index) {
+            if (size == indices.length) {
+                indices = Arrays.copyOf(indices, size * 2);
+            }
+            indices[size++] = index;
+        }
+
+        long pop() {
+            return indices[--size];
+        }
+
+        long peek() {
+            return indices[size - 1];
+        }
+
+        long get(int i) {
+            return indices[i];
+        }
+
+        int size() {
+            return size;
+        }
+
+    }
+
+    // adds the total values of the metrics of the call to the total values
+    private static void addTotalMetrics(MetricValues values, CallInfo call, int sign) {
+        if (call.hasMetrics()) {
+            MetricValues callMetrics = call.getMetrics();
+            for (Metric metric : callMetrics.getMetrics()) {
+                values.set(metric, values.get(metric) + sign * callMetrics.get(metric));
+            }
+        }
+    }
+
+    // adds the total values of the metrics of the child call to the children values
+    private static void addChildrenMetrics(MetricValues values, CallInfo childCall, int sign) {
+        if (childCall.hasMetrics()) {
+            MetricValues childMetrics = childCall.getMetrics();
+            for (Metric metric : childMetrics.getMetrics()) {
+                values.setChildren(metric, values.getChildren(metric) + sign * childMetrics.get(metric));
+            }
+        }
+    }
+
 }
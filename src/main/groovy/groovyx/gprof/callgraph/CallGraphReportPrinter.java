@@ -15,6 +15,9 @@
  */
 package groovyx.gprof.callgraph;
 
+import groovyx.gprof.LongMap;
+import groovyx.gprof.Metric;
+import groovyx.gprof.MetricValues;
 import groovyx.gprof.ReportPrinter;
 import groovyx.gprof.ThreadInfo;
 import groovyx.gprof.Utils;
@@ -94,6 +97,10 @@ public class CallGraphReportPrinter implements ReportPrinter<CallGraphReportThre
         public static String cycleChildCalls(long calls) {
             return String.format("%d", calls);
         }
+
+        public static String bytes(long bytes) {
+            return String.format("%d", bytes);
+        }
         
     }
     
@@ -126,7 +133,7 @@ public class CallGraphReportPrinter implements ReportPrinter<CallGraphReportThre
     
     protected void printThread(CallGraphReportThreadElement te, PrintWriter writer) {
         Collection<CallGraphReportMethodElement> elements = te.getSubElements();
-        Map<Long, CallGraphReportMethodElement> graphTable = new HashMap();
+        LongMap<CallGraphReportMethodElement> graphTable = new LongMap<CallGraphReportMethodElement>();
         for (CallGraphReportMethodElement entry : elements) {
             graphTable.put(entry.getIndex(), entry);
         }
@@ -142,7 +149,7 @@ public class CallGraphReportPrinter implements ReportPrinter<CallGraphReportThre
             } else {
                 for (CallGraphReportMethodElement.Parent parent : element.getParents().values()) {
                     if (parent.getIndex() == 0) {
-                        lines.add(
+                        lines.add(withMetrics(parent.getMetrics(),
                                 Utils.hashMap(
                                         Column.INDEX,
                                         "",
@@ -159,13 +166,13 @@ public class CallGraphReportPrinter implements ReportPrinter<CallGraphReportThre
                                         Column.NAME,
                                         Formatter.indent(SPONTANEOUS)
                                 )
-                            );
+                            ));
                     } else if (parent.getIndex() == element.getIndex()) {
                         // ignore recursive call
                     } else {
                         CallGraphReportMethodElement parentRef = graphTable.get(parent.getIndex());
                         if (parentRef.getCycleIndex() > 0 && parentRef.getCycleIndex() == element.getCycleIndex()) {
-                            lines.add(
+                            lines.add(withMetrics(null,
                                     Utils.hashMap(
                                             Column.INDEX,
                                             "",
@@ -182,10 +189,10 @@ public class CallGraphReportPrinter implements ReportPrinter<CallGraphReportThre
                                             Formatter.indent(Formatter.name(parentRef.getMethod().getClassName(),
                                                     parentRef.getMethod().getMethodName(),
                                                     parentRef.getIndex(),
-                                                    parentRef.getCycleIndex()))));
+                                                    parentRef.getCycleIndex())))));
                             
                         } else {
-                            lines.add(
+                            lines.add(withMetrics(parent.getMetrics(),
                                 Utils.hashMap(
                                     Column.INDEX,
                                     "",
@@ -205,7 +212,7 @@ public class CallGraphReportPrinter implements ReportPrinter<CallGraphReportThre
                                             parentRef.getIndex(),
                                             parentRef.getCycleIndex()))
                                 )
-                            );
+                            ));
                         }
                     }
                 }
@@ -214,9 +221,9 @@ public class CallGraphReportPrinter implements ReportPrinter<CallGraphReportThre
 
             for (CallGraphReportMethodElement.Child child : element.getChildren().values()) {
                 CallGraphReportMethodElement childRef = graphTable.get(child.getIndex());
-                CallGraphReportMethodElement.Parent childParent = childRef.getParents().get(element.getIndex());
+                CallGraphReportMethodElement.Parent childParent = childRef.getParent(element.getIndex());
                 if (element instanceof CallGraphReportWholeCycleElement) {
-                    lines.add(
+                    lines.add(withMetrics(childRef.getMetrics(),
                             Utils.hashMap(
                                     Column.INDEX,
                                     "",
@@ -233,9 +240,9 @@ public class CallGraphReportPrinter implements ReportPrinter<CallGraphReportThre
                                             childRef.getMethod().getClassName(),
                                             childRef.getMethod().getMethodName(),
                                             childRef.getIndex(),
-                                            childRef.getCycleIndex()))));
+                                            childRef.getCycleIndex())))));
                 } else if (childRef.getCycleIndex() > 0 && childRef.getCycleIndex() == element.getCycleIndex()) {
-                    lines.add(
+                    lines.add(withMetrics(null,
                             Utils.hashMap(
                                     Column.INDEX,
                                     "",
@@ -253,10 +260,10 @@ public class CallGraphReportPrinter implements ReportPrinter<CallGraphReportThre
                                             childRef.getMethod().getClassName(),
                                             childRef.getMethod().getMethodName(),
                                             childRef.getIndex(),
-                                            childRef.getCycleIndex()))));
+                                            childRef.getCycleIndex())))));
                     
                 } else {
-                    lines.add(
+                    lines.add(withMetrics(childParent.getMetrics(),
                         Utils.hashMap(
                                 Column.INDEX,
                                 "",
@@ -275,20 +282,21 @@ public class CallGraphReportPrinter implements ReportPrinter<CallGraphReportThre
                                         childRef.getMethod().getClassName(),
                                         childRef.getMethod().getMethodName(),
                                         childRef.getIndex(),
-                                        childRef.getCycleIndex()))));
+                                        childRef.getCycleIndex())))));
                 }
             }
             lines.add(SEPARATOR_CHAR);
         }
 
+        List<Column> columns = selectColumns(elements);
         Map<Column, Integer> columnWidth = new HashMap();
-        for (Column col : Column.values()) {
+        for (Column col : columns) {
             columnWidth.put(col, 0);
         }
         for (Object line : lines) {
             if (line instanceof Map) {
                 Map<Column, String> cols = (Map<Column, String>) line;
-                for (Column col : cols.keySet()) {
+                for (Column col : columns) {
                     columnWidth.put(col, Math.max(columnWidth.get(col), cols.get(col).length()));
                 }
             }
@@ -297,15 +305,12 @@ public class CallGraphReportPrinter implements ReportPrinter<CallGraphReportThre
         for (int w : columnWidth.values()) {
             rowWidth += w;
         }
-        rowWidth += COLUMN_SEPARATOR.length() * (columnWidth.values().size() - 2); // do not count Column.SPAN
+        rowWidth += COLUMN_SEPARATOR.length() * (columns.size() - 1);
 
         for (Object line : lines) {
             if (line instanceof Map) {
                 Map<Column, String> cols = (Map<Column, String>) line;
-                for (Column col : Column.values()) {
-                    if (col == Column.SPAN) {
-                        continue;
-                    }
+                for (Column col : columns) {
                     int w = columnWidth.get(col);
                     String format;
                     if (line == header) {
@@ -316,6 +321,14 @@ public class CallGraphReportPrinter implements ReportPrinter<CallGraphReportThre
                             case SELF_TIME:
                             case CHILDREN_TIME:
                             case CALLS:
+                            case SELF_ALLOCATED_BYTES:
+                            case CHILDREN_ALLOCATED_BYTES:
+                            case SELF_CPU_TIME:
+                            case CHILDREN_CPU_TIME:
+                            case SELF_BLOCKED_TIME:
+                            case CHILDREN_BLOCKED_TIME:
+                            case SELF_WAITED_TIME:
+                            case CHILDREN_WAITED_TIME:
                                 format = "%" + w + "s";
                                 break;
                             default:
@@ -328,10 +341,6 @@ public class CallGraphReportPrinter implements ReportPrinter<CallGraphReportThre
             }
         }
 
-        List<Column> columns =
-            Arrays.asList(
-                Column.INDEX, Column.TOTAL_TIME_PERCENT,
-                Column.SELF_TIME, Column.CHILDREN_TIME, Column.CALLS, Column.NAME);
         String separator = methodSeparator(rowWidth);
 
         for (Object line: lines) {
@@ -348,6 +357,46 @@ public class CallGraphReportPrinter implements ReportPrinter<CallGraphReportThre
         }
     }
 
+    /**
+     * Selects the columns to print. The columns of a metric are printed only when it has been measured.
+     */
+    private List<Column> selectColumns(Collection<CallGraphReportMethodElement> elements) {
+        Set<Metric> metrics = EnumSet.noneOf(Metric.class);
+        for (CallGraphReportMethodElement element : elements) {
+            metrics.addAll(element.getMetrics().getMetrics());
+        }
+        List<Column> columns = new ArrayList<Column>();
+        for (Column col : Column.values()) {
+            if (col != Column.SPAN && (col.metric == null || metrics.contains(col.metric))) {
+                columns.add(col);
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Puts the values of the metrics into the line, which are blank if the values are null.
+     */
+    private Map<Column, String> withMetrics(MetricValues values, Map<Column, String> line) {
+        line.put(Column.SELF_ALLOCATED_BYTES,
+                values != null ? Formatter.bytes(values.getSelf(Metric.ALLOCATED_BYTES)) : "");
+        line.put(Column.CHILDREN_ALLOCATED_BYTES,
+                values != null ? Formatter.bytes(values.getChildren(Metric.ALLOCATED_BYTES)) : "");
+        line.put(Column.SELF_CPU_TIME,
+                values != null ? Formatter.time(values.getSelf(Metric.CPU_TIME)) : "");
+        line.put(Column.CHILDREN_CPU_TIME,
+                values != null ? Formatter.time(values.getChildren(Metric.CPU_TIME)) : "");
+        line.put(Column.SELF_BLOCKED_TIME,
+                values != null ? Formatter.time(values.getSelf(Metric.BLOCKED_TIME)) : "");
+        line.put(Column.CHILDREN_BLOCKED_TIME,
+                values != null ? Formatter.time(values.getChildren(Metric.BLOCKED_TIME)) : "");
+        line.put(Column.SELF_WAITED_TIME,
+                values != null ? Formatter.time(values.getSelf(Metric.WAITED_TIME)) : "");
+        line.put(Column.CHILDREN_WAITED_TIME,
+                values != null ? Formatter.time(values.getChildren(Metric.WAITED_TIME)) : "");
+        return line;
+    }
+
     private Object primaryLine(CallGraphReportMethodElement element) {
         String name;
         if (element instanceof CallGraphReportWholeCycleElement) {
@@ -359,7 +408,7 @@ public class CallGraphReportPrinter implements ReportPrinter<CallGraphReportThre
                     element.getIndex(),
                     element.getCycleIndex());
         }
-        return Utils.hashMap(
+        return withMetrics(element.getMetrics(), Utils.hashMap(
                 Column.INDEX,
                 Formatter.index(element.getIndex()),
                 Column.TOTAL_TIME_PERCENT,
@@ -371,7 +420,7 @@ public class CallGraphReportPrinter implements ReportPrinter<CallGraphReportThre
                 Column.CALLS,
                 Formatter.primaryCalls(element.getCalls(), element.getRecursiveCalls()),
                 Column.NAME,
-                name);
+                name));
     }
 
     private String methodSeparator(int rowWidth) {
@@ -388,14 +437,29 @@ public class CallGraphReportPrinter implements ReportPrinter<CallGraphReportThre
         TOTAL_TIME_PERCENT("% time"),
         SELF_TIME("self"),
         CHILDREN_TIME("children"),
+        SELF_ALLOCATED_BYTES("self bytes", Metric.ALLOCATED_BYTES),
+        CHILDREN_ALLOCATED_BYTES("children bytes", Metric.ALLOCATED_BYTES),
+        SELF_CPU_TIME("self cpu", Metric.CPU_TIME),
+        CHILDREN_CPU_TIME("children cpu", Metric.CPU_TIME),
+        SELF_BLOCKED_TIME("self blocked", Metric.BLOCKED_TIME),
+        CHILDREN_BLOCKED_TIME("children blocked", Metric.BLOCKED_TIME),
+        SELF_WAITED_TIME("self waited", Metric.WAITED_TIME),
+        CHILDREN_WAITED_TIME("children waited", Metric.WAITED_TIME),
         CALLS("calls"),
         NAME("name"),
         SPAN(""); // FIXME ugly..
 
         private String name;
+        // the metric whose values are in the column, or null if the column is always printed
+        private Metric metric;
 
         Column(String name) {
-           this.name = name;
+           this(name, null);
+        }
+
+        Column(String name, Metric metric) {
+            this.name = name;
+            this.metric = metric;
         }
 
         @Override
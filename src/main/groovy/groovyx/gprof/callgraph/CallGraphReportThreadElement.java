@@ -15,6 +15,7 @@
  */
 package groovyx.gprof.callgraph;
 
+import groovyx.gprof.LongMap;
 import groovyx.gprof.ThreadInfo;
 
 import java.util.*;
@@ -23,7 +24,8 @@ public class CallGraphReportThreadElement implements CallGraphReportElement {
     
     private ThreadInfo thread;
     
-    private TreeMap<Long, CallGraphReportMethodElement> subElements = new TreeMap();
+    // the indices of the sub elements are dense, so they are looked up like in an array
+    private LongMap<CallGraphReportMethodElement> subElements = new LongMap<CallGraphReportMethodElement>();
     
     public CallGraphReportThreadElement(ThreadInfo thread) {
         this.thread = thread;
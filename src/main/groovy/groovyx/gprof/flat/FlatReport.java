@@ -16,7 +16,10 @@
 package groovyx.gprof.flat;
 
 import groovyx.gprof.CallTree;
+import groovyx.gprof.MethodCounters;
 import groovyx.gprof.Report;
+import groovyx.gprof.ThreadInfo;
+import groovyx.gprof.ThreadRunInfo;
 
 import java.io.PrintWriter;
 import java.util.List;
@@ -24,9 +27,25 @@ import java.util.Map;
 
 public class FlatReport extends Report {
 
+    private ThreadInfo mainThread;
+    private List<MethodCounters> counters;
+
     public FlatReport(CallTree callTree) {
         super(callTree);
     }
+
+    /**
+     * Creates a report of the counters of the flat capture. The call tree of the report has no call.
+     * @param mainThread
+     *      the thread which the counters of all the threads are merged into unless the threads are separated
+     * @param counters
+     *      the counters of the threads
+     */
+    public FlatReport(ThreadInfo mainThread, List<MethodCounters> counters) {
+        super(new CallTree(new CallTree.Node(new ThreadRunInfo(mainThread))));
+        this.mainThread = mainThread;
+        this.counters = counters;
+    }
     
     @Override
     public void prettyPrint(Map args, PrintWriter writer) {
@@ -36,7 +55,8 @@ public class FlatReport extends Report {
         
         FlatReportNormalizer normalizer = new FlatReportNormalizer();
         normalizer.setSeparateThread(separateThread);
-        List<FlatReportThreadElement> elements = normalizer.normalize(callTree);
+        List<FlatReportThreadElement> elements = counters != null ?
+                normalizer.normalize(mainThread, counters) : normalizer.normalize(callTree);
         FlatReportPrinter printer = new FlatReportPrinter();
         printer.setSeparateThread(separateThread);
         printer.print(elements, writer);
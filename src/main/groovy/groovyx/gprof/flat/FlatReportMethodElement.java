@@ -16,6 +16,7 @@
 package groovyx.gprof.flat;
 
 import groovyx.gprof.MethodInfo;
+import groovyx.gprof.MetricValues;
 import groovyx.gprof.ReportElement;
 
 public class FlatReportMethodElement implements ReportElement {
@@ -30,6 +31,7 @@ public class FlatReportMethodElement implements ReportElement {
     private long selfTime;
     private long maxSelfTime;
     private long minSelfTime;
+    private MetricValues metrics = new MetricValues();
 
     public FlatReportMethodElement(MethodInfo method) {
         this.method = method;
@@ -111,6 +113,14 @@ public class FlatReportMethodElement implements ReportElement {
         this.minSelfTime = minSelfTime;
     }
 
+    /**
+     * Returns the values of the metrics of the calls. The self values include the recursive calls
+     * like the self time.
+     */
+    public MetricValues getMetrics() {
+        return metrics;
+    }
+
     public float getTimePercent() {
         return timePercent;
     }
@@ -136,6 +146,7 @@ public class FlatReportMethodElement implements ReportElement {
         if (time != that.time) return false;
         if (Float.compare(that.timePercent, timePercent) != 0) return false;
         if (method != null ? !method.equals(that.method) : that.method != null) return false;
+        if (metrics != null ? !metrics.equals(that.metrics) : that.metrics != null) return false;
 
         return true;
     }
@@ -152,6 +163,7 @@ public class FlatReportMethodElement implements ReportElement {
         result = 31 * result + (int) (selfTime ^ (selfTime >>> 32));
         result = 31 * result + (int) (maxSelfTime ^ (maxSelfTime >>> 32));
         result = 31 * result + (int) (minSelfTime ^ (minSelfTime >>> 32));
+        result = 31 * result + (metrics != null ? metrics.hashCode() : 0);
         return result;
     }
 
@@ -168,6 +180,7 @@ public class FlatReportMethodElement implements ReportElement {
                 ", selfTime=" + selfTime +
                 ", maxSelfTime=" + maxSelfTime +
                 ", minSelfTime=" + minSelfTime +
+                ", metrics=" + metrics +
                 '}';
     }
 }
@@ -31,79 +31,94 @@ public class FlatReportNormalizer implements ReportNormalizer {
         final List<FlatReportThreadElement> elements = new ArrayList();
 
         callTree.visit(new CallTree.NodeVisitor() {
-            Stack<Map<MethodInfo, FlatReportMethodElement>> methodElementMapStack = new Stack();
-            
+            Stack<MethodElementTable> methodElementTableStack = new Stack();
+            // the self values of the calls of each method which have been exited so far
+            SelfSums selfSums = new SelfSums();
+            // the self values of the method of each call in the stack at the time when the call is entered
+            long[] enterSelfSums = new long[16 * SelfSums.STRIDE];
+            int depth = 0;
+
             @Override
-            public void exit(CallTree.Node node) {
+            public void visit(CallTree.Node node) {
                 CallInfo call = node.getData();
-                if (call instanceof ThreadRunInfo) {
+                if (call instanceof  ThreadRunInfo) {
                     ThreadRunInfo threadRun = (ThreadRunInfo) call;
                     if (separateThread || threadRun.equals(callTree.getRoot().getData())) {
-                        Map<MethodInfo, FlatReportMethodElement> methodElementMap = methodElementMapStack.pop();
-                        List<FlatReportMethodElement> methodElements = new ArrayList(methodElementMap.values());
-
-                        // sort first for calculating the cumulative time
-                        Collections.sort(methodElements, new MethodElementComparator());
-
-                        FlatReportThreadElement threadElement = new FlatReportThreadElement(threadRun.getThread());
-                        
-                        long totalTime = 0;
-                        for (FlatReportMethodElement methodElement : methodElements) {
-                            totalTime += methodElement.getSelfTime();    
-                        }
-                        
-                        long cumulativeTime = 0;
-                        for (FlatReportMethodElement methodElement : methodElements) {
-                            cumulativeTime += methodElement.getSelfTime();
-                            methodElement.setTimePercent((float) methodElement.getSelfTime() / totalTime * 100);
-                            methodElement.setCumulativeTime(cumulativeTime);
-                            threadElement.addMethodElement(methodElement);
-                        }
-                        
-                        elements.add(threadElement);
+                        methodElementTableStack.push(new MethodElementTable());
                     }
+                } else if (call instanceof MethodCallInfo) {
+                    MethodCallInfo methodCall = (MethodCallInfo) call;
+                    int methodId = methodCall.getMethodId();
+                    MethodElementTable methodElementTable = methodElementTableStack.peek();
+                    if (methodElementTable.get(methodId) == null) {
+                        methodElementTable.put(methodId, new FlatReportMethodElement(methodCall.getMethod()));
+                    }
+                    if ((depth + 1) * SelfSums.STRIDE > enterSelfSums.length) {
+                        enterSelfSums = Arrays.copyOf(enterSelfSums, enterSelfSums.length * 2);
+                    }
+                    selfSums.copyTo(methodId, enterSelfSums, depth * SelfSums.STRIDE);
                 }
+                depth++;
             }
 
-            public void visit(CallTree.Node node) {
+            @Override
+            public void exit(CallTree.Node node) {
+                depth--;
                 CallInfo call = node.getData();
-                if (call instanceof  ThreadRunInfo) {
+                if (call instanceof ThreadRunInfo) {
                     ThreadRunInfo threadRun = (ThreadRunInfo) call;
                     if (separateThread || threadRun.equals(callTree.getRoot().getData())) {
-                        methodElementMapStack.push(new HashMap());
+                        MethodElementTable methodElementTable = methodElementTableStack.pop();
+                        elements.add(makeThreadElement(threadRun.getThread(), methodElementTable.values()));
                     }
                 } else if (call instanceof MethodCallInfo) {
-                    final MethodCallInfo methodCall = (MethodCallInfo) call;
-                    Map<MethodInfo, FlatReportMethodElement> methodElementMap = methodElementMapStack.peek();
-                    FlatReportMethodElement element = methodElementMap.get(methodCall.getMethod());
-                    if (element == null) {
-                        element = new FlatReportMethodElement(methodCall.getMethod());
-                        methodElementMap.put(methodCall.getMethod(), element);
-                    }
+                    MethodCallInfo methodCall = (MethodCallInfo) call;
+                    int methodId = methodCall.getMethodId();
                     boolean recursive = node.getParent().getData() instanceof MethodCallInfo &&
-                            ((MethodCallInfo) node.getParent().getData()).getMethod().equals(methodCall.getMethod());
+                            ((MethodCallInfo) node.getParent().getData()).getMethodId() == methodId;
                     if (!recursive) {
-                        element.setCalls(element.getCalls() + 1);
-
-                        final long[] recursiveTime = {0};
-                        node.visit(new CallTree.NodeVisitor() {
-                            @Override
-                            public void visit(CallTree.Node child) {
-                                MethodCallInfo childMethodCall = (MethodCallInfo) child.getData();
-                                if (childMethodCall.getMethod().equals(methodCall.getMethod())) {
-                                    recursiveTime[0] += childMethodCall.getSelfTime();
-                                }
-                            }
-                        });
-                        long selfTime = methodCall.getSelfTime() + recursiveTime[0];
-                        element.setSelfTime(element.getSelfTime() + selfTime);
-                        element.setMaxSelfTime(Math.max(element.getMaxSelfTime(), selfTime));
-                        element.setMinSelfTime(element.getMinSelfTime() == 0 ? selfTime : Math.min(element.getMinSelfTime(), selfTime));
-
-                        long totalTime = methodCall.getTime();
-                        element.setTime(element.getTime() + totalTime);
-                        element.setMaxTime(Math.max(element.getMaxTime(), totalTime));
-                        element.setMinTime(element.getMinTime() == 0 ? methodCall.getTime() : Math.min(element.getMinTime(), totalTime));
+                        // the calls of the method under the call have been exited since the call was entered,
+                        // so the differences of the sums are the self values of the recursive calls
+                        int enter = depth * SelfSums.STRIDE;
+                        long recursiveTime = selfSums.getTime(methodId) - enterSelfSums[enter];
+                        addCall(methodElementTableStack.peek().get(methodId), methodCall, recursiveTime, enter);
+                    }
+                    selfSums.add(methodCall);
+                }
+            }
+
+            private void addCall(
+                    FlatReportMethodElement element, MethodCallInfo methodCall, long recursiveTime, int enter) {
+                element.setCalls(element.getCalls() + methodCall.getCalls());
+
+                long selfTime = methodCall.getSelfTime() + recursiveTime;
+                long totalTime = methodCall.getTime();
+                long maxSelfTime = selfTime, minSelfTime = selfTime;
+                long maxTime = totalTime, minTime = totalTime;
+                if (methodCall.getCalls() > 1) {
+                    // the node is an aggregation of the calls and keeps their extremes
+                    maxSelfTime = methodCall.getMaxSelfTime();
+                    minSelfTime = methodCall.getMinSelfTime();
+                    maxTime = methodCall.getMaxTime();
+                    minTime = methodCall.getMinTime();
+                }
+                element.setSelfTime(element.getSelfTime() + selfTime);
+                element.setMaxSelfTime(Math.max(element.getMaxSelfTime(), maxSelfTime));
+                element.setMinSelfTime(element.getMinSelfTime() == 0 ? minSelfTime : Math.min(element.getMinSelfTime(), minSelfTime));
+
+                element.setTime(element.getTime() + totalTime);
+                element.setMaxTime(Math.max(element.getMaxTime(), maxTime));
+                element.setMinTime(element.getMinTime() == 0 ? minTime : Math.min(element.getMinTime(), minTime));
+
+                if (methodCall.hasMetrics()) {
+                    MetricValues callMetrics = methodCall.getMetrics();
+                    int methodId = methodCall.getMethodId();
+                    for (Metric metric : callMetrics.getMetrics()) {
+                        long recursiveValue = selfSums.getMetric(methodId, metric)
+                                - enterSelfSums[enter + 1 + metric.ordinal()];
+                        // the self values of the recursive calls are not the children values
+                        addMetric(element, metric, callMetrics.get(metric),
+                                callMetrics.getSelf(metric) + recursiveValue);
                     }
                 }
             }
@@ -114,6 +129,161 @@ public class FlatReportNormalizer implements ReportNormalizer {
         return elements;
     }
     
+    /**
+     * Normalizes the counters of the flat capture without any call tree.
+     * @param mainThread
+     *      the thread which the counters of all the threads are merged into unless the threads are separated
+     * @param counters
+     *      the counters of the threads
+     * @return the elements of the threads
+     */
+    public List<FlatReportThreadElement> normalize(ThreadInfo mainThread, List<MethodCounters> counters) {
+        List<FlatReportThreadElement> elements = new ArrayList();
+        MethodElementTable methodElementTable = new MethodElementTable();
+        for (MethodCounters theCounters : counters) {
+            if (separateThread) {
+                methodElementTable = new MethodElementTable();
+            }
+            for (int methodId = 1, n = theCounters.getMaxMethodId(); methodId <= n; methodId++) {
+                long calls = theCounters.getCalls(methodId);
+                if (calls == 0) {
+                    continue;
+                }
+                FlatReportMethodElement element = methodElementTable.get(methodId);
+                if (element == null) {
+                    element = new FlatReportMethodElement(MethodRegistry.getMethod(methodId));
+                    element.setMinTime(theCounters.getMinTime(methodId));
+                    element.setMinSelfTime(theCounters.getMinSelfTime(methodId));
+                    methodElementTable.put(methodId, element);
+                }
+                element.setCalls(element.getCalls() + calls);
+                element.setTime(element.getTime() + theCounters.getTime(methodId));
+                element.setSelfTime(element.getSelfTime() + theCounters.getSelfTime(methodId));
+                element.setMinTime(Math.min(element.getMinTime(), theCounters.getMinTime(methodId)));
+                element.setMaxTime(Math.max(element.getMaxTime(), theCounters.getMaxTime(methodId)));
+                element.setMinSelfTime(Math.min(element.getMinSelfTime(), theCounters.getMinSelfTime(methodId)));
+                element.setMaxSelfTime(Math.max(element.getMaxSelfTime(), theCounters.getMaxSelfTime(methodId)));
+                for (Metric metric : theCounters.getMetrics()) {
+                    addMetric(element, metric,
+                            theCounters.getMetric(methodId, metric), theCounters.getSelfMetric(methodId, metric));
+                }
+            }
+            if (separateThread) {
+                elements.add(makeThreadElement(theCounters.getThread(), methodElementTable.values()));
+            }
+        }
+        if (!separateThread) {
+            elements.add(makeThreadElement(mainThread, methodElementTable.values()));
+        }
+        Collections.sort(elements, new ThreadElementComparator());
+        return elements;
+    }
+
+    private static void addMetric(FlatReportMethodElement element, Metric metric, long value, long selfValue) {
+        MetricValues metrics = element.getMetrics();
+        metrics.set(metric, metrics.get(metric) + value);
+        metrics.setChildren(metric, metrics.getChildren(metric) + value - selfValue);
+    }
+
+    private static FlatReportThreadElement makeThreadElement(
+            ThreadInfo thread, List<FlatReportMethodElement> methodElements) {
+        // sort first for calculating the cumulative time
+        Collections.sort(methodElements, new MethodElementComparator());
+
+        FlatReportThreadElement threadElement = new FlatReportThreadElement(thread);
+
+        long totalTime = 0;
+        for (FlatReportMethodElement methodElement : methodElements) {
+            totalTime += methodElement.getSelfTime();
+        }
+
+        long cumulativeTime = 0;
+        for (FlatReportMethodElement methodElement : methodElements) {
+            cumulativeTime += methodElement.getSelfTime();
+            methodElement.setTimePercent((float) methodElement.getSelfTime() / totalTime * 100);
+            methodElement.setCumulativeTime(cumulativeTime);
+            threadElement.addMethodElement(methodElement);
+        }
+        return threadElement;
+    }
+
+    /**
+     * The sums of the self time and the self values of the metrics of the calls for each method.
+     */
+    static class SelfSums {
+
+        private static final Metric[] METRICS = Metric.values();
+        // the self time and the self values of the metrics of a method
+        static final int STRIDE = 1 + METRICS.length;
+
+        private long[] sums = new long[(MethodRegistry.size() + 1) * STRIDE];
+
+        long getTime(int methodId) {
+            int offset = methodId * STRIDE;
+            return offset < sums.length ? sums[offset] : 0;
+        }
+
+        long getMetric(int methodId, Metric metric) {
+            int offset = methodId * STRIDE;
+            return offset < sums.length ? sums[offset + 1 + metric.ordinal()] : 0;
+        }
+
+        void add(MethodCallInfo call) {
+            int offset = call.getMethodId() * STRIDE;
+            if (offset >= sums.length) {
+                sums = Arrays.copyOf(sums, Math.max(offset + STRIDE, sums.length * 2));
+            }
+            sums[offset] += call.getSelfTime();
+            if (call.hasMetrics()) {
+                MetricValues metrics = call.getMetrics();
+                for (Metric metric : METRICS) {
+                    if (metrics.has(metric)) {
+                        sums[offset + 1 + metric.ordinal()] += metrics.getSelf(metric);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Copies the sums of the method into the array.
+         */
+        void copyTo(int methodId, long[] dest, int destOffset) {
+            int offset = methodId * STRIDE;
+            if (offset < sums.length) {
+                System.arraycopy(sums, offset, dest, destOffset, STRIDE);
+            } else {
+                Arrays.fill(dest, destOffset, destOffset + STRIDE, 0L);
+            }
+        }
+
+    }
+
+    /**
+     * The method elements of a thread which are indexed by the id of the method.
+     */
+    static class MethodElementTable {
+
+        private FlatReportMethodElement[] elements = new FlatReportMethodElement[MethodRegistry.size() + 1];
+        private List<FlatReportMethodElement> values = new ArrayList();
+
+        FlatReportMethodElement get(int methodId) {
+            return methodId < elements.length ? elements[methodId] : null;
+        }
+
+        void put(int methodId, FlatReportMethodElement element) {
+            if (methodId >= elements.length) {
+                elements = Arrays.copyOf(elements, Math.max(methodId + 1, elements.length * 2));
+            }
+            elements[methodId] = element;
+            values.add(element);
+        }
+
+        List<FlatReportMethodElement> values() {
+            return values;
+        }
+
+    }
+
     static class ThreadElementComparator implements Comparator<FlatReportThreadElement> {
 
         @Override
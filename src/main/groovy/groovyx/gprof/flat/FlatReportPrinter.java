@@ -15,6 +15,8 @@
  */
 package groovyx.gprof.flat;
 
+import groovyx.gprof.Metric;
+import groovyx.gprof.MetricValues;
 import groovyx.gprof.ReportPrinter;
 import groovyx.gprof.ThreadInfo;
 
@@ -64,14 +66,32 @@ public class FlatReportPrinter implements ReportPrinter<FlatReportThreadElement>
     }
     
     private void printThread(FlatReportThreadElement threadElement, PrintWriter writer) {
+        COLUMN[] columns = selectColumns(threadElement.getMethodElements());
         List<Map<COLUMN, String>> rows = createRowValueList(threadElement.getMethodElements());
-        Map<COLUMN, Integer> columnSizeMap = calculateColumnSize(rows);
-        writeHeader(writer, columnSizeMap);
-        writeRows(writer, rows, columnSizeMap);
+        Map<COLUMN, Integer> columnSizeMap = calculateColumnSize(columns, rows);
+        writeHeader(writer, columns, columnSizeMap);
+        writeRows(writer, columns, rows, columnSizeMap);
     }
 
-    private void writeRows(PrintWriter writer, List<Map<COLUMN, String>> rows, Map<COLUMN, Integer> columnSizeMap) {
-        COLUMN[] columns = COLUMN.values();
+    /**
+     * Selects the columns to print. The columns of a metric are printed only when it has been measured.
+     */
+    private COLUMN[] selectColumns(List<FlatReportMethodElement> elements) {
+        Set<Metric> metrics = EnumSet.noneOf(Metric.class);
+        for (FlatReportMethodElement element : elements) {
+            metrics.addAll(element.getMetrics().getMetrics());
+        }
+        List<COLUMN> columns = new ArrayList<COLUMN>();
+        for (COLUMN column : COLUMN.values()) {
+            if (column.metric == null || metrics.contains(column.metric)) {
+                columns.add(column);
+            }
+        }
+        return columns.toArray(new COLUMN[columns.size()]);
+    }
+
+    private void writeRows(PrintWriter writer, COLUMN[] columns, List<Map<COLUMN, String>> rows,
+                           Map<COLUMN, Integer> columnSizeMap) {
         int columnNum = columns.length;
         StringBuilder rowFormatBuff = new StringBuilder();
         for (int i = 0; i < columnNum; i++) {
@@ -91,8 +111,7 @@ public class FlatReportPrinter implements ReportPrinter<FlatReportThreadElement>
         }
     }
 
-    private void writeHeader(PrintWriter writer, Map<COLUMN, Integer> columnSizeMap) {
-        COLUMN[] columns = COLUMN.values();
+    private void writeHeader(PrintWriter writer, COLUMN[] columns, Map<COLUMN, Integer> columnSizeMap) {
         int columnNum = columns.length;
         StringBuilder headerFormatBuff = new StringBuilder();
         for (int i = 0; i < columnNum; i++) {
@@ -112,6 +131,14 @@ public class FlatReportPrinter implements ReportPrinter<FlatReportThreadElement>
                 case TOTAL_MIN_TIME:
                 case SELF_MAX_TIME:
                 case TOTAL_MAX_TIME:
+                case SELF_ALLOCATED_BYTES:
+                case TOTAL_ALLOCATED_BYTES:
+                case SELF_CPU_TIME:
+                case TOTAL_CPU_TIME:
+                case SELF_BLOCKED_TIME:
+                case TOTAL_BLOCKED_TIME:
+                case SELF_WAITED_TIME:
+                case TOTAL_WAITED_TIME:
                     headerFormatBuff.append(String.format("%%%ds", columnSize));
                     break;
                 default:
@@ -131,13 +158,13 @@ public class FlatReportPrinter implements ReportPrinter<FlatReportThreadElement>
         writer.printf(headerFormat, headerValues);
     }
 
-    private Map<COLUMN, Integer> calculateColumnSize(List<Map<COLUMN, String>> rows) {
+    private Map<COLUMN, Integer> calculateColumnSize(COLUMN[] columns, List<Map<COLUMN, String>> rows) {
         Map<COLUMN, Integer> colSizeMap = new HashMap();
-        for (COLUMN col : COLUMN.values()) {
+        for (COLUMN col : columns) {
             colSizeMap.put(col, Math.max(col.header1.length(), col.header2.length()));
         }
         for (Map<COLUMN, String> row : rows) {
-            for (COLUMN col : COLUMN.values()) {
+            for (COLUMN col : columns) {
                 colSizeMap.put(col, Math.max(colSizeMap.get(col), row.get(col).length()));
             }
         }
@@ -158,6 +185,15 @@ public class FlatReportPrinter implements ReportPrinter<FlatReportThreadElement>
             row.put(COLUMN.TOTAL_MIN_TIME, Formatter.msec(element.getMinTime()));
             row.put(COLUMN.SELF_MAX_TIME, Formatter.msec(element.getMaxSelfTime()));
             row.put(COLUMN.TOTAL_MAX_TIME, Formatter.msec(element.getMaxTime()));
+            MetricValues metrics = element.getMetrics();
+            row.put(COLUMN.SELF_ALLOCATED_BYTES, Formatter.bytes(metrics.getSelf(Metric.ALLOCATED_BYTES)));
+            row.put(COLUMN.TOTAL_ALLOCATED_BYTES, Formatter.bytes(metrics.get(Metric.ALLOCATED_BYTES)));
+            row.put(COLUMN.SELF_CPU_TIME, Formatter.sec(metrics.getSelf(Metric.CPU_TIME)));
+            row.put(COLUMN.TOTAL_CPU_TIME, Formatter.sec(metrics.get(Metric.CPU_TIME)));
+            row.put(COLUMN.SELF_BLOCKED_TIME, Formatter.sec(metrics.getSelf(Metric.BLOCKED_TIME)));
+            row.put(COLUMN.TOTAL_BLOCKED_TIME, Formatter.sec(metrics.get(Metric.BLOCKED_TIME)));
+            row.put(COLUMN.SELF_WAITED_TIME, Formatter.sec(metrics.getSelf(Metric.WAITED_TIME)));
+            row.put(COLUMN.TOTAL_WAITED_TIME, Formatter.sec(metrics.get(Metric.WAITED_TIME)));
             row.put(COLUMN.NAME, Formatter.name(element.getMethod().getClassName(), element.getMethod().getMethodName()));
             rows.add(row);
         }
@@ -206,6 +242,46 @@ public class FlatReportPrinter implements ReportPrinter<FlatReportThreadElement>
                 " total",
                 "max ms",
                 "%%%ds"),
+        SELF_ALLOCATED_BYTES(
+                " self",
+                "bytes",
+                "%%%ds",
+                Metric.ALLOCATED_BYTES),
+        TOTAL_ALLOCATED_BYTES(
+                " total",
+                "bytes",
+                "%%%ds",
+                Metric.ALLOCATED_BYTES),
+        SELF_CPU_TIME(
+                "  self ",
+                "cpu sec",
+                "%%%ds",
+                Metric.CPU_TIME),
+        TOTAL_CPU_TIME(
+                " total ",
+                "cpu sec",
+                "%%%ds",
+                Metric.CPU_TIME),
+        SELF_BLOCKED_TIME(
+                " self  ",
+                "blocked",
+                "%%%ds",
+                Metric.BLOCKED_TIME),
+        TOTAL_BLOCKED_TIME(
+                " total ",
+                "blocked",
+                "%%%ds",
+                Metric.BLOCKED_TIME),
+        SELF_WAITED_TIME(
+                " self ",
+                "waited",
+                "%%%ds",
+                Metric.WAITED_TIME),
+        TOTAL_WAITED_TIME(
+                " total",
+                "waited",
+                "%%%ds",
+                Metric.WAITED_TIME),
         NAME(
                 "    ",
                 "name",
@@ -215,11 +291,18 @@ public class FlatReportPrinter implements ReportPrinter<FlatReportThreadElement>
         private String header1;
         private String header2;
         private String format;
+        // the metric whose values are in the column, or null if the column is always printed
+        private Metric metric;
 
         COLUMN(String header1, String header2, String format) {
+            this(header1, header2, format, null);
+        }
+
+        COLUMN(String header1, String header2, String format, Metric metric) {
             this.header1 = header1;
             this.header2 = header2;
             this.format = format;
+            this.metric = metric;
         }
     }
     
@@ -249,6 +332,10 @@ public class FlatReportPrinter implements ReportPrinter<FlatReportThreadElement>
             return TIME_PERCENT_FORMAT.format(percent);
         }
 
+        public static String bytes(long bytes) {
+            return String.format("%d", bytes);
+        }
+
         public static String name(String className, String methodName) {
             return String.format("%s.%s", className, methodName);
         }
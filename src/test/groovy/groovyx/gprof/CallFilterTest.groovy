@@ -53,4 +53,52 @@ class CallFilterTest extends Specification {
         "abc" | false 
     }
 
+    def "many patterns are matched at once"() {
+        expect:
+        def filter = new CallFilter()
+        (0..<300).each { filter.addInclude("com.example.p${it}.*") }
+        filter.addInclude("*.ctor")
+        filter.addExclude("com.example.p1?.*")
+        filter.accept(text) == accepted
+
+        where:
+        text  | accepted
+        "com.example.p0.Foo.bar" | true
+        "com.example.p299.Foo.bar" | true
+        "com.example.p300.Foo.bar" | false
+        "com.example.p12.Foo.bar" | false
+        "com.example.p123.Foo.bar" | true
+        "com.example.p12.Foo.ctor" | false
+        "org.example.Foo.ctor" | true
+        "org.example.Foo.bar" | false
+    }
+
+    def "compiles the patterns before the first use"() {
+        when:
+        def filter = new CallFilter()
+        filter.addInclude("java.*")
+        filter.compile()
+        def compiled = filter.@automaton
+        filter.addExclude("java.util.*")
+
+        then:
+        compiled != null
+        filter.@automaton == null
+        filter.accept("java.lang.String")
+        !filter.accept("java.util.List")
+    }
+
+    def "method is matched by its class name and method name"() {
+        expect:
+        def filter = new MethodCallFilter()
+        filter.addInclude("java.lang.*.ctor")
+        filter.accept(new MethodInfo(className, methodName)) == accepted
+
+        where:
+        className | methodName | accepted
+        "java.lang.String" | "ctor" | true
+        "java.lang.String" | "size" | false
+        "java.util.List" | "ctor" | false
+    }
+
 }
@@ -17,6 +17,10 @@ package groovyx.gprof
 
 import spock.lang.Specification
 
+import java.lang.ref.WeakReference
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
 @Mixin(TestHelper)
 class CallInterceptorTest extends Specification {
     
@@ -95,6 +99,28 @@ class CallInterceptorTest extends Specification {
         intercepted.containsAll(includes) && !(intercepted.find { excludes.contains(it) })
     }
     
+    def "attaches calls in an excluded call to the nearest included caller"() {
+        when:
+        def filter = new MethodCallFilter()
+        filter.addExclude("B.*")
+        def interceptor = new CallInterceptor(filter, new ThreadRunFilter())
+        def calls = [
+            methodCall("A", "a", 0),
+            methodCall("B", "b", 0),
+            methodCall("A", "c", 0) ]
+        calls.each {
+            interceptor.beforeInvoke(it)
+        }
+        calls.reverse().each {
+            interceptor.afterInvoke(it)
+        }
+        def root = interceptor.tree.root
+
+        then:
+        root.children*.data*.method == [ method("A", "a") ]
+        root.children[0].children*.data*.method == [ method("A", "c") ]
+    }
+
     def "subtracts overheads"() {
         setup:
             def interceptor = new CallInterceptor(new MethodCallFilter(), new ThreadRunFilter())
@@ -124,4 +150,267 @@ class CallInterceptorTest extends Specification {
             "A.d"|        20 |       20
     }
 
+    def "merges calls along the same call path when aggregating"() {
+        setup:
+            def interceptor = new CallInterceptor(
+                    new MethodCallFilter(), new ThreadRunFilter(), CallInterceptor.Capture.AGGREGATE)
+            [[100, 30], [80, 20], [60, 10]].each { a, b ->
+                def aCall = methodCall("A", "a", a)
+                def bCall = methodCall("A", "b", b)
+                interceptor.beforeInvoke(aCall)
+                interceptor.beforeInvoke(bCall)
+                interceptor.afterInvoke(bCall)
+                interceptor.afterInvoke(aCall)
+            }
+            def tree = interceptor.tree
+            def flatten = new groovyx.gprof.flat.FlatReportNormalizer().normalize(tree)
+            def flattenElem = flatten.find { true }.methodElements
+
+        expect:
+            tree.root.children.size() == 1
+            tree.root.children[0].children.size() == 1
+            def r = flattenElem.find { it.method.name == name }
+            r.calls == calls &&
+                nano2Milli(r.time) == totalTime && nano2Milli(r.selfTime) == selfTime &&
+                nano2Milli(r.minTime) == minTime && nano2Milli(r.maxTime) == maxTime &&
+                nano2Milli(r.minSelfTime) == minSelfTime && nano2Milli(r.maxSelfTime) == maxSelfTime
+
+        where:
+            name | calls | totalTime | selfTime | minTime | maxTime | minSelfTime | maxSelfTime
+            "A.a"|     3 |       240 |      180 |      60 |     100 |          50 |          70
+            "A.b"|     3 |        60 |       60 |      10 |      30 |          10 |          30
+    }
+
+    def "subtracts overheads when aggregating"() {
+        setup:
+            def interceptor = new CallInterceptor(
+                    new MethodCallFilter(), new ThreadRunFilter(), CallInterceptor.Capture.AGGREGATE)
+            def calls = [
+                methodCall("A", "a", 140, 20),
+                methodCall("A", "b", 100, 20),
+                methodCall("A", "c", 60, 20),
+                methodCall("A", "d", 20, 20) ]
+            calls.each {
+                interceptor.beforeInvoke(it)
+            }
+            calls.reverse().each {
+                interceptor.afterInvoke(it)
+            }
+            def flatten = new groovyx.gprof.flat.FlatReportNormalizer().normalize(interceptor.tree)
+            def flattenElem = flatten.find { true }.methodElements
+
+        expect:
+            def r = flattenElem.find { it.method.name == name }
+            nano2Milli(r.time) == totalTime && nano2Milli(r.selfTime) == selfTime
+
+        where:
+            name | totalTime | selfTime
+            "A.a"|        80 |       20
+            "A.b"|        60 |       20
+            "A.c"|        40 |       20
+            "A.d"|        20 |       20
+    }
+
+    def "takes the times of the calls which are supplied"() {
+        when:
+        def interceptor = new CallInterceptor(new MethodCallFilter(), new ThreadRunFilter(), capture)
+        def calls = [
+            methodCall("A", "a", 140, 20),
+            methodCall("A", "b", 100, 20),
+            methodCall("A", "c", 60, 20),
+            methodCall("A", "d", 20, 20) ]
+        calls.each {
+            interceptor.beforeInvoke(it)
+        }
+        calls.reverse().each {
+            interceptor.afterInvoke(it)
+        }
+        def thread = new ThreadInfo(Thread.currentThread().name, Thread.currentThread().id)
+        def normalizer = new groovyx.gprof.flat.FlatReportNormalizer()
+        def elements = capture == CallInterceptor.Capture.FLAT ?
+                normalizer.normalize(thread, interceptor.counters)[0].methodElements :
+                normalizer.normalize(interceptor.tree)[0].methodElements
+
+        then:
+        elements.collectEntries { [(it.method.name): [nano2Milli(it.time), nano2Milli(it.selfTime)]] } ==
+            [ "A.a": [80, 20], "A.b": [60, 20], "A.c": [40, 20], "A.d": [20, 20] ]
+
+        where:
+        capture << CallInterceptor.Capture.values()
+    }
+
+    def "builds call tree from events"() {
+        setup:
+            def interceptor = new CallInterceptor(
+                    new MethodCallFilter(), new ThreadRunFilter(), CallInterceptor.Capture.EVENTS)
+            def a = MethodRegistry.getId("A", "a")
+            def b = MethodRegistry.getId("A", "b")
+            def c = MethodRegistry.getId("A", "c")
+            interceptor.enter(a, System.nanoTime())
+            interceptor.enter(b, System.nanoTime())
+            Thread.sleep(2)
+            interceptor.exit(b)
+            interceptor.enter(c, System.nanoTime())
+            interceptor.exit(c)
+            interceptor.exit(a)
+            interceptor.enter(b, System.nanoTime())
+            def root = interceptor.tree.root
+
+        expect:
+            root.children*.data*.method == [ method("A", "a"), method("A", "b") ]
+            root.children[0].children*.data*.method == [ method("A", "b"), method("A", "c") ]
+            def aCall = root.children[0]
+            aCall.data.time >= time(2) &&
+                aCall.data.time >= aCall.data.childrenTime &&
+                aCall.data.childrenTime == aCall.children*.data*.time.sum()
+    }
+
+    def "does not keep terminated threads"() {
+        when:
+        def interceptor = new CallInterceptor(new MethodCallFilter(), new ThreadRunFilter())
+        def thread = Thread.start("thread-1") {
+            interceptor.beforeInvoke(methodCall("A", "a", 0))
+            interceptor.afterInvoke(methodCall("A", "a", 0))
+        }
+        thread.join()
+        def ref = new java.lang.ref.WeakReference(thread)
+        thread = null
+        for (int i = 0; i < 10 && ref.get() != null; i++) {
+            System.gc()
+            Thread.sleep(10)
+        }
+
+        then:
+        ref.get() == null
+        interceptor.tree.root.children*.data*.thread*.threadName.contains("thread-1")
+    }
+
+    // feeds a new interceptor from the thread of the pool and returns the weak reference to it
+    def feedFrom(ExecutorService pool, CallInterceptor.Capture capture) {
+        def interceptor = new CallInterceptor(new MethodCallFilter(), new ThreadRunFilter(), capture)
+        def a = MethodRegistry.getId("A", "a")
+        pool.submit({
+            interceptor.enter(a, System.nanoTime())
+            interceptor.exit(a)
+        } as Runnable).get()
+        new WeakReference(interceptor)
+    }
+
+    def "is not kept by the live threads which have fed it"() {
+        when:
+        def pool = Executors.newSingleThreadExecutor()
+        def ref = feedFrom(pool, capture)
+        for (int i = 0; i < 10 && ref.get() != null; i++) {
+            System.gc()
+            Thread.sleep(10)
+        }
+
+        then:
+        ref.get() == null
+
+        cleanup:
+        pool.shutdown()
+
+        where:
+        capture << CallInterceptor.Capture.values()
+    }
+
+    def "retires the local interceptors of terminated threads"() {
+        when:
+        def interceptor = new CallInterceptor(
+                new MethodCallFilter(), new ThreadRunFilter(), CallInterceptor.Capture.EVENTS)
+        def a = MethodRegistry.getId("A", "a")
+        100.times { i ->
+            Thread.start("churn-$i") {
+                interceptor.enter(a, System.nanoTime())
+                interceptor.exit(a)
+            }.join()
+        }
+        def liveInterceptors = interceptor.@interceptors.size()
+        def threadNames = interceptor.tree.root.children*.data*.thread*.threadName
+
+        then:
+        liveInterceptors < 20
+        interceptor.@interceptors.isEmpty()
+        threadNames.size() == 100
+        threadNames.containsAll((0..<100).collect { "churn-$it".toString() })
+    }
+
+    def "accounts unfinished calls up to the time of the tree"() {
+        when:
+        def interceptor = new CallInterceptor(
+                new MethodCallFilter(), new ThreadRunFilter(), CallInterceptor.Capture.EVENTS)
+        def a = MethodRegistry.getId("A", "a")
+        interceptor.enter(a, System.nanoTime())
+        def first = interceptor.tree.root.children[0].data.time
+        Thread.sleep(5)
+        def second = interceptor.tree.root.children[0].data.time
+        interceptor.exit(a)
+
+        then:
+        second - first >= time(5)
+    }
+
+    def "counts calls of each method in flat capture"() {
+        when:
+        def interceptor = new CallInterceptor(
+                new MethodCallFilter(), new ThreadRunFilter(), CallInterceptor.Capture.FLAT)
+        def a = MethodRegistry.getId("A", "a")
+        def b = MethodRegistry.getId("A", "b")
+        2.times {
+            interceptor.enter(a, System.nanoTime())
+            interceptor.enter(a, System.nanoTime())
+            interceptor.enter(b, System.nanoTime())
+            Thread.sleep(1)
+            interceptor.exit(b)
+            interceptor.exit(a)
+            interceptor.exit(a)
+        }
+        def thread = new ThreadInfo(Thread.currentThread().name, Thread.currentThread().id)
+        def elements = new groovyx.gprof.flat.FlatReportNormalizer()
+                .normalize(thread, interceptor.counters)[0].methodElements
+        def aElement = elements.find { it.method == method("A", "a") }
+        def bElement = elements.find { it.method == method("A", "b") }
+
+        then:
+        aElement.calls == 2
+        bElement.calls == 2
+        bElement.time >= time(2)
+        aElement.time == aElement.selfTime + bElement.time
+        aElement.minTime <= aElement.maxTime
+    }
+
+    def "measures allocated bytes of each call"() {
+        when:
+        def interceptor = new CallInterceptor(new MethodCallFilter(), new ThreadRunFilter(),
+                capture, EnumSet.of(Metric.ALLOCATED_BYTES))
+        def a = MethodRegistry.getId("A", "a")
+        def b = MethodRegistry.getId("A", "b")
+        def garbage = []
+        interceptor.enter(a, System.nanoTime())
+        garbage << new byte[1024 * 1024]
+        interceptor.enter(b, System.nanoTime())
+        garbage << new byte[2 * 1024 * 1024]
+        interceptor.exit(b)
+        interceptor.exit(a)
+        def thread = new ThreadInfo(Thread.currentThread().name, Thread.currentThread().id)
+        def normalizer = new groovyx.gprof.flat.FlatReportNormalizer()
+        def elements = capture == CallInterceptor.Capture.FLAT ?
+                normalizer.normalize(thread, interceptor.counters)[0].methodElements :
+                normalizer.normalize(interceptor.tree)[0].methodElements
+        def aMetrics = elements.find { it.method == method("A", "a") }.metrics
+        def bMetrics = elements.find { it.method == method("A", "b") }.metrics
+
+        then:
+        bMetrics.get(Metric.ALLOCATED_BYTES) >= 2 * 1024 * 1024
+        bMetrics.getSelf(Metric.ALLOCATED_BYTES) == bMetrics.get(Metric.ALLOCATED_BYTES)
+        aMetrics.getSelf(Metric.ALLOCATED_BYTES) >= 1024 * 1024
+        aMetrics.getSelf(Metric.ALLOCATED_BYTES) < 2 * 1024 * 1024
+        aMetrics.get(Metric.ALLOCATED_BYTES) ==
+                aMetrics.getSelf(Metric.ALLOCATED_BYTES) + bMetrics.get(Metric.ALLOCATED_BYTES)
+
+        where:
+        capture << CallInterceptor.Capture.values()
+    }
+
 }
@@ -54,6 +54,9 @@ class CallMatcherTest extends Specification {
         "*.lang.*" | "java.util.List.ctor" | false
         "*.*.*" | "java.lang.String.ctor" | true
         "*.*.*" | "Foo.ctor" | false
+        "*.ctor" | "a.cXtor" | false
+        "*a*b" | "xaxbxab" | true
+        "*a*b" | "xaxbxa" | false
     }
 
     def "pattern includes '?' wildcard(s)"() {
@@ -75,4 +78,20 @@ class CallMatcherTest extends Specification {
         "?.?" | "A.aa" | false
     }
 
+    def "pattern is compiled into the simplest matcher"() {
+        expect:
+        new CallMatcher(pattern).kind == kind
+
+        where:
+        pattern | kind
+        "java.lang.String.ctor" | CallMatcher.Kind.EXACT
+        "java.*" | CallMatcher.Kind.PREFIX
+        "java.**" | CallMatcher.Kind.PREFIX
+        "*.ctor" | CallMatcher.Kind.SUFFIX
+        "*.lang.*" | CallMatcher.Kind.CONTAINS
+        "***" | CallMatcher.Kind.ANY
+        "java.*.ctor" | CallMatcher.Kind.GENERAL
+        "?.a" | CallMatcher.Kind.GENERAL
+    }
+
 }
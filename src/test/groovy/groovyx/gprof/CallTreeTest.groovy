@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof
+
+import groovyx.gprof.flat.FlatReportNormalizer
+import spock.lang.Specification
+
+@Mixin(TestHelper)
+class CallTreeTest extends Specification {
+
+    def "visits the nodes in the depth-first order"() {
+        when:
+        def tree = tree(
+            methodCallNode("A", "a", 3,
+                methodCallNode("A", "b", 1),
+                methodCallNode("A", "c", 1)
+            ),
+            methodCallNode("A", "d", 1)
+        )
+        def events = []
+        tree.visit(new CallTree.NodeVisitor() {
+            void visit(CallTree.Node node) { events << "+" + name(node) }
+            void exit(CallTree.Node node) { events << "-" + name(node) }
+            def name(CallTree.Node node) {
+                node.data instanceof MethodCallInfo ? node.data.method.methodName : "thread"
+            }
+        })
+
+        then:
+        events == ["+thread", "+a", "+b", "-b", "+c", "-c", "-a", "+d", "-d", "-thread"]
+    }
+
+    def "visits a deep tree without overflowing the stack"() {
+        when:
+        int depth = 100000
+        def root = new CallTree.Node(methodCall("A", "a", depth))
+        def node = root
+        for (int i = depth - 1; i > 0; i--) {
+            def child = new CallTree.Node(methodCall("A", "a", i))
+            node.addChild(child)
+            node.data.childrenTime = child.data.time
+            node = child
+        }
+        def tree = tree(root)
+        int visited = 0
+        tree.visit(new CallTree.NodeVisitor() {
+            void visit(CallTree.Node n) { visited++ }
+        })
+        def elements = new FlatReportNormalizer().normalize(tree)
+
+        then:
+        visited == depth + 1
+        elements[0].methodElements.size() == 1
+        elements[0].methodElements[0].calls == 1
+        elements[0].methodElements[0].time == time(depth)
+        tree.toString().readLines().size() == depth + 1
+    }
+
+}
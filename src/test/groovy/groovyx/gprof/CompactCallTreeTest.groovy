@@ -0,0 +1,183 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof
+
+import groovyx.gprof.callgraph.CallGraphReportNormalizer
+import groovyx.gprof.flat.FlatReportNormalizer
+import spock.lang.Specification
+
+@Mixin(TestHelper)
+class CompactCallTreeTest extends Specification {
+
+    // copies the tree of the nodes into a compact tree
+    CompactCallTree compact(CallTree tree) {
+        def compactTree = new CompactCallTree(tree.root.data)
+        compactTree.setTime(0, tree.root.data.time)
+        def nodes = [0]
+        tree.visit(new CallTree.NodeVisitor() {
+            boolean root = true
+            void visit(CallTree.Node node) {
+                if (root) {
+                    root = false
+                    return
+                }
+                def call = node.data
+                def index = compactTree.addCall(nodes.last(), call.methodId)
+                compactTree.setTime(index, call.time)
+                compactTree.setChildrenTime(index, call.childrenTime)
+                nodes << index
+            }
+            void exit(CallTree.Node node) {
+                nodes.pop()
+            }
+        })
+        compactTree.setChildrenTime(0, tree.root.data.childrenTime)
+        compactTree
+    }
+
+    def sampleTree() {
+        tree(
+            methodCallNode("A", "main", 5000,
+                methodCallNode("A", "a", 3000,
+                    methodCallNode("A", "b", 1000,
+                        methodCallNode("A", "b", 500)
+                    ),
+                    methodCallNode("A", "c", 1000,
+                        methodCallNode("A", "c", 500)
+                    )
+                ),
+                methodCallNode("A", "b", 1500,
+                    methodCallNode("A", "c", 500)
+                )
+            )
+        )
+    }
+
+    def "visits the nodes in the same order as the tree of the nodes"() {
+        when:
+        def visited = { CallTree tree ->
+            def events = []
+            tree.visit(new CallTree.NodeVisitor() {
+                void visit(CallTree.Node node) { events << "+" + name(node) }
+                void exit(CallTree.Node node) { events << "-" + name(node) }
+                def name(CallTree.Node node) {
+                    node.data instanceof MethodCallInfo ? node.data.method.methodName : "thread"
+                }
+            })
+            events
+        }
+        def tree = sampleTree()
+
+        then:
+        visited(compact(tree)) == visited(tree)
+        visited(compact(tree))[0..3] == ["+thread", "+main", "+a", "+b"]
+    }
+
+    def "makes the same reports as the tree of the nodes"() {
+        when:
+        def tree = sampleTree()
+        def compactTree = compact(tree)
+
+        then:
+        new CallGraphReportNormalizer().normalize(tree) == new CallGraphReportNormalizer().normalize(compactTree)
+        new FlatReportNormalizer().normalize(compactTree)*.methodElements ==
+                new FlatReportNormalizer().normalize(tree)*.methodElements
+    }
+
+    def "presents the nodes which cannot be modified"() {
+        when:
+        def compactTree = compact(sampleTree())
+        def a = compactTree.root.children[0].children[0]
+        a.addChild(new CallTree.Node(methodCall("A", "d", 1)))
+
+        then:
+        a.data.method == method("A", "a")
+        a.data.time == time(3000)
+        a.data.childrenTime == time(2000)
+        a.parent.data.method == method("A", "main")
+        a.children*.data*.method == [method("A", "b"), method("A", "c")]
+        thrown(UnsupportedOperationException)
+    }
+
+    def "writes the data of the visited nodes and their parents back to the tree"() {
+        when:
+        def compactTree = compact(sampleTree())
+        // sums up the number of the nodes under each node as its overhead time
+        compactTree.visit(new CallTree.NodeVisitor() {
+            void visit(CallTree.Node node) {
+                node.data.overheadTime = 1
+            }
+            void exit(CallTree.Node node) {
+                if (node.hasParent()) {
+                    node.parent.data.overheadTime += node.data.overheadTime
+                }
+            }
+        })
+        def a = compactTree.root.children[0].children[0]
+
+        then:
+        compactTree.getOverheadTime(0) == compactTree.size()
+        a.data.overheadTime == 5
+        a.data.time == time(3000)
+    }
+
+    def "visits and prints a deep tree without overflowing the stack"() {
+        when:
+        int depth = 100000
+        def compactTree = new CompactCallTree(threadRun())
+        int node = 0
+        for (int i = 0; i < depth; i++) {
+            node = compactTree.addCall(node, MethodRegistry.getId("A", "a"))
+        }
+        int visited = 0
+        compactTree.visit(new CallTree.NodeVisitor() {
+            void visit(CallTree.Node n) { visited++ }
+        })
+
+        then:
+        visited == depth + 1
+        compactTree.toString().readLines().size() == depth + 1
+    }
+
+    def "adds the nodes only in the depth-first order"() {
+        when:
+        def compactTree = new CompactCallTree(threadRun())
+        def a = compactTree.addCall(0, MethodRegistry.getId("A", "a"))
+        compactTree.addCall(a, MethodRegistry.getId("A", "b"))
+        compactTree.addCall(0, MethodRegistry.getId("A", "c"))
+        compactTree.addCall(a, MethodRegistry.getId("A", "d"))
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "merges the trees of the threads"() {
+        when:
+        def main = new CompactCallTree(threadRun("main", 1))
+        main.setTime(main.addCall(0, MethodRegistry.getId("A", "a")), time(1))
+        def other = new CompactCallTree(threadRun("other", 2))
+        other.setTime(other.addCall(0, MethodRegistry.getId("A", "b")), time(2))
+        def tree = CompactCallTree.merge(threadRun("main", 1), [main, other])
+
+        then:
+        tree.size() == 4
+        tree.root.children*.data*.class == [MethodCallInfo, ThreadRunInfo]
+        tree.root.children[0].data.time == time(1)
+        tree.root.children[1].data.thread == thread("other", 2)
+        tree.root.children[1].children[0].data.time == time(2)
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof
+
+import spock.lang.Specification
+
+class EventBufferTest extends Specification {
+
+    def read(EventBuffer buffer) {
+        def events = []
+        def reader = buffer.reader()
+        while (reader.next()) {
+            events << [ reader.exit, reader.methodId, reader.time ]
+        }
+        events
+    }
+
+    def "reads the events in the order they were added"() {
+        when:
+        def buffer = new EventBuffer()
+        buffer.add(EventBuffer.ENTER, 1, 100)
+        buffer.add(EventBuffer.ENTER, EventBuffer.MAX_METHOD_ID, 200)
+        buffer.add(EventBuffer.EXIT, EventBuffer.MAX_METHOD_ID, 300)
+        buffer.add(EventBuffer.EXIT, 1, 400)
+
+        then:
+        read(buffer) == [
+            [ false, 1, 100 ],
+            [ false, EventBuffer.MAX_METHOD_ID, 200 ],
+            [ true, EventBuffer.MAX_METHOD_ID, 300 ],
+            [ true, 1, 400 ] ]
+    }
+
+    def "drops the events of the methods whose ids are too large"() {
+        when:
+        def buffer = new EventBuffer()
+        buffer.add(EventBuffer.ENTER, 1, 100)
+        buffer.add(EventBuffer.ENTER, EventBuffer.MAX_METHOD_ID + 1, 200)
+        buffer.add(EventBuffer.EXIT, EventBuffer.MAX_METHOD_ID + 1, 300)
+        buffer.add(EventBuffer.EXIT, 1, 400)
+
+        then:
+        read(buffer) == [
+            [ false, 1, 100 ],
+            [ true, 1, 400 ] ]
+        buffer.droppedEvents == 2
+    }
+
+    def "starts a new chunk when a chunk gets full or the time is out of the range of a chunk"() {
+        when:
+        def buffer = new EventBuffer()
+        def expected = []
+        def time = 1000L
+        (EventBuffer.CHUNK_SIZE * 2).times {
+            buffer.add(EventBuffer.ENTER, 1, time)
+            expected << [ false, 1, time ]
+            time += it % 1000 == 0 ? EventBuffer.MAX_DELTA : 1
+        }
+
+        then:
+        read(buffer) == expected
+    }
+
+    def "reads the values which follow the events"() {
+        when:
+        def buffer = new EventBuffer(2)
+        def expected = []
+        (EventBuffer.CHUNK_SIZE).times {
+            buffer.add(EventBuffer.ENTER, 1, it, [ it, -it ] as long[])
+            expected << [ false, 1, it, it, -it ]
+        }
+        def events = []
+        def reader = buffer.reader()
+        while (reader.next()) {
+            events << [ reader.exit, reader.methodId, reader.time, reader.getValue(0), reader.getValue(1) ]
+        }
+
+        then:
+        events == expected
+    }
+
+    def "reads no event from an empty buffer"() {
+        expect:
+        read(new EventBuffer()) == []
+    }
+
+    def "reads the published events while the events are being added"() {
+        when:
+        def buffer = new EventBuffer()
+        def count = EventBuffer.CHUNK_SIZE * 8
+        def writer = Thread.start {
+            for (long i = 1; i <= count; i++) {
+                buffer.add(EventBuffer.ENTER, 1, i)
+            }
+        }
+        def prefixes = []
+        while (writer.alive) {
+            def times = []
+            def reader = buffer.reader()
+            while (reader.next()) {
+                times << reader.time
+            }
+            prefixes << times
+        }
+        writer.join()
+
+        then:
+        prefixes.every { times -> times == (times ? (1L..times.size()) : []) }
+        read(buffer).size() == count
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof
+
+import spock.lang.Specification
+
+class LongMapTest extends Specification {
+
+    def "keeps the values sorted by the keys"() {
+        when:
+        def map = new LongMap<String>(2)
+        [5L, 1L, 3L, -1L, 4L].each { map.put(it, "v$it".toString()) }
+
+        then:
+        map.keySet() as List == [-1L, 1L, 3L, 4L, 5L]
+        map.values() as List == ["v-1", "v1", "v3", "v4", "v5"]
+        map.get(3L) == "v3"
+        map.get(2L) == null
+        map.containsKey(-1L)
+        !map.containsKey(6L)
+    }
+
+    def "replaces and removes the values"() {
+        when:
+        def map = new LongMap<String>()
+        (0L..9L).each { map.put(it, "v$it".toString()) }
+        def old = map.put(3L, "x")
+        def removed = map.remove(0L)
+        map.remove(5L)
+
+        then:
+        old == "v3"
+        removed == "v0"
+        map.size() == 8
+        map.keySet() as List == [1L, 2L, 3L, 4L, 6L, 7L, 8L, 9L]
+        map.get(3L) == "x"
+        map.get(6L) == "v6"
+    }
+
+    def "remaps the keys and sorts the values by them"() {
+        when:
+        def map = new LongMap<String>()
+        (1L..4L).each { map.put(it, "v$it".toString()) }
+        map.remapKeys([0L, 3L, 1L, 4L, 2L] as long[])
+
+        then:
+        map.keySet() as List == [1L, 2L, 3L, 4L]
+        map.values() as List == ["v2", "v4", "v1", "v3"]
+        map.get(4L) == "v3"
+    }
+
+    def "equals the other maps of the same entries"() {
+        when:
+        def map = new LongMap<String>()
+        map.put(2L, "b")
+        map.put(1L, "a")
+
+        then:
+        map == [1L: "a", 2L: "b"]
+        map == new TreeMap([2L: "b", 1L: "a"])
+        map.hashCode() == [1L: "a", 2L: "b"].hashCode()
+        map != [1L: "a"]
+    }
+
+    def "clears the values through the view"() {
+        when:
+        def map = new LongMap<String>()
+        map.put(1L, "a")
+        map.put(2L, "b")
+        def iterator = map.values().iterator()
+        iterator.next()
+        iterator.remove()
+        def afterRemove = map.keySet() as List
+        map.values().clear()
+
+        then:
+        afterRemove == [2L]
+        map.isEmpty()
+    }
+
+}
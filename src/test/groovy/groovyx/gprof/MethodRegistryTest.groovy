@@ -0,0 +1,49 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof
+
+import spock.lang.Specification
+
+class MethodRegistryTest extends Specification {
+
+    def "hands out the same id for the same method"() {
+        expect:
+        MethodRegistry.getId("A", "a") == MethodRegistry.getId("A", "a")
+        MethodRegistry.getId("A", "a") != MethodRegistry.getId("A", "b")
+        MethodRegistry.getId("A", "a") != MethodRegistry.getId("B", "a")
+    }
+
+    def "returns the method of the id"() {
+        when:
+        def id = MethodRegistry.getId("A", "a")
+        def method = MethodRegistry.getMethod(id)
+
+        then:
+        method == new MethodInfo("A", "a")
+        method.id == id
+        new MethodInfo("A", "a").id == id
+    }
+
+    def "hands out dense ids"() {
+        when:
+        def ids = (1..1000).collect { MethodRegistry.getId("Dense", "m$it") }
+
+        then:
+        ids.every { it > 0 && it <= MethodRegistry.size() }
+        ids.toSet().size() == 1000
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof
+
+import groovy.transform.CompileStatic
+import groovyx.gprof.flat.FlatReportNormalizer
+import spock.lang.Specification
+
+class ProfiledTest extends Specification {
+
+    def methodNames(Report report) {
+        new FlatReportNormalizer().normalize(report.callTree)
+            .find { true }
+            .methodElements*.method*.name as Set
+    }
+
+    def "profiles the annotated methods in the annotation mode"() {
+        when:
+        def result
+        def report = profile(mode: "annotation") {
+            result = new ProfiledService(2).handle(3) + new StaticService().square(4)
+        }
+
+        then:
+        result == 28
+        methodNames(report) == [
+            ProfiledService.name + ".ctor",
+            ProfiledService.name + ".handle",
+            ProfiledService.name + ".twice",
+            StaticService.name + ".square" ] as Set
+    }
+
+    def "exits the methods which throw"() {
+        when:
+        def report = profile(mode: "annotation") {
+            def service = new StaticService()
+            try {
+                service.fail()
+            } catch (IllegalStateException e) {
+            }
+            service.square(2)
+        }
+        def roots = report.callTree.root.children*.data*.method*.methodName
+
+        then:
+        roots == ["fail", "square"]
+    }
+
+    def "does not report the hooks of the annotated methods in the interception mode"() {
+        when:
+        def report = profile {
+            new ProfiledService(2).handle(3)
+        }
+
+        def names = methodNames(report)
+
+        then:
+        names.containsAll([ ProfiledService.name + ".handle", ProfiledService.name + ".twice" ])
+        !names.find { it.startsWith(ProfileHooks.name + ".") || it.startsWith(MethodRegistry.name + ".") }
+    }
+
+    def "does not profile the annotated methods without an active profiler"() {
+        when:
+        def result = new ProfiledService(1).handle(1)
+
+        then:
+        result == 2
+        !ProfileHooks.active
+    }
+
+}
+
+@Profiled
+class ProfiledService {
+
+    int factor
+
+    ProfiledService(int factor) {
+        this.factor = factor
+    }
+
+    def handle(n) {
+        twice(n * factor)
+    }
+
+    def twice(n) {
+        n * 2
+    }
+
+}
+
+@CompileStatic
+class StaticService {
+
+    @Profiled
+    int square(int n) {
+        n * n
+    }
+
+    @Profiled
+    void fail() {
+        throw new IllegalStateException()
+    }
+
+    int notProfiled() {
+        0
+    }
+
+}
@@ -22,6 +22,12 @@ class ProfilerTest extends Specification {
         GroovySystem.metaClassRegistry.removeMetaClass(klass)    
     }
     
+    // the dynamic calls on an expando meta class are dispatched to the expando methods
+    @groovy.transform.CompileStatic
+    static MetaClass adaptee(MetaClass proxy) {
+        ((ProfileMetaClass) proxy).adaptee
+    }
+
     def clearMetaClass(Object obj) {
         GroovySystem.metaClassRegistry.setMetaClass(obj, null)
     }
@@ -39,6 +45,361 @@ class ProfilerTest extends Specification {
             .find { e -> e.method.className == Thread.class.name && e.method.methodName == "sleep" }
     }
     
+    def "run with closure aggregating calls"() {
+        when:
+        def report = profile(capture: "aggregate") {
+            3.times { Thread.sleep(1) }
+        }
+
+        then:
+        flatten(report.callTree)
+            .find { true }
+            .methodElements
+            .find { e -> e.method.className == Thread.class.name && e.method.methodName == "sleep" }
+            .calls == 3
+    }
+
+    def "run with closure building call tree while profiling"() {
+        when:
+        def report = profile(capture: "tree") {
+            3.times { Thread.sleep(1) }
+        }
+
+        then:
+        flatten(report.callTree)
+            .find { true }
+            .methodElements
+            .find { e -> e.method.className == Thread.class.name && e.method.methodName == "sleep" }
+            .calls == 3
+    }
+
+    def "run with closure sampling calls"() {
+        when:
+        def report = profile(mode: "sampling", samplingInterval: 1) {
+            Thread.sleep(50)
+        }
+
+        then:
+        def elems = flatten(report.callTree)
+            .find { true }
+            .methodElements
+        def sleep = elems.find { e -> e.method.className == Thread.class.name && e.method.methodName == "sleep" }
+        sleep.calls >= 1 && sleep.time > 0
+        !elems.find { e -> e.method.className.startsWith("org.codehaus.groovy.runtime.callsite.") }
+    }
+
+    def "run with closure counting calls"() {
+        when:
+        def report = profile(capture: "flat") {
+            3.times { Thread.sleep(1) }
+        }
+        def writer = new StringWriter()
+        report.prettyPrint(new PrintWriter(writer))
+
+        then:
+        report instanceof groovyx.gprof.flat.FlatReport
+        writer.toString().readLines()*.trim().find { it.endsWith("java.lang.Thread.sleep") }.split(/\s+/)[3] == "3"
+    }
+
+    def "run with closure measuring allocated bytes"() {
+        when:
+        def report = profile(allocation: true) {
+            3.times { new ArrayList(1024 * 1024) }
+        }
+        def writer = new StringWriter()
+        report.prettyPrint(new PrintWriter(writer))
+
+        then:
+        def ctor = flatten(report.callTree)
+            .find { true }
+            .methodElements
+            .find { e -> e.method.className == ArrayList.class.name && e.method.methodName == "ctor" }
+        ctor.metrics.get(Metric.ALLOCATED_BYTES) >= 3 * 1024 * 1024 * 4
+        writer.toString().contains("bytes")
+    }
+
+    def "does not count the allocation of the profiler in the allocated bytes"() {
+        when:
+        def report = profile(allocation: true, capture: capture) {
+            new AllocationFreeCaller().call(new AllocationFreeCallee(), 10000)
+        }
+        def elements = capture == "flat" ?
+            new FlatReportNormalizer().normalize(report.@mainThread, report.@counters) : flatten(report.callTree)
+        def element = { methodName ->
+            elements.find { true }.methodElements.find { e -> e.method.methodName == methodName }
+        }
+
+        then:
+        element("callee").calls == 10000
+        // the groovy runtime allocates a few bytes now and then, while the profiler allocated hundreds per call
+        element("call").metrics.getSelf(Metric.ALLOCATED_BYTES) < 10000
+        element("callee").metrics.get(Metric.ALLOCATED_BYTES) < 2 * 10000
+
+        where:
+        capture << ["tree", "aggregate", "events", "flat"]
+    }
+
+    def "run with closure measuring cpu time"() {
+        when:
+        def report = profile(cpu: true) {
+            Thread.sleep(50)
+            def x = 0
+            for (long t = System.nanoTime(); System.nanoTime() - t < 20000000L; ) { x++ }
+        }
+        def writer = new StringWriter()
+        report.prettyPrint(new PrintWriter(writer))
+
+        then:
+        def elems = flatten(report.callTree).find { true }.methodElements
+        def sleep = elems.find { e -> e.method.className == Thread.class.name && e.method.methodName == "sleep" }
+        sleep.time >= time(50)
+        sleep.metrics.get(Metric.CPU_TIME) < time(25)
+        def closure = elems.max { it.time }
+        closure.metrics.getSelf(Metric.CPU_TIME) > sleep.metrics.get(Metric.CPU_TIME)
+        writer.toString().contains("cpu sec")
+        writer.toString().contains("self cpu")
+    }
+
+    def "run with closure measuring contention"() {
+        when:
+        def lock = new Object()
+        def report = profile(contention: true) {
+            def locked = new java.util.concurrent.CountDownLatch(1)
+            def thread = Thread.start {
+                synchronized (lock) {
+                    locked.countDown()
+                    Thread.sleep(100)
+                }
+            }
+            locked.await()
+            synchronized (lock) {
+            }
+            thread.join()
+        }
+        def writer = new StringWriter()
+        report.prettyPrint(new PrintWriter(writer))
+
+        then:
+        def elems = flatten(report.callTree).find { true }.methodElements
+        def blocked = elems.max { it.metrics.getSelf(Metric.BLOCKED_TIME) }
+        blocked.method.methodName == "doCall"
+        blocked.metrics.getSelf(Metric.BLOCKED_TIME) >= time(50)
+        blocked.metrics.has(Metric.WAITED_TIME)
+        writer.toString().contains("blocked")
+        !java.lang.management.ManagementFactory.threadMXBean.threadContentionMonitoringEnabled
+    }
+
+    def "does not keep the metrics acquired when it fails to start"() {
+        when:
+        new Profiler().start(contention: true, mode: "agent")
+
+        then:
+        thrown(IllegalArgumentException)
+        !java.lang.management.ManagementFactory.threadMXBean.threadContentionMonitoringEnabled
+    }
+
+    def "does not print allocated bytes unless measured"() {
+        when:
+        def report = profile {
+            new ArrayList(1024)
+        }
+        def writer = new StringWriter()
+        report.prettyPrint(new PrintWriter(writer))
+
+        then:
+        !writer.toString().contains("bytes")
+    }
+
+    def "profiles the access to the properties"() {
+        when:
+        def report = profile(properties: true) {
+            def bean = new DynamicBean()
+            bean.name = "a"
+            bean.name
+        }
+
+        then:
+        def names = flatten(report.callTree).find { true }.methodElements*.method*.name
+        names.contains(DynamicBean.name + ".@name")
+        names.contains(DynamicBean.name + ".@name=")
+    }
+
+    def "profiles the dispatch to methodMissing and propertyMissing"() {
+        when:
+        def report = profile(missing: true, excludeMethods: [DynamicBean.name + ".propertyMissing(*)"]) {
+            def bean = new DynamicBean()
+            bean.hello(1)
+            bean.foo
+            bean.greet()
+        }
+
+        then:
+        def names = flatten(report.callTree).find { true }.methodElements*.method*.name
+        names.contains(DynamicBean.name + ".methodMissing(hello)")
+        names.contains(DynamicBean.name + ".greet")
+        !names.contains(DynamicBean.name + ".hello")
+        !names.contains(DynamicBean.name + ".propertyMissing(foo)")
+        !names.any { it.contains("@") }
+    }
+
+    def "proxies the cached meta classes when they are looked up first"() {
+        when:
+        def original = GroovySystem.metaClassRegistry.getMetaClass(Locale)
+        def profiler = new Profiler()
+        profiler.start()
+        def cached = ClassInfo.getClassInfo(Locale).weakMetaClass
+        def proxy = GroovySystem.metaClassRegistry.getMetaClass(Locale)
+        profiler.stop()
+
+        then:
+        cached == null
+        proxy instanceof ProfileMetaClass
+        adaptee(proxy).is(original)
+        GroovySystem.metaClassRegistry.getMetaClass(Locale).is(original)
+    }
+
+    def "profiles the calls of the call sites which have been cached before profiling"() {
+        when:
+        def call = { "a".toUpperCase() + Locale.getDefault() + new StringBuilder() }
+        call()
+        def report = profile { call() }
+
+        then:
+        def names = flatten(report.callTree).find { true }.methodElements*.method*.name
+        names.containsAll([ "java.lang.String.toUpperCase", "java.util.Locale.getDefault", "java.lang.StringBuilder.ctor" ])
+    }
+
+    def "remains a meta class creation handle which delegates to the interception layer"() {
+        when:
+        def profiler = new Profiler()
+        def unprofiled = profiler.createNormalMetaClass(Locale, GroovySystem.metaClassRegistry)
+        profiler.start()
+        def profiled = profiler.createNormalMetaClass(Locale, GroovySystem.metaClassRegistry)
+        profiler.stop()
+
+        then:
+        profiler instanceof MetaClassRegistry.MetaClassCreationHandle
+        !(unprofiled instanceof ProfileMetaClass)
+        profiled instanceof ProfileMetaClass
+    }
+
+    def "restores the meta classes of the referenced instances"() {
+        when:
+        def bean = new DynamicBean()
+        def original = bean.@metaClass
+        def proxy
+        profile {
+            proxy = bean.@metaClass
+            bean.greet()
+        }
+
+        then:
+        proxy instanceof ProfileMetaClass
+        bean.@metaClass.is(original)
+    }
+
+    def "proxies only the included classes"() {
+        when:
+        def integerMetaClass
+        def report = profile(includeClasses: ["groovyx.gprof.*"], excludeClasses: ["*Test*"]) {
+            integerMetaClass = GroovySystem.metaClassRegistry.getMetaClass(Integer)
+            new DynamicBean().greet()
+            Thread.sleep(1 + 1)
+        }
+
+        then:
+        !(integerMetaClass instanceof ProfileMetaClass)
+        flatten(report.callTree).find { true }.methodElements*.method*.name as Set == [
+            DynamicBean.name + ".ctor", DynamicBean.name + ".greet" ] as Set
+    }
+
+    def "leaves the meta classes of the excluded classes as they are"() {
+        when:
+        def cached = GroovySystem.metaClassRegistry.getMetaClass(Locale)
+        def created, lookedUp, again
+        profile(includeClasses: [DynamicBean.name]) {
+            lookedUp = GroovySystem.metaClassRegistry.getMetaClass(Locale)
+            created = GroovySystem.metaClassRegistry.getMetaClass(Currency)
+            again = GroovySystem.metaClassRegistry.getMetaClass(Currency)
+        }
+
+        then:
+        lookedUp.is(cached)
+        !(created instanceof AdaptingExpandoMetaClass)
+        again.is(created)
+    }
+
+    def "counts the time of the excluded calls in the self time of their callers"() {
+        when:
+        def report = profile(excludeMethods: [SleepingCallee.name + ".*", "java.lang.Thread.*"]) {
+            new SleepingCaller().call(new SleepingCallee())
+        }
+        def elements = flatten(report.callTree).find { true }.methodElements
+        def caller = elements.find { e -> e.method.methodName == "call" }
+
+        then:
+        elements.every { e -> e.method.className != SleepingCallee.name }
+        nano2Milli(caller.selfTime) >= 50
+        caller.selfTime == caller.time
+    }
+
+    def "compiles the filters when it starts"() {
+        when:
+        def profiler = new Profiler()
+        profiler.start(includeMethods: [DynamicBean.name + ".*"], excludeThreads: ["worker-*"])
+        profiler.stop()
+        def interceptor = profiler.@interceptor
+        def automaton = CallFilter.getDeclaredField("automaton")
+        automaton.accessible = true
+
+        then:
+        [interceptor.@methodFilter, interceptor.@threadFilter, interceptor.@classFilter].every {
+            automaton.get(it) != null
+        }
+    }
+
+    def "runs the profilers at the same time with their own filters"() {
+        when:
+        def greeting = new Profiler()
+        def bean = new Profiler()
+        greeting.start(includeMethods: [DynamicBean.name + ".greet"])
+        bean.start(includeClasses: [DynamicBean.name])
+        new DynamicBean().greet()
+        greeting.stop()
+        def stillProxied = GroovySystem.metaClassRegistry.getMetaClass(DynamicBean) instanceof ProfileMetaClass
+        new DynamicBean().greet()
+        bean.stop()
+
+        then:
+        stillProxied
+        !(GroovySystem.metaClassRegistry.getMetaClass(DynamicBean) instanceof ProfileMetaClass)
+        def greetingElems = flatten(greeting.report.callTree).find { true }.methodElements
+        greetingElems*.method*.name == [DynamicBean.name + ".greet"]
+        greetingElems[0].calls == 1
+        def beanElems = flatten(bean.report.callTree).find { true }.methodElements
+        beanElems*.method*.name as Set == [DynamicBean.name + ".ctor", DynamicBean.name + ".greet"] as Set
+        beanElems.every { it.calls == 2 }
+    }
+
+    def "profiles only the runs whose condition is satisfied"() {
+        when:
+        def p = new Profiler()
+        p.start(conditional: true, includeClasses: [DynamicBean.name])
+        def bean = new DynamicBean()
+        bean.greet()
+        p.profileIf(false) { bean.greet() }
+        def result = p.profileIf({ true }) { bean.greet() }
+        def thread = Thread.start { p.profileIf(true) { bean.greet(); bean.greet() } }
+        thread.join()
+        p.stop()
+
+        then:
+        result == "hi"
+        def elems = flatten(p.report.callTree).find { true }.methodElements
+        elems*.method*.name == [DynamicBean.name + ".greet"]
+        elems[0].calls == 3
+    }
+
     def "start and stop"() {
         when:
         def p = new Profiler()
@@ -54,6 +415,71 @@ class ProfilerTest extends Specification {
             elems.find { e -> e.method.className == Thread.class.name && e.method.methodName == "sleep" }
     }
 
+    def "makes reports of windows without stopping"() {
+        when:
+        def p = new Profiler()
+        p.start(continuous: true, window: 0.05, windows: 3)
+        def deadline = System.currentTimeMillis() + 1000
+        while (p.windowReports.size() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5)
+        }
+        p.stop()
+        def reports = p.windowReports
+
+        then:
+        reports.size() == 3
+        reports.any { report ->
+            flatten(report.callTree)
+                .find { true }
+                ?.methodElements
+                ?.find { e -> e.method.className == Thread.class.name && e.method.methodName == "sleep" }
+        }
+    }
+
+    def "does not make reports of windows by sampling"() {
+        when:
+        new Profiler().start(continuous: true, mode: "sampling")
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "takes snapshots while profiling"() {
+        when:
+        def p = new Profiler()
+        p.start(capture: "events")
+        Thread.sleep(1)
+        def first = p.snapshot()
+        Thread.sleep(1)
+        def second = p.snapshot()
+        p.stop()
+        def sleepCalls = { report ->
+            flatten(report.callTree)
+                .find { true }
+                .methodElements
+                .find { e -> e.method.className == Thread.class.name && e.method.methodName == "sleep" }
+                .calls
+        }
+
+        then:
+        sleepCalls(first) == 1
+        sleepCalls(second) == 2
+    }
+
+    def "does not take snapshots without the events capture"() {
+        when:
+        def p = new Profiler()
+        p.start()
+        try {
+            p.snapshot()
+        } finally {
+            p.stop()
+        }
+
+        then:
+        thrown(IllegalStateException)
+    }
+
     def "reuse data when restarted"() {
         when:
         def p = new Profiler()
@@ -325,3 +751,34 @@ class ProfilerTest extends Specification {
     }
     
 }
+
+class DynamicBean {
+    String name
+    def greet() { "hi" }
+    def methodMissing(String name, args) { name }
+    def propertyMissing(String name) { name }
+}
+
+class AllocationFreeCaller {
+    void call(AllocationFreeCallee callee, int times) {
+        for (int i = 0; i < times; i++) {
+            callee.callee()
+        }
+    }
+}
+
+class AllocationFreeCallee {
+    void callee() { }
+}
+
+class SleepingCaller {
+    void call(SleepingCallee callee) {
+        callee.sleep()
+    }
+}
+
+class SleepingCallee {
+    void sleep() {
+        Thread.sleep(50)
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof
+
+import spock.lang.Specification
+
+@Mixin(TestHelper)
+class SamplerTest extends Specification {
+
+    def frame(className, methodName) {
+        new StackTraceElement(className, methodName, null, -1)
+    }
+
+    def stack(List frames) {
+        // the innermost frame comes first
+        frames.reverse().collect { frame(it[0], it[1]) } as StackTraceElement[]
+    }
+
+    def "folds the runtime frames and the frames outside of the profiler"() {
+        when:
+        def interceptor = new CallInterceptor(new MethodCallFilter(), new ThreadRunFilter())
+        def sampler = new Sampler(interceptor, 10)
+        def path = sampler.fold(stack([
+            [ "Main", "main" ],
+            [ "groovyx.gprof.Profiler", "run" ],
+            [ "groovy.lang.Closure", "call" ],
+            [ "Main\$_main_closure1", "doCall" ],
+            [ "Main\$_main_closure1", "doCall" ],
+            [ "org.codehaus.groovy.runtime.callsite.CallSiteArray", "defaultCall" ],
+            [ "org.codehaus.groovy.runtime.DefaultGroovyMethods", "times" ],
+            [ "sun.reflect.NativeMethodAccessorImpl", "invoke" ],
+            [ "Foo", "<init>" ],
+            [ "Foo", "\$getCallSiteArray" ] ]))
+
+        then:
+        path.collect { MethodRegistry.getMethod(it) } == [
+            method("Main\$_main_closure1", "doCall"),
+            method("org.codehaus.groovy.runtime.DefaultGroovyMethods", "times"),
+            method("Foo", "ctor") ]
+    }
+
+    def "registers only the methods of the frames which are profiled"() {
+        when:
+        def methodFilter = new MethodCallFilter()
+        methodFilter.addExclude("java.*")
+        def interceptor = new CallInterceptor(methodFilter, new ThreadRunFilter())
+        def sampler = new Sampler(interceptor, 10)
+        def size = MethodRegistry.size()
+        def path = sampler.fold(stack([
+            [ "SamplerTestMain", "main" ],
+            [ "java.util.SamplerTestList", "forEach" ],
+            [ "SamplerTestMain", "work" ] ]))
+
+        then:
+        path.collect { MethodRegistry.getMethod(it) } == [
+            method("SamplerTestMain", "main"),
+            method("SamplerTestMain", "work") ]
+        MethodRegistry.size() == size + 2
+    }
+
+    def "counts the calls from the changes of the stacks"() {
+        when:
+        def interceptor = new CallInterceptor(new MethodCallFilter(), new ThreadRunFilter())
+        def threadSampler = new Sampler.ThreadSampler(Thread.currentThread())
+        interceptor.addLocalInterceptor(threadSampler.interceptor)
+        def a = MethodRegistry.getId("A", "a")
+        def b = MethodRegistry.getId("A", "b")
+        def c = MethodRegistry.getId("A", "c")
+        threadSampler.sample([ a, b ] as int[], time(0))
+        threadSampler.sample([ a, b ] as int[], time(10))
+        threadSampler.sample([ a, c ] as int[], time(20))
+        threadSampler.sample([ a, b ] as int[], time(30))
+        threadSampler.exitTo(0, time(40))
+        def aNode = interceptor.tree.root.children[0]
+
+        then:
+        aNode.data.calls == 1
+        nano2Milli(aNode.data.time) == 40
+        aNode.children.collectEntries { [ it.data.method.methodName, [ it.data.calls, nano2Milli(it.data.time) ] ] } ==
+            [ b: [ 2, 30 ], c: [ 1, 10 ] ]
+    }
+
+}
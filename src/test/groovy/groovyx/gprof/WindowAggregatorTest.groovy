@@ -0,0 +1,127 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof
+
+import spock.lang.Specification
+
+@Mixin(TestHelper)
+class WindowAggregatorTest extends Specification {
+
+    def "carries the calls which have not finished over the windows"() {
+        when:
+        def interceptor = new CallInterceptor(
+                new MethodCallFilter(), new ThreadRunFilter(), CallInterceptor.Capture.EVENTS)
+        def aggregator = new WindowAggregator(interceptor, new ThreadRunInfo(Thread.currentThread()), 1000, 2)
+        def a = MethodRegistry.getId("A", "a")
+        def b = MethodRegistry.getId("A", "b")
+        def c = MethodRegistry.getId("A", "c")
+        interceptor.enter(a, System.nanoTime())
+        interceptor.enter(b, System.nanoTime())
+        interceptor.exit(b)
+        aggregator.aggregate()
+        // the events of the first window are handed over at the first event in the second window
+        interceptor.enter(c, System.nanoTime())
+        interceptor.exit(c)
+        aggregator.aggregate()
+        interceptor.exit(a)
+        aggregator.aggregate()
+        def reports = aggregator.reports
+        def methods = { node -> node.children*.data*.method }
+
+        then:
+        reports.size() == 2
+        methods(reports[0].callTree.root) == [ method("A", "a") ]
+        methods(reports[0].callTree.root.children[0]) == [ method("A", "b") ]
+        methods(reports[1].callTree.root) == [ method("A", "a") ]
+        methods(reports[1].callTree.root.children[0]) == [ method("A", "c") ]
+        reports.every { report ->
+            def aCall = report.callTree.root.children[0].data
+            aCall.calls == 1 && aCall.time >= aCall.childrenTime
+        }
+    }
+
+    def "splits the calls at the window boundaries"() {
+        when:
+        def interceptor = new CallInterceptor(
+                new MethodCallFilter(), new ThreadRunFilter(), CallInterceptor.Capture.EVENTS)
+        def aggregator = new WindowAggregator(interceptor, new ThreadRunInfo(Thread.currentThread()), 1000, 3)
+        def a = MethodRegistry.getId("A", "a")
+        def b = MethodRegistry.getId("A", "b")
+        interceptor.enter(a, System.nanoTime())
+        Thread.sleep(20)
+        aggregator.aggregate()
+        Thread.sleep(20)
+        // hands over the call of a which is split at the first boundary
+        interceptor.enter(b, System.nanoTime())
+        interceptor.exit(b)
+        aggregator.aggregate()
+        Thread.sleep(20)
+        // hands over the call of b, and the call of a is split at the second boundary
+        interceptor.exit(a)
+        aggregator.aggregate()
+        def reports = aggregator.reports
+        def aTime = { report -> report.callTree.root.children[0].data.time }
+
+        then:
+        reports.size() == 3
+        reports[0].callTree.root.children.isEmpty()
+        // from the enter to the first boundary, not to the last event of the window
+        aTime(reports[1]) >= time(20)
+        aTime(reports[1]) < time(40)
+        // from the first boundary to the second one
+        aTime(reports[2]) >= time(20)
+        aTime(reports[2]) < time(40)
+    }
+
+    def "reports the last window when stopped"() {
+        when:
+        def interceptor = new CallInterceptor(
+                new MethodCallFilter(), new ThreadRunFilter(), CallInterceptor.Capture.EVENTS)
+        def aggregator = new WindowAggregator(interceptor, new ThreadRunInfo(Thread.currentThread()), 60000, 2)
+        def a = MethodRegistry.getId("A", "a")
+        aggregator.start()
+        interceptor.enter(a, System.nanoTime())
+        interceptor.exit(a)
+        aggregator.stop()
+        def reports = aggregator.reports
+
+        then:
+        reports.size() == 1
+        reports[0].callTree.root.children*.data*.method == [ method("A", "a") ]
+    }
+
+    def "does not keep the threads which have no calls to carry over"() {
+        when:
+        def interceptor = new CallInterceptor(
+                new MethodCallFilter(), new ThreadRunFilter(), CallInterceptor.Capture.EVENTS)
+        def aggregator = new WindowAggregator(interceptor, new ThreadRunInfo(Thread.currentThread()), 1000, 2)
+        def a = MethodRegistry.getId("A", "a")
+        10.times { i ->
+            Thread.start("worker-$i") {
+                interceptor.enter(a, System.nanoTime())
+                interceptor.exit(a)
+            }.join()
+        }
+        aggregator.aggregate()
+        def threads = aggregator.reports[0].callTree.root.children*.data*.thread*.threadName
+
+        then:
+        threads.size() == 10
+        aggregator.@openCalls.isEmpty()
+        interceptor.@interceptors.isEmpty()
+    }
+
+}
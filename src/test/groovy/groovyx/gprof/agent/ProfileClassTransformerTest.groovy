@@ -0,0 +1,199 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof.agent
+
+import groovyx.gprof.*
+import org.codehaus.groovy.control.CompilationUnit
+import org.codehaus.groovy.control.CompilerConfiguration
+import org.codehaus.groovy.control.Phases
+import spock.lang.Specification
+
+class ProfileClassTransformerTest extends Specification {
+
+    static final String TARGET = "sample.Target"
+
+    // the profiler does not instrument its own package, so the target is compiled into another one
+    static final byte[] TARGET_BYTES = compile("""
+        package sample
+
+        @groovy.transform.CompileStatic
+        class Target {
+            int fib(int n) {
+                n < 2 ? n : fib(n - 1) + fib(n - 2)
+            }
+            void fail() {
+                throw new IllegalStateException()
+            }
+            int recover() {
+                try {
+                    fail()
+                    return 0
+                } catch (IllegalStateException e) {
+                    return 1
+                }
+            }
+        }
+    """)
+
+    // the frames of the class are computed when it is instrumented
+    static final byte[] FRAMED_TARGET_BYTES = compile("""
+        package sample
+
+        @groovy.transform.CompileStatic
+        class Target {
+            int fib(int n) {
+                List list = n % 2 == 0 ? new ArrayList() : new LinkedList()
+                list.add(n)
+                n < 2 ? list.size() - 1 + n : fib(n - 1) + fib(n - 2)
+            }
+        }
+    """, "1.7")
+
+    static byte[] compile(String source, String targetBytecode = null) {
+        def config = new CompilerConfiguration()
+        if (targetBytecode) {
+            config.targetBytecode = targetBytecode
+        }
+        def unit = new CompilationUnit(config)
+        unit.addSource("Target.groovy", source)
+        unit.compile(Phases.CLASS_GENERATION)
+        unit.classes.find { it.name == TARGET }.bytes
+    }
+
+    def transformedClass(MethodCallFilter filter, byte[] bytes = TARGET_BYTES) {
+        def transformer = new ProfileClassTransformer()
+        transformer.methodFilter = filter
+        new ClassLoader(getClass().classLoader) {
+            Class clazz
+            protected Class loadClass(String className, boolean resolve) {
+                if (className != TARGET) {
+                    return super.loadClass(className, resolve)
+                }
+                if (clazz == null) {
+                    def transformed = transformer.transform(this, TARGET.replace('.', '/'), null, null, bytes)
+                    clazz = defineClass(TARGET, transformed, 0, transformed.length)
+                }
+                return clazz
+            }
+        }.loadClass(TARGET)
+    }
+
+    def paths(CallTree tree) {
+        def paths = []
+        tree.visit(new CallTree.NodeVisitor() {
+            void visit(CallTree.Node node) {
+                if (!(node.data instanceof MethodCallInfo)) {
+                    return
+                }
+                def names = []
+                for (def n = node; n.data instanceof MethodCallInfo; n = n.parent) {
+                    names.add(0, n.data.method.methodName)
+                }
+                paths << names.join("/")
+            }
+        })
+        paths
+    }
+
+    def "feeds the calls of the instrumented methods to the interceptor"() {
+        when:
+        def filter = new MethodCallFilter()
+        filter.addInclude(TARGET + ".*")
+        filter.addExclude(TARGET + ".ctor")
+        def interceptor = new CallInterceptor(filter, new ThreadRunFilter(), CallInterceptor.Capture.TREE)
+        def target = transformedClass(filter).newInstance()
+        ProfileHooks.activate(interceptor)
+        try {
+            target.fib(3)
+            target.recover()
+        } finally {
+            ProfileHooks.deactivate(interceptor)
+        }
+
+        then:
+        paths(interceptor.tree) == [
+            "fib", "fib/fib", "fib/fib/fib", "fib/fib/fib", "fib/fib",
+            "recover", "recover/fail" ]
+    }
+
+    def "does not transform the classes without the methods to instrument"() {
+        when:
+        def filter = new MethodCallFilter()
+        filter.addInclude("not.Found.*")
+        def transformer = new ProfileClassTransformer()
+        transformer.methodFilter = filter
+
+        then:
+        transformer.transform(getClass().classLoader, TARGET.replace('.', '/'), null, null, TARGET_BYTES) == null
+    }
+
+    def "computes the frames of the instrumented methods"() {
+        when:
+        def filter = new MethodCallFilter()
+        filter.addInclude(TARGET + ".fib")
+        def interceptor = new CallInterceptor(filter, new ThreadRunFilter(), CallInterceptor.Capture.TREE)
+        def target = transformedClass(filter, FRAMED_TARGET_BYTES).newInstance()
+        ProfileHooks.activate(interceptor)
+        try {
+            target.fib(2)
+        } finally {
+            ProfileHooks.deactivate(interceptor)
+        }
+
+        then:
+        paths(interceptor.tree) == [ "fib", "fib/fib", "fib/fib" ]
+    }
+
+    def "resolves the common super classes without loading the classes"() {
+        when:
+        def loader = new ClassLoader(getClass().classLoader) {
+            protected Class loadClass(String className, boolean resolve) {
+                throw new ClassNotFoundException(className)
+            }
+        }
+        def writer = new ProfileClassTransformer.LoaderClassWriter(new groovyjarjarasm.asm.ClassReader(TARGET_BYTES), loader)
+
+        then:
+        writer.getCommonSuperClass("java/util/ArrayList", "java/util/LinkedList") == "java/util/AbstractList"
+        writer.getCommonSuperClass("java/util/List", "java/util/ArrayList") == "java/util/List"
+        writer.getCommonSuperClass("java/lang/Integer", "java/lang/Long") == "java/lang/Number"
+        writer.getCommonSuperClass("java/lang/Runnable", "java/lang/Integer") == "java/lang/Object"
+        writer.getCommonSuperClass("sample/Target", "java/lang/Integer") == "java/lang/Object"
+    }
+
+    def "reports the classes which cannot be instrumented"() {
+        when:
+        def filter = new MethodCallFilter()
+        filter.addInclude(TARGET + ".*")
+        def transformer = new ProfileClassTransformer()
+        transformer.methodFilter = filter
+        def err = new ByteArrayOutputStream()
+        def originalErr = System.err
+        System.err = new PrintStream(err, true)
+        def transformed
+        try {
+            def broken = Arrays.copyOf(TARGET_BYTES, TARGET_BYTES.length.intdiv(2))
+            transformed = transformer.transform(getClass().classLoader, TARGET.replace('.', '/'), null, null, broken)
+        } finally {
+            System.err = originalErr
+        }
+
+        then:
+        transformed == null
+        err.toString().contains("Cannot instrument " + TARGET)
+    }
+
+}
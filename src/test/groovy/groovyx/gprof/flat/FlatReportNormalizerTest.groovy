@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 Masato Nagai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package groovyx.gprof.flat
+
+import groovyx.gprof.Metric
+import groovyx.gprof.TestHelper
+import spock.lang.Specification
+
+/**
+ * The expected numbers are the ones of the normalizer which visited the subtree of each call
+ * to sum up the self time of the recursive calls under it.
+ */
+@Mixin(TestHelper)
+class FlatReportNormalizerTest extends Specification {
+
+    def elements(tree) {
+        new FlatReportNormalizer().normalize(tree)[0].methodElements.collectEntries { e ->
+            [(e.method.methodName): [
+                calls: e.calls,
+                time: nano2Milli(e.time), selfTime: nano2Milli(e.selfTime),
+                minTime: nano2Milli(e.minTime), maxTime: nano2Milli(e.maxTime),
+                minSelfTime: nano2Milli(e.minSelfTime), maxSelfTime: nano2Milli(e.maxSelfTime)]]
+        }
+    }
+
+    def aggregatedCallNode(methodName, long calls, long timeMs, List<Long> extremesMs, Object... children) {
+        def node = methodCallNode("A", methodName, timeMs, children)
+        node.data.calls = calls
+        node.data.minTime = time(extremesMs[0])
+        node.data.maxTime = time(extremesMs[1])
+        node.data.minSelfTime = time(extremesMs[2])
+        node.data.maxSelfTime = time(extremesMs[3])
+        node
+    }
+
+    def allocating(node, long bytes) {
+        node.data.metrics.set(Metric.ALLOCATED_BYTES, bytes)
+        node.data.metrics.setChildren(Metric.ALLOCATED_BYTES,
+                node.children.sum(0L) { it.data.metrics.get(Metric.ALLOCATED_BYTES) })
+        node
+    }
+
+    def "Adds the self values of the direct recursive calls to the outermost call"() {
+        when:
+        def tree = tree(
+            allocating(methodCallNode("A", "a", 100,
+                allocating(methodCallNode("A", "a", 60,
+                    allocating(methodCallNode("A", "a", 20), 200),
+                    allocating(methodCallNode("A", "b", 10), 100)
+                ), 500),
+                allocating(methodCallNode("A", "c", 15), 50)
+            ), 1000)
+        )
+        def a = new FlatReportNormalizer().normalize(tree)[0].methodElements.find { it.method.methodName == "a" }
+
+        then:
+        elements(tree) == [
+            a: [calls: 1, time: 100, selfTime: 75, minTime: 100, maxTime: 100, minSelfTime: 75, maxSelfTime: 75],
+            c: [calls: 1, time: 15, selfTime: 15, minTime: 15, maxTime: 15, minSelfTime: 15, maxSelfTime: 15],
+            b: [calls: 1, time: 10, selfTime: 10, minTime: 10, maxTime: 10, minSelfTime: 10, maxSelfTime: 10],
+        ]
+        a.metrics.get(Metric.ALLOCATED_BYTES) == 1000
+        a.metrics.getSelf(Metric.ALLOCATED_BYTES) == 850
+    }
+
+    def "Counts the mutual recursive calls as the calls of their own"() {
+        when:
+        def tree = tree(
+            methodCallNode("A", "a", 100,
+                methodCallNode("A", "b", 70,
+                    methodCallNode("A", "a", 40,
+                        methodCallNode("A", "b", 10)
+                    )
+                ),
+                methodCallNode("A", "c", 20)
+            )
+        )
+
+        then:
+        elements(tree) == [
+            a: [calls: 2, time: 140, selfTime: 70, minTime: 40, maxTime: 100, minSelfTime: 30, maxSelfTime: 40],
+            b: [calls: 2, time: 80, selfTime: 50, minTime: 10, maxTime: 70, minSelfTime: 10, maxSelfTime: 40],
+            c: [calls: 1, time: 20, selfTime: 20, minTime: 20, maxTime: 20, minSelfTime: 20, maxSelfTime: 20],
+        ]
+    }
+
+    def "Takes the extremes of the aggregated calls from the nodes"() {
+        when:
+        def tree = tree(
+            aggregatedCallNode("a", 2, 100, [40, 60, 10, 30],
+                aggregatedCallNode("b", 4, 60, [10, 20, 5, 15],
+                    aggregatedCallNode("a", 3, 20, [5, 8, 5, 8])
+                )
+            ),
+            aggregatedCallNode("b", 2, 30, [10, 20, 10, 20])
+        )
+
+        then:
+        elements(tree) == [
+            a: [calls: 5, time: 120, selfTime: 80, minTime: 5, maxTime: 60, minSelfTime: 5, maxSelfTime: 30],
+            b: [calls: 6, time: 90, selfTime: 70, minTime: 10, maxTime: 20, minSelfTime: 5, maxSelfTime: 20],
+        ]
+    }
+
+}